@@ -0,0 +1,141 @@
+package tileserver.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+import modifiedviewer.RenderPool;
+import modifiedviewer.RenderSettings;
+import modifiedviewer.TileRenderer;
+import modifiedviewer.TileRenderer.TargetType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tileserver.BufferImageOutputStream;
+import tileserver.EncodeBuffer;
+import tileserver.PngEncoder;
+import viewer.render.ViewerState;
+
+/**
+ * Encode a rendered tile of the {@link SyntheticDataset} as JPEG and PNG. The
+ * JPEG writer is set up like the one of {@link tileserver.TileGenerator}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class EncodeBenchmark
+{
+	@Param( { "256", "512" } )
+	public int tileSize;
+
+	private int[] argb;
+
+	private byte[] gray;
+
+	private BufferedImage argbImage;
+
+	private BufferedImage grayImage;
+
+	private ImageWriter jpegWriter;
+
+	private ImageWriteParam param;
+
+	private PngEncoder pngEncoder;
+
+	private PngEncoder sequentialPngEncoder;
+
+	private EncodeBuffer os;
+
+	private BufferImageOutputStream jpegStream;
+
+	private IIOImage jpegImage;
+
+	@Setup
+	public void setup()
+	{
+		final ViewerState state = SyntheticDataset.createState( 2 );
+		state.setViewerTransform( SyntheticDataset.centerTransform( tileSize ) );
+		final TileRenderer renderer = new TileRenderer();
+		renderer.paint( state, tileSize, tileSize, new RenderSettings().type( TargetType.ARGB ) );
+		renderer.paint( state, tileSize, tileSize, new RenderSettings().type( TargetType.GRAY ) );
+		argb = renderer.getScreenImage().getData();
+		argbImage = renderer.getBufferedImage();
+		gray = renderer.getGrayData();
+		grayImage = renderer.getGrayImage();
+
+		jpegWriter = ImageIO.getImageWritersByFormatName( "jpeg" ).next();
+		param = jpegWriter.getDefaultWriteParam();
+		param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+		param.setCompressionQuality( 1f );
+		param.setSourceSubsampling( 1, 1, 0, 0 );
+
+		pngEncoder = new PngEncoder( 6, RenderPool.getSharedPool(), 64 );
+		sequentialPngEncoder = new PngEncoder( 6 );
+		os = new EncodeBuffer( 64 * 1024 );
+		jpegStream = new BufferImageOutputStream( os );
+		jpegWriter.setOutput( jpegStream );
+		jpegImage = new IIOImage( argbImage, null, null );
+	}
+
+	private int writeJpeg( final BufferedImage img ) throws IOException
+	{
+		jpegStream.rewind();
+		jpegImage.setRenderedImage( img );
+		jpegWriter.write( null, jpegImage, param );
+		return os.size();
+	}
+
+	@Benchmark
+	public int jpegArgb() throws IOException
+	{
+		return writeJpeg( argbImage );
+	}
+
+	@Benchmark
+	public int jpegGray() throws IOException
+	{
+		return writeJpeg( grayImage );
+	}
+
+	@Benchmark
+	public int pngArgb() throws IOException
+	{
+		os.reset();
+		pngEncoder.writeRGB( argb, tileSize, tileSize, os );
+		return os.size();
+	}
+
+	@Benchmark
+	public int pngArgbSequential() throws IOException
+	{
+		os.reset();
+		sequentialPngEncoder.writeRGB( argb, tileSize, tileSize, os );
+		return os.size();
+	}
+
+	@Benchmark
+	public int pngGray() throws IOException
+	{
+		os.reset();
+		pngEncoder.writeGray8( gray, tileSize, tileSize, os );
+		return os.size();
+	}
+}
@@ -0,0 +1,75 @@
+package tileserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import modifiedviewer.RenderSettings;
+import modifiedviewer.TileRenderer;
+import modifiedviewer.TileRenderer.TargetType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import viewer.render.Interpolation;
+import viewer.render.ViewerState;
+
+/**
+ * Render tiles of the {@link SyntheticDataset} with {@link TileRenderer}, for
+ * different tile sizes, interpolations, and numbers of visible sources.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class PaintBenchmark
+{
+	@Param( { "128", "256", "512" } )
+	public int tileSize;
+
+	@Param( { "NEARESTNEIGHBOR", "NLINEAR" } )
+	public Interpolation interpolation;
+
+	@Param( { "1", "2", "4" } )
+	public int numSources;
+
+	private ViewerState state;
+
+	private TileRenderer renderer;
+
+	@Setup
+	public void setup()
+	{
+		state = SyntheticDataset.createState( numSources );
+		state.setViewerTransform( SyntheticDataset.centerTransform( tileSize ) );
+		state.setInterpolation( interpolation );
+		renderer = new TileRenderer();
+	}
+
+	@Benchmark
+	public boolean paintArgb()
+	{
+		return renderer.paint( state, tileSize, tileSize, new RenderSettings().type( TargetType.ARGB ) );
+	}
+
+	@Benchmark
+	public boolean paintGray()
+	{
+		return renderer.paint( state, tileSize, tileSize, new RenderSettings().type( TargetType.GRAY ) );
+	}
+
+	@Benchmark
+	public boolean paintUint16()
+	{
+		return renderer.paint( state, tileSize, tileSize, new RenderSettings().type( TargetType.UINT16 ) );
+	}
+}
@@ -0,0 +1,86 @@
+package tileserver.benchmark;
+
+import java.util.ArrayList;
+
+import net.imglib2.display.RealARGBConverter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import tileserver.TileRequest;
+import tileserver.TileRequest.Format;
+import viewer.render.Interpolation;
+import viewer.render.SourceAndConverter;
+import viewer.render.ViewerState;
+
+/**
+ * Multi-angle, multi-resolution dataset held in memory, such that benchmarks
+ * do not depend on external files.
+ */
+public class SyntheticDataset
+{
+	/**
+	 * Width, height and depth of the full-resolution volumes.
+	 */
+	public static final int SIZE = 256;
+
+	/**
+	 * Number of mipmap levels of each source.
+	 */
+	public static final int NUM_LEVELS = 4;
+
+	/**
+	 * Create a {@link ViewerState} showing {@code numAngles} sources, rotated
+	 * about the Y axis by equal angles. All sources are visible.
+	 */
+	public static ViewerState createState( final int numAngles )
+	{
+		final RealARGBConverter< UnsignedShortType > converter = new RealARGBConverter< UnsignedShortType >( 0, 6000 );
+		final ArrayList< SourceAndConverter< ? > > sources = new ArrayList< SourceAndConverter< ? > >();
+		for ( int i = 0; i < numAngles; ++i )
+			sources.add( new SourceAndConverter< UnsignedShortType >( new SyntheticSource( SIZE, NUM_LEVELS, i * 180.0 / numAngles ), converter ) );
+
+		final ViewerState state = new ViewerState( sources, 1 );
+		state.setCurrentSource( 0 );
+		state.setSingleSourceMode( false );
+		state.setInterpolation( Interpolation.NLINEAR );
+		return state;
+	}
+
+	/**
+	 * Get the stackToTile values of a transform that shows a
+	 * {@code tileSize} square from the center of the central section, at full
+	 * resolution.
+	 */
+	public static double[] centerAffine( final int tileSize )
+	{
+		final double o = 0.5 * ( SIZE - tileSize );
+		return new double[] {
+				1, 0, 0, -o,
+				0, 1, 0, -o,
+				0, 0, 1, -0.5 * SIZE };
+	}
+
+	/**
+	 * Get the transform of {@link #centerAffine(int)}.
+	 */
+	public static AffineTransform3D centerTransform( final int tileSize )
+	{
+		final AffineTransform3D t = new AffineTransform3D();
+		t.set( centerAffine( tileSize ) );
+		return t;
+	}
+
+	/**
+	 * Create a request for the tile shown by {@link #centerTransform(int)}.
+	 */
+	public static TileRequest centerRequest( final int tileSize, final Interpolation interpolation, final Format format )
+	{
+		return new TileRequest.Builder()
+				.affine( centerAffine( tileSize ) )
+				.tileSize( tileSize, tileSize )
+				.interpolation( interpolation )
+				.format( format )
+				.quality( 0.9f )
+				.display( new double[] { 0 }, new double[] { 6000 }, new String[] { "gray" } )
+				.build();
+	}
+}
@@ -0,0 +1,132 @@
+package tileserver.benchmark;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import viewer.render.Interpolation;
+import viewer.render.Source;
+
+/**
+ * In-memory {@link UnsignedShortType} source with a mipmap pyramid,
+ * representing one angle of a multi-angle dataset. The volume is filled with a
+ * deterministic pattern of blobs and stripes. Each level is half the size of
+ * the previous one, and the source is rotated about the Y axis by its angle.
+ */
+public class SyntheticSource implements Source< UnsignedShortType >
+{
+	private final String name;
+
+	private final Img< UnsignedShortType >[] levels;
+
+	private final AffineTransform3D[] transforms;
+
+	/**
+	 * @param size
+	 *            width, height and depth of the full-resolution volume.
+	 * @param numLevels
+	 *            number of mipmap levels.
+	 * @param angle
+	 *            rotation about the Y axis (degrees).
+	 */
+	@SuppressWarnings( "unchecked" )
+	public SyntheticSource( final int size, final int numLevels, final double angle )
+	{
+		name = "angle " + angle;
+		levels = new Img[ numLevels ];
+		transforms = new AffineTransform3D[ numLevels ];
+
+		final double a = Math.toRadians( angle );
+		final double cos = Math.cos( a );
+		final double sin = Math.sin( a );
+		final double c = 0.5 * ( size - 1 );
+		final ArrayImgFactory< UnsignedShortType > factory = new ArrayImgFactory< UnsignedShortType >();
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			final int scale = 1 << level;
+			final long s = Math.max( 1, size / scale );
+			final Img< UnsignedShortType > img = factory.create( new long[] { s, s, s }, new UnsignedShortType() );
+			fill( img, scale );
+			levels[ level ] = img;
+
+			// level coordinates to full-resolution coordinates, then rotate
+			// about the center of the volume
+			final double o = 0.5 * ( scale - 1 );
+			final AffineTransform3D t = new AffineTransform3D();
+			t.set(
+					cos * scale, 0, sin * scale, cos * ( o - c ) + sin * ( o - c ) + c,
+					0, scale, 0, o,
+					-sin * scale, 0, cos * scale, -sin * ( o - c ) + cos * ( o - c ) + c );
+			transforms[ level ] = t;
+		}
+	}
+
+	/**
+	 * Fill a mipmap level with the pattern, sampled at full-resolution
+	 * coordinates.
+	 */
+	private static void fill( final Img< UnsignedShortType > img, final int scale )
+	{
+		final Cursor< UnsignedShortType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double x = scale * cursor.getDoublePosition( 0 );
+			final double y = scale * cursor.getDoublePosition( 1 );
+			final double z = scale * cursor.getDoublePosition( 2 );
+			final double blobs = Math.sin( x * 0.05 ) * Math.sin( y * 0.05 ) * Math.sin( z * 0.05 );
+			final double stripes = Math.sin( ( x + 2 * y + 3 * z ) * 0.2 );
+			cursor.get().set( ( int ) ( 2000 + 1500 * blobs + 500 * stripes ) );
+		}
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return t == 0;
+	}
+
+	@Override
+	public RandomAccessibleInterval< UnsignedShortType > getSource( final int t, final int level )
+	{
+		return levels[ level ];
+	}
+
+	@Override
+	public RealRandomAccessible< UnsignedShortType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( levels[ level ] ), new NLinearInterpolatorFactory< UnsignedShortType >() );
+		else
+			return Views.interpolate( Views.extendZero( levels[ level ] ), new NearestNeighborInterpolatorFactory< UnsignedShortType >() );
+	}
+
+	@Override
+	public AffineTransform3D getSourceTransform( final int t, final int level )
+	{
+		return transforms[ level ];
+	}
+
+	public UnsignedShortType getType()
+	{
+		return new UnsignedShortType();
+	}
+
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return levels.length;
+	}
+}
@@ -0,0 +1,61 @@
+package tileserver.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tileserver.TileGenerator;
+import tileserver.TileMetrics;
+import tileserver.TileRequest;
+import tileserver.TileRequest.Format;
+import viewer.render.Interpolation;
+
+/**
+ * Render and encode tiles of the {@link SyntheticDataset} end to end, with
+ * {@link TileGenerator#getTile(TileRequest, java.io.OutputStream)}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 10, time = 1 )
+@Fork( 1 )
+public class TilePathBenchmark
+{
+	@Param( { "256", "512" } )
+	public int tileSize;
+
+	@Param( { "JPEG", "PNG", "RAW" } )
+	public Format format;
+
+	@Param( { "2" } )
+	public int numSources;
+
+	private TileGenerator generator;
+
+	private TileRequest tileRequest;
+
+	@Setup
+	public void setup()
+	{
+		generator = new TileGenerator( SyntheticDataset.createState( numSources ), new TileMetrics() );
+		tileRequest = SyntheticDataset.centerRequest( tileSize, Interpolation.NLINEAR, format );
+	}
+
+	@Benchmark
+	public int getTile() throws IOException
+	{
+		return generator.getTile( tileRequest ).length;
+	}
+}
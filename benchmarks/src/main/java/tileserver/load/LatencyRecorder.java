@@ -0,0 +1,50 @@
+package tileserver.load;
+
+import java.util.Arrays;
+
+/**
+ * Records all request latencies of a load test, such that exact percentiles
+ * can be computed at the end.
+ */
+public class LatencyRecorder
+{
+	private long[] nanos;
+
+	private int size;
+
+	public LatencyRecorder()
+	{
+		nanos = new long[ 1 << 16 ];
+		size = 0;
+	}
+
+	public synchronized void record( final long latencyNanos )
+	{
+		if ( size == nanos.length )
+			nanos = Arrays.copyOf( nanos, 2 * size );
+		nanos[ size++ ] = latencyNanos;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get the latencies at the given percentiles (0..100), in ns. Returns 0
+	 * for every percentile if nothing was recorded.
+	 */
+	public synchronized long[] getPercentiles( final double... percentiles )
+	{
+		final long[] sorted = Arrays.copyOf( nanos, size );
+		Arrays.sort( sorted );
+		final long[] values = new long[ percentiles.length ];
+		if ( size > 0 )
+			for ( int i = 0; i < percentiles.length; ++i )
+			{
+				final int rank = ( int ) Math.ceil( percentiles[ i ] / 100 * size ) - 1;
+				values[ i ] = sorted[ Math.max( 0, Math.min( size - 1, rank ) ) ];
+			}
+		return values;
+	}
+}
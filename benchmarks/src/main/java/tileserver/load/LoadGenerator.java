@@ -0,0 +1,357 @@
+package tileserver.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for a running tile server ({@code TileServerJetty} or
+ * {@code TileServerSun}). Requests are replayed from a log file (see
+ * {@link LogReplay}) or synthesized from simulated viewer sessions (see
+ * {@link SessionSynthesizer}). Reports throughput, latency percentiles, and
+ * error and 503 rates.
+ *
+ * In closed-loop mode ({@code rate = 0}), {@code concurrency} clients each
+ * issue requests back to back. In open-loop mode, requests arrive at a fixed
+ * rate regardless of how fast they are answered, and latency is measured
+ * from the scheduled arrival time (so that queueing in the load generator
+ * is not hidden).
+ *
+ * Settings are read from system properties (see {@link Options}), e.g.
+ *
+ * <pre>
+ * java -Dload.concurrency=32 -Dload.rate=200 -cp benchmarks.jar tileserver.load.LoadGenerator
+ * </pre>
+ */
+public class LoadGenerator
+{
+	/**
+	 * Settings, can be overridden with system properties, e.g.
+	 * <code>-Dload.concurrency=32</code>.
+	 */
+	public static class Options
+	{
+		/**
+		 * Base URL of the tile server.
+		 */
+		public String url = "http://localhost:8010";
+
+		/**
+		 * Log file to replay. If empty, sessions are synthesized.
+		 */
+		public String log = "";
+
+		/**
+		 * Whether to start over at the end of the log.
+		 */
+		public boolean loop = true;
+
+		/**
+		 * Number of concurrent clients (closed loop) or of threads issuing
+		 * requests (open loop).
+		 */
+		public int concurrency = 16;
+
+		/**
+		 * Arrival rate (requests per second) in open-loop mode. 0 means
+		 * closed loop.
+		 */
+		public double rate = 0;
+
+		/**
+		 * Requests before this time (s) are not included in the results.
+		 */
+		public int warmupSeconds = 5;
+
+		/**
+		 * Measured time (s) after the warmup.
+		 */
+		public int durationSeconds = 30;
+
+		/**
+		 * Connect and read timeout (ms) of each request.
+		 */
+		public int timeoutMillis = 30000;
+
+		/**
+		 * Number of synthesized sessions.
+		 */
+		public int sessions = 4;
+
+		/**
+		 * Width and height of synthesized tile requests.
+		 */
+		public int tileSize = 256;
+
+		/**
+		 * Viewport width of synthesized sessions, in tiles.
+		 */
+		public int tilesX = 4;
+
+		/**
+		 * Viewport height of synthesized sessions, in tiles.
+		 */
+		public int tilesY = 3;
+
+		/**
+		 * Format of synthesized tile requests.
+		 */
+		public String format = "jpeg";
+
+		/**
+		 * Initial viewport center "x,y,z" of synthesized sessions, in stack
+		 * coordinates.
+		 */
+		public String start = "1000,1000,50";
+
+		/**
+		 * Random seed of synthesized sessions.
+		 */
+		public long seed = 0;
+
+		public static Options fromSystemProperties()
+		{
+			final Options o = new Options();
+			o.url = System.getProperty( "load.url", o.url );
+			o.log = System.getProperty( "load.log", o.log );
+			o.loop = Boolean.parseBoolean( System.getProperty( "load.loop", Boolean.toString( o.loop ) ) );
+			o.concurrency = Integer.getInteger( "load.concurrency", o.concurrency );
+			o.rate = Double.parseDouble( System.getProperty( "load.rate", Double.toString( o.rate ) ) );
+			o.warmupSeconds = Integer.getInteger( "load.warmupSeconds", o.warmupSeconds );
+			o.durationSeconds = Integer.getInteger( "load.durationSeconds", o.durationSeconds );
+			o.timeoutMillis = Integer.getInteger( "load.timeoutMillis", o.timeoutMillis );
+			o.sessions = Integer.getInteger( "load.sessions", o.sessions );
+			o.tileSize = Integer.getInteger( "load.tileSize", o.tileSize );
+			o.tilesX = Integer.getInteger( "load.tilesX", o.tilesX );
+			o.tilesY = Integer.getInteger( "load.tilesY", o.tilesY );
+			o.format = System.getProperty( "load.format", o.format );
+			o.start = System.getProperty( "load.start", o.start );
+			o.seed = Long.getLong( "load.seed", o.seed );
+			return o;
+		}
+	}
+
+	/**
+	 * Status reported for requests that failed with an exception.
+	 */
+	static final int STATUS_ERROR = -1;
+
+	private final Options options;
+
+	private final String baseUrl;
+
+	private final RequestSource source;
+
+	private final LatencyRecorder latencies;
+
+	private final AtomicLong numOk;
+
+	private final AtomicLong numNotModified;
+
+	private final AtomicLong numUnavailable;
+
+	private final AtomicLong numOtherStatus;
+
+	private final AtomicLong numErrors;
+
+	/**
+	 * Start of the measurement (after warmup), in {@link System#nanoTime()}.
+	 */
+	private long measureStart;
+
+	/**
+	 * End of the measurement, in {@link System#nanoTime()}.
+	 */
+	private long measureEnd;
+
+	public LoadGenerator( final Options options, final RequestSource source )
+	{
+		this.options = options;
+		this.source = source;
+		baseUrl = options.url.endsWith( "/" ) ? options.url.substring( 0, options.url.length() - 1 ) : options.url;
+		latencies = new LatencyRecorder();
+		numOk = new AtomicLong();
+		numNotModified = new AtomicLong();
+		numUnavailable = new AtomicLong();
+		numOtherStatus = new AtomicLong();
+		numErrors = new AtomicLong();
+	}
+
+	/**
+	 * Issue a request and read the response.
+	 *
+	 * @return HTTP status, or {@link #STATUS_ERROR}.
+	 */
+	int fetch( final String request )
+	{
+		try
+		{
+			final URL url = request.startsWith( "http" ) ?
+					new URL( request ) :
+					new URL( baseUrl + ( request.startsWith( "/" ) ? request : "/" + request ) );
+			final HttpURLConnection connection = ( HttpURLConnection ) url.openConnection();
+			connection.setConnectTimeout( options.timeoutMillis );
+			connection.setReadTimeout( options.timeoutMillis );
+			final int status = connection.getResponseCode();
+			final InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if ( is != null )
+			{
+				final byte[] buf = new byte[ 8192 ];
+				while ( is.read( buf ) >= 0 )
+				{}
+				is.close();
+			}
+			return status;
+		}
+		catch ( final IOException e )
+		{
+			return STATUS_ERROR;
+		}
+	}
+
+	/**
+	 * Record the result of a request that started at {@code startNanos}.
+	 */
+	void record( final long startNanos, final int status )
+	{
+		final long endNanos = System.nanoTime();
+		if ( startNanos < measureStart )
+			return;
+		latencies.record( endNanos - startNanos );
+		switch ( status )
+		{
+		case HttpURLConnection.HTTP_OK:
+			numOk.incrementAndGet();
+			break;
+		case HttpURLConnection.HTTP_NOT_MODIFIED:
+			numNotModified.incrementAndGet();
+			break;
+		case HttpURLConnection.HTTP_UNAVAILABLE:
+			numUnavailable.incrementAndGet();
+			break;
+		case STATUS_ERROR:
+			numErrors.incrementAndGet();
+			break;
+		default:
+			numOtherStatus.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Run the load test and return when all requests are answered.
+	 */
+	public void run() throws InterruptedException
+	{
+		final long start = System.nanoTime();
+		measureStart = start + TimeUnit.SECONDS.toNanos( options.warmupSeconds );
+		final long end = measureStart + TimeUnit.SECONDS.toNanos( options.durationSeconds );
+		if ( options.rate > 0 )
+			runOpenLoop( start, end );
+		else
+			runClosedLoop( end );
+		measureEnd = Math.max( end, System.nanoTime() );
+	}
+
+	private void runClosedLoop( final long end ) throws InterruptedException
+	{
+		final Thread[] clients = new Thread[ options.concurrency ];
+		for ( int i = 0; i < clients.length; ++i )
+		{
+			clients[ i ] = new Thread( "load-client-" + i )
+			{
+				@Override
+				public void run()
+				{
+					while ( System.nanoTime() < end )
+					{
+						final String request = source.next();
+						if ( request == null )
+							break;
+						final long t0 = System.nanoTime();
+						record( t0, fetch( request ) );
+					}
+				}
+			};
+			clients[ i ].start();
+		}
+		for ( final Thread client : clients )
+			client.join();
+	}
+
+	private void runOpenLoop( final long start, final long end ) throws InterruptedException
+	{
+		final ExecutorService executor = new ThreadPoolExecutor( options.concurrency, options.concurrency, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue< Runnable >() );
+		final double intervalNanos = 1e9 / options.rate;
+		for ( long k = 0;; ++k )
+		{
+			final long scheduled = start + ( long ) ( k * intervalNanos );
+			if ( scheduled >= end )
+				break;
+			final long wait = scheduled - System.nanoTime();
+			if ( wait > 0 )
+				TimeUnit.NANOSECONDS.sleep( wait );
+			final String request = source.next();
+			if ( request == null )
+				break;
+			executor.execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					record( scheduled, fetch( request ) );
+				}
+			} );
+		}
+		executor.shutdown();
+		executor.awaitTermination( options.timeoutMillis + TimeUnit.SECONDS.toMillis( options.durationSeconds ), TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Get a report of throughput, latency percentiles, and status counts.
+	 */
+	public String getReport()
+	{
+		final double seconds = ( measureEnd - measureStart ) * 1e-9;
+		final long total = latencies.size();
+		final long[] p = latencies.getPercentiles( 50, 95, 99, 99.9, 100 );
+		final StringBuilder sb = new StringBuilder();
+		sb.append( String.format( "mode: %s  concurrency:%d%n", options.rate > 0 ? String.format( "open loop, %.1f req/s", options.rate ) : "closed loop", options.concurrency ) );
+		sb.append( String.format( "requests:%d in %.1f s  throughput:%.1f req/s%n", total, seconds, total / seconds ) );
+		sb.append( String.format( "latency (ms)  p50:%.1f  p95:%.1f  p99:%.1f  p999:%.1f  max:%.1f%n", p[ 0 ] * 1e-6, p[ 1 ] * 1e-6, p[ 2 ] * 1e-6, p[ 3 ] * 1e-6, p[ 4 ] * 1e-6 ) );
+		sb.append( String.format( "200:%d  304:%d  503:%d (%.2f%%)  other:%d  errors:%d (%.2f%%)",
+				numOk.get(), numNotModified.get(),
+				numUnavailable.get(), percent( numUnavailable.get(), total ),
+				numOtherStatus.get(),
+				numErrors.get(), percent( numErrors.get(), total ) ) );
+		return sb.toString();
+	}
+
+	private static double percent( final long count, final long total )
+	{
+		return total == 0 ? 0 : 100.0 * count / total;
+	}
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final Options options = Options.fromSystemProperties();
+		final RequestSource source;
+		if ( options.log.isEmpty() )
+		{
+			final String[] start = options.start.split( "," );
+			final double[] center = new double[] { Double.parseDouble( start[ 0 ] ), Double.parseDouble( start[ 1 ] ), Double.parseDouble( start[ 2 ] ) };
+			source = new SessionSynthesizer( options.sessions, options.tileSize, options.tileSize, options.tilesX, options.tilesY, options.format, center, options.seed );
+		}
+		else
+			source = new LogReplay( options.log, options.loop );
+
+		final LoadGenerator generator = new LoadGenerator( options, source );
+		generator.run();
+		System.out.println( generator.getReport() );
+	}
+}
@@ -0,0 +1,82 @@
+package tileserver.load;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Replays tile requests recorded in a log file, in order. Each line is either
+ * a request path with query (or absolute URL), or an access log line in common
+ * log format, from which the path of the {@code "GET ..."} part is taken.
+ * Empty lines and lines starting with {@code #} are ignored.
+ */
+public class LogReplay implements RequestSource
+{
+	private final ArrayList< String > requests;
+
+	private final boolean loop;
+
+	private int next;
+
+	/**
+	 * @param loop
+	 *            whether to start over after the last request.
+	 */
+	public LogReplay( final String logFile, final boolean loop ) throws IOException
+	{
+		this.loop = loop;
+		requests = new ArrayList< String >();
+		final BufferedReader reader = new BufferedReader( new FileReader( logFile ) );
+		try
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				final String request = parseLine( line );
+				if ( request != null )
+					requests.add( request );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		next = 0;
+	}
+
+	/**
+	 * Extract the request from a log line.
+	 *
+	 * @return the request, or {@code null} if the line has none.
+	 */
+	static String parseLine( final String line )
+	{
+		final String trimmed = line.trim();
+		if ( trimmed.isEmpty() || trimmed.startsWith( "#" ) )
+			return null;
+		final int get = trimmed.indexOf( "\"GET " );
+		if ( get < 0 )
+			return trimmed;
+		final int start = get + 5;
+		final int end = trimmed.indexOf( ' ', start );
+		return end < 0 ? null : trimmed.substring( start, end );
+	}
+
+	public int size()
+	{
+		return requests.size();
+	}
+
+	@Override
+	public synchronized String next()
+	{
+		if ( next >= requests.size() )
+		{
+			if ( !loop || requests.isEmpty() )
+				return null;
+			next = 0;
+		}
+		return requests.get( next++ );
+	}
+}
@@ -0,0 +1,14 @@
+package tileserver.load;
+
+/**
+ * Provides the tile requests issued by the {@link LoadGenerator}.
+ * Implementations must be thread-safe.
+ */
+public interface RequestSource
+{
+	/**
+	 * Get the next request, as a path with query (relative to the server URL)
+	 * or an absolute URL. Returns {@code null} if there are no more requests.
+	 */
+	public String next();
+}
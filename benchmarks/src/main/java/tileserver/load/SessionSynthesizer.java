@@ -0,0 +1,175 @@
+package tileserver.load;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Synthesizes tile requests of simulated viewer sessions that pan, zoom, and
+ * scroll through z. Each session shows a viewport of
+ * {@code tilesX * tilesY} tiles. After all tiles of the viewport were
+ * requested, the session takes a random step and requests the tiles of the
+ * new viewport. Requests carry {@code session} and {@code seq} parameters,
+ * such that the server can cancel superseded renders.
+ */
+public class SessionSynthesizer implements RequestSource
+{
+	/**
+	 * Probability that a step is a pan (otherwise a z-scroll or zoom).
+	 */
+	static final double PAN_PROBABILITY = 0.6;
+
+	/**
+	 * Probability that a step is a z-scroll (otherwise a pan or zoom).
+	 */
+	static final double SCROLL_PROBABILITY = 0.25;
+
+	static final double MIN_SCALE = 1.0 / 16;
+
+	static final double MAX_SCALE = 2;
+
+	private class Session
+	{
+		final String id;
+
+		long seq;
+
+		/**
+		 * Viewport center in stack coordinates.
+		 */
+		double cx, cy, z;
+
+		/**
+		 * Screen pixels per stack pixel.
+		 */
+		double scale;
+
+		final ArrayDeque< String > pending;
+
+		Session( final String id )
+		{
+			this.id = id;
+			seq = 0;
+			cx = startX;
+			cy = startY;
+			z = startZ;
+			scale = 1;
+			pending = new ArrayDeque< String >();
+		}
+
+		String next()
+		{
+			if ( pending.isEmpty() )
+			{
+				step();
+				requestViewport();
+			}
+			return pending.poll();
+		}
+
+		void step()
+		{
+			final double r = random.nextDouble();
+			final int dir = random.nextBoolean() ? 1 : -1;
+			if ( r < PAN_PROBABILITY )
+			{
+				if ( random.nextBoolean() )
+					cx += dir * tileW / scale;
+				else
+					cy += dir * tileH / scale;
+			}
+			else if ( r < PAN_PROBABILITY + SCROLL_PROBABILITY )
+				z = Math.max( 0, z + dir );
+			else
+				scale = Math.max( MIN_SCALE, Math.min( MAX_SCALE, dir > 0 ? scale * 2 : scale / 2 ) );
+		}
+
+		void requestViewport()
+		{
+			++seq;
+			final double ox = scale * cx - 0.5 * tileW * tilesX;
+			final double oy = scale * cy - 0.5 * tileH * tilesY;
+			for ( int j = 0; j < tilesY; ++j )
+				for ( int i = 0; i < tilesX; ++i )
+				{
+					final StringBuilder sb = new StringBuilder( "/?" );
+					sb.append( "a00=" ).append( scale ).append( "&a01=0&a02=0&a03=" ).append( -( ox + i * tileW ) );
+					sb.append( "&a10=0&a11=" ).append( scale ).append( "&a12=0&a13=" ).append( -( oy + j * tileH ) );
+					sb.append( "&a20=0&a21=0&a22=" ).append( scale ).append( "&a23=" ).append( -scale * z );
+					sb.append( "&timepoint=0&screenscale=1&interpolation=NLINEAR" );
+					sb.append( "&width=" ).append( tileW ).append( "&height=" ).append( tileH );
+					sb.append( "&format=" ).append( format );
+					sb.append( "&session=" ).append( id ).append( "&seq=" ).append( seq );
+					pending.add( sb.toString() );
+				}
+		}
+	}
+
+	private final int tileW;
+
+	private final int tileH;
+
+	private final int tilesX;
+
+	private final int tilesY;
+
+	private final String format;
+
+	private final double startX;
+
+	private final double startY;
+
+	private final double startZ;
+
+	private final Random random;
+
+	private final Session[] sessions;
+
+	private int nextSession;
+
+	/**
+	 * @param numSessions
+	 *            number of concurrent sessions. Requests of the sessions are
+	 *            interleaved round-robin.
+	 * @param tileW
+	 *            tile width.
+	 * @param tileH
+	 *            tile height.
+	 * @param tilesX
+	 *            viewport width in tiles.
+	 * @param tilesY
+	 *            viewport height in tiles.
+	 * @param format
+	 *            requested tile format.
+	 * @param start
+	 *            initial viewport center (x, y, z) in stack coordinates.
+	 * @param seed
+	 *            random seed, such that runs are reproducible.
+	 */
+	public SessionSynthesizer( final int numSessions, final int tileW, final int tileH, final int tilesX, final int tilesY, final String format, final double[] start, final long seed )
+	{
+		this.tileW = tileW;
+		this.tileH = tileH;
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		this.format = format;
+		startX = start[ 0 ];
+		startY = start[ 1 ];
+		startZ = start[ 2 ];
+		random = new Random( seed );
+		sessions = new Session[ numSessions ];
+		for ( int i = 0; i < numSessions; ++i )
+		{
+			sessions[ i ] = new Session( "load" + i );
+			sessions[ i ].requestViewport();
+		}
+		nextSession = 0;
+	}
+
+	@Override
+	public synchronized String next()
+	{
+		final Session session = sessions[ nextSession ];
+		nextSession = ( nextSession + 1 ) % sessions.length;
+		return session.next();
+	}
+}
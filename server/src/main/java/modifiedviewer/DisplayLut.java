@@ -0,0 +1,163 @@
+package modifiedviewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Precomputed lookup tables mapping each unsigned 16-bit value to an ARGB and
+ * an 8-bit gray display value, for a display range [min, max] and a color
+ * ramp.
+ */
+public class DisplayLut
+{
+	/**
+	 * ARGB value for each unsigned 16-bit value.
+	 */
+	private final int[] argb;
+
+	/**
+	 * Gray value (luminance of {@link #argb}) for each unsigned 16-bit value.
+	 */
+	private final byte[] gray;
+
+	/**
+	 * @param min
+	 *            values &le; min map to the first ramp entry.
+	 * @param max
+	 *            values &ge; max map to the last ramp entry.
+	 * @param ramp
+	 *            256 RGB values.
+	 */
+	public DisplayLut( final double min, final double max, final int[] ramp )
+	{
+		argb = new int[ 65536 ];
+		gray = new byte[ 65536 ];
+		final double scale = 255.0 / ( max - min );
+		for ( int v = 0; v < 65536; ++v )
+		{
+			final double r = ( v - min ) * scale;
+			final int c = ramp[ r <= 0 ? 0 : r >= 255 ? 255 : ( int ) ( r + 0.5 ) ];
+			argb[ v ] = 0xff000000 | c;
+			gray[ v ] = ( byte ) ( ( 77 * ( ( c >> 16 ) & 0xff ) + 151 * ( ( c >> 8 ) & 0xff ) + 28 * ( c & 0xff ) ) >> 8 );
+		}
+	}
+
+	public int[] getArgb()
+	{
+		return argb;
+	}
+
+	public byte[] getGray()
+	{
+		return gray;
+	}
+
+	/**
+	 * Linear ramp from black to the given RGB color.
+	 */
+	public static int[] colorRamp( final int color )
+	{
+		final int r = ( color >> 16 ) & 0xff;
+		final int g = ( color >> 8 ) & 0xff;
+		final int b = color & 0xff;
+		final int[] ramp = new int[ 256 ];
+		for ( int i = 0; i < 256; ++i )
+			ramp[ i ] = ( ( r * i / 255 ) << 16 ) | ( ( g * i / 255 ) << 8 ) | ( b * i / 255 );
+		return ramp;
+	}
+
+	/**
+	 * The "fire" ramp (black, blue, red, yellow, white).
+	 */
+	public static int[] fireRamp()
+	{
+		final int[][] points = {
+				{ 0, 0x000000 },
+				{ 64, 0x6000a0 },
+				{ 128, 0xe02000 },
+				{ 192, 0xffc000 },
+				{ 255, 0xffffff } };
+		final int[] ramp = new int[ 256 ];
+		for ( int p = 0; p < points.length - 1; ++p )
+		{
+			final int i0 = points[ p ][ 0 ];
+			final int i1 = points[ p + 1 ][ 0 ];
+			final int c0 = points[ p ][ 1 ];
+			final int c1 = points[ p + 1 ][ 1 ];
+			for ( int i = i0; i <= i1; ++i )
+			{
+				int c = 0;
+				for ( int shift = 0; shift <= 16; shift += 8 )
+				{
+					final int a = ( c0 >> shift ) & 0xff;
+					final int b = ( c1 >> shift ) & 0xff;
+					c |= ( a + ( b - a ) * ( i - i0 ) / ( i1 - i0 ) ) << shift;
+				}
+				ramp[ i ] = c;
+			}
+		}
+		return ramp;
+	}
+
+	/**
+	 * Get the ramp for a LUT name. Recognized are "fire", color names (gray,
+	 * white, red, green, blue, cyan, magenta, yellow), and 6-digit hex RGB
+	 * colors. Anything else is gray.
+	 */
+	public static int[] ramp( final String lut )
+	{
+		final String name = lut.toLowerCase();
+		if ( name.equals( "fire" ) )
+			return fireRamp();
+		else if ( name.equals( "red" ) )
+			return colorRamp( 0xff0000 );
+		else if ( name.equals( "green" ) )
+			return colorRamp( 0x00ff00 );
+		else if ( name.equals( "blue" ) )
+			return colorRamp( 0x0000ff );
+		else if ( name.equals( "cyan" ) )
+			return colorRamp( 0x00ffff );
+		else if ( name.equals( "magenta" ) )
+			return colorRamp( 0xff00ff );
+		else if ( name.equals( "yellow" ) )
+			return colorRamp( 0xffff00 );
+		else if ( name.matches( "[0-9a-f]{6}" ) )
+			return colorRamp( Integer.parseInt( name, 16 ) );
+		else
+			return colorRamp( 0xffffff );
+	}
+
+	/**
+	 * Recently used LUTs, so that repeated display settings do not rebuild
+	 * tables.
+	 */
+	private static final Map< String, DisplayLut > cache = new LinkedHashMap< String, DisplayLut >( 64, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, DisplayLut > eldest )
+		{
+			return size() > 64;
+		}
+	};
+
+	/**
+	 * Get a (possibly cached) LUT for the given display range and
+	 * {@link #ramp(String) LUT name}.
+	 */
+	public static DisplayLut get( final double min, final double max, final String lut )
+	{
+		final String key = min + "," + max + "," + lut.toLowerCase();
+		synchronized ( cache )
+		{
+			DisplayLut displayLut = cache.get( key );
+			if ( displayLut == null )
+			{
+				displayLut = new DisplayLut( min, max, ramp( lut ) );
+				cache.put( key, displayLut );
+			}
+			return displayLut;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package modifiedviewer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import modifiedviewer.Fusion.Blend;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Render several unsigned 16-bit sources fused into one value per pixel (see
+ * {@link Blend}), before the fused value is converted by a single
+ * {@link PixelSink}. For each stripe, the sources are sampled into separate
+ * blocks by parallel tasks, and the blocks are then combined pixel by pixel.
+ */
+public class FusedRenderer extends StripedRenderer< UnsignedShortType >
+{
+	private final Blend blend;
+
+	/**
+	 * Weight of each source.
+	 */
+	private final double[] weights;
+
+	/**
+	 * @param sources
+	 *            sources to fuse.
+	 * @param weights
+	 *            weight of each source.
+	 * @param blend
+	 *            how to fuse the source values.
+	 * @param sink
+	 *            converts the fused values.
+	 * @param pool
+	 *            pool to render on.
+	 */
+	public FusedRenderer( final List< ? extends RandomAccessible< UnsignedShortType > > sources, final double[] weights, final Blend blend, final PixelSink< UnsignedShortType > sink, final ForkJoinPool pool )
+	{
+		super( sources, Collections.singletonList( sink ), pool );
+		this.blend = blend;
+		this.weights = weights;
+	}
+
+	/**
+	 * Samples rows {@code [minY, maxY)} of one source into a block.
+	 */
+	@SuppressWarnings( "serial" )
+	class Sample extends RecursiveAction
+	{
+		final RandomAccessible< UnsignedShortType > source;
+
+		final int width;
+
+		final int minY;
+
+		final int maxY;
+
+		final short[] block;
+
+		Sample( final RandomAccessible< UnsignedShortType > source, final int width, final int minY, final int maxY, final short[] block )
+		{
+			this.source = source;
+			this.width = width;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.block = block;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final RandomAccess< UnsignedShortType > a = source.randomAccess();
+			a.setPosition( new long[ source.numDimensions() ] );
+			int i = 0;
+			for ( int y = minY; y < maxY; ++y )
+			{
+				if ( interrupted )
+					return;
+				a.setPosition( 0, 0 );
+				a.setPosition( y, 1 );
+				for ( int x = 0; x < width; ++x )
+				{
+					block[ i++ ] = ( short ) a.get().get();
+					a.fwd( 0 );
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void renderStripe( final int width, final int minY, final int maxY )
+	{
+		final int numSources = sources.size();
+		final int size = ( maxY - minY ) * width;
+		final short[][] blocks = new short[ numSources ][];
+		final ArrayList< Sample > tasks = new ArrayList< Sample >( numSources );
+		for ( int l = 0; l < numSources; ++l )
+		{
+			blocks[ l ] = new short[ size ];
+			tasks.add( new Sample( sources.get( l ), width, minY, maxY, blocks[ l ] ) );
+		}
+		ForkJoinTask.invokeAll( tasks );
+		if ( interrupted )
+			return;
+
+		final PixelSink.Writer< UnsignedShortType > writer = sinks.get( 0 ).createWriter();
+		final UnsignedShortType value = new UnsignedShortType();
+		final int offset = minY * width;
+		for ( int i = 0; i < size; ++i )
+		{
+			double v = 0;
+			switch ( blend )
+			{
+			case MAX:
+				for ( int l = 0; l < numSources; ++l )
+					v = Math.max( v, weights[ l ] * ( blocks[ l ][ i ] & 0xffff ) );
+				break;
+			case MEAN:
+				double sumWeights = 0;
+				for ( int l = 0; l < numSources; ++l )
+				{
+					final int s = blocks[ l ][ i ] & 0xffff;
+					if ( s != 0 )
+					{
+						v += weights[ l ] * s;
+						sumWeights += weights[ l ];
+					}
+				}
+				v = sumWeights > 0 ? v / sumWeights : 0;
+				break;
+			case SUM:
+			default:
+				for ( int l = 0; l < numSources; ++l )
+					v += weights[ l ] * ( blocks[ l ][ i ] & 0xffff );
+			}
+			value.set( Sinks.clampUint16( v ) );
+			writer.set( offset + i, value );
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package modifiedviewer;
+
+import java.util.ArrayList;
+
+import viewer.render.ViewerState;
+
+/**
+ * Which sources to render, and how to combine them. By default, the visible
+ * sources of the {@link ViewerState} are composited as display layers (each
+ * converted with its own display settings). With a {@link Blend} other than
+ * {@link Blend#NONE}, the unsigned 16-bit source values are fused into a
+ * single value first, which is then converted with the display settings of
+ * the first source (see {@link FusedRenderer}).
+ */
+public class Fusion
+{
+	/**
+	 * How to fuse the values of several sources.
+	 */
+	public static enum Blend
+	{
+		/**
+		 * Do not fuse, composite converted layers.
+		 */
+		NONE,
+
+		/**
+		 * Weighted sum, saturating at 65535.
+		 */
+		SUM,
+
+		/**
+		 * Maximum of the weighted values.
+		 */
+		MAX,
+
+		/**
+		 * Weighted mean of the sources with non-zero values (zero is taken as
+		 * "outside the source").
+		 */
+		MEAN;
+
+		/**
+		 * Parse a blend name (case-insensitive). Defaults to {@link #NONE}.
+		 */
+		public static Blend fromString( final String name )
+		{
+			for ( final Blend b : values() )
+				if ( b.name().equalsIgnoreCase( name ) )
+					return b;
+			return NONE;
+		}
+	}
+
+	static final double[] DEFAULT_WEIGHTS = new double[] { 1 };
+
+	/**
+	 * The visible sources of the state, composited as layers.
+	 */
+	public static final Fusion DEFAULT = new Fusion( null, Blend.NONE, DEFAULT_WEIGHTS );
+
+	/**
+	 * Indices of the sources to render, or {@code null} for the visible
+	 * sources of the state.
+	 */
+	private final int[] sources;
+
+	private final Blend blend;
+
+	/**
+	 * Weight of each source (by source index, the last value applies to all
+	 * further sources). Ignored for {@link Blend#NONE}.
+	 */
+	private final double[] weights;
+
+	public Fusion( final int[] sources, final Blend blend, final double[] weights )
+	{
+		this.sources = sources;
+		this.blend = blend;
+		this.weights = weights == null || weights.length == 0 ? DEFAULT_WEIGHTS : weights;
+	}
+
+	/**
+	 * Get the indices of the sources to render, or {@code null} for the
+	 * visible sources of the state.
+	 */
+	public int[] getSources()
+	{
+		return sources;
+	}
+
+	public Blend getBlend()
+	{
+		return blend;
+	}
+
+	public boolean isFused()
+	{
+		return blend != Blend.NONE;
+	}
+
+	/**
+	 * Get the weight of the given source.
+	 */
+	public double getWeight( final int source )
+	{
+		return weights[ Math.min( source, weights.length - 1 ) ];
+	}
+
+	public double[] getWeights()
+	{
+		return weights;
+	}
+
+	/**
+	 * Get the indices of the sources to render: the selected sources that
+	 * exist in {@code state}, or the visible sources of the state if none are
+	 * selected.
+	 */
+	public ArrayList< Integer > getSourceIndices( final ViewerState state )
+	{
+		if ( sources == null )
+			return state.getVisibleSourceIndices();
+		final int numSources = state.numSources();
+		final ArrayList< Integer > indices = new ArrayList< Integer >( sources.length );
+		for ( final int i : sources )
+			if ( i >= 0 && i < numSources && !indices.contains( i ) )
+				indices.add( i );
+		return indices;
+	}
+}
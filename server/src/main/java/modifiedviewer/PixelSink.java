@@ -0,0 +1,23 @@
+package modifiedviewer;
+
+/**
+ * Target of a {@link StripedRenderer}: a flat, row-major pixel array and the
+ * conversion of source values into it.
+ *
+ * @param <A>
+ *            source pixel type.
+ */
+public interface PixelSink< A >
+{
+	/**
+	 * Writes converted source values into the target array. One writer is
+	 * created for each stripe, so implementations may keep per-thread state
+	 * such as temporary variables.
+	 */
+	public interface Writer< A >
+	{
+		public void set( int index, A value );
+	}
+
+	public Writer< A > createWriter();
+}
@@ -0,0 +1,114 @@
+package modifiedviewer;
+
+/**
+ * Whether to render a single section, or to project a slab along the view
+ * axis (screen z) of the viewer transform. The slab extends from
+ * {@link #getZMin()} to {@link #getZMax()} relative to the rendered section,
+ * in screen z units. It is sampled once per source voxel crossed along the
+ * view axis, but at most {@link #MAX_SAMPLES} times (see
+ * {@link SlabProjector}).
+ */
+public class Projection
+{
+	/**
+	 * How to project the samples of a slab.
+	 */
+	public static enum Mode
+	{
+		/**
+		 * Render a single section.
+		 */
+		NONE,
+
+		/**
+		 * Maximum intensity projection.
+		 */
+		MAX,
+
+		/**
+		 * Mean of the non-zero samples (zero is taken as "outside the
+		 * source").
+		 */
+		MEAN;
+
+		/**
+		 * Parse a mode name (case-insensitive). Defaults to {@link #NONE}.
+		 */
+		public static Mode fromString( final String name )
+		{
+			for ( final Mode m : values() )
+				if ( m.name().equalsIgnoreCase( name ) )
+					return m;
+			return NONE;
+		}
+	}
+
+	/**
+	 * Maximum number of samples per pixel and source. Thicker slabs are
+	 * rendered at coarser mipmap levels, or sampled more sparsely.
+	 */
+	public static final int MAX_SAMPLES = 32;
+
+	/**
+	 * A single section.
+	 */
+	public static final Projection NONE = new Projection( Mode.NONE, 0, 0 );
+
+	private final Mode mode;
+
+	private final double zMin;
+
+	private final double zMax;
+
+	public Projection( final Mode mode, final double zMin, final double zMax )
+	{
+		this.mode = mode;
+		this.zMin = Math.min( zMin, zMax );
+		this.zMax = Math.max( zMin, zMax );
+	}
+
+	/**
+	 * Create a projection of a slab of the given thickness, centered on the
+	 * rendered section.
+	 */
+	public static Projection centered( final Mode mode, final double thickness )
+	{
+		final double h = 0.5 * Math.abs( thickness );
+		return new Projection( mode, -h, h );
+	}
+
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	public boolean isProjected()
+	{
+		return mode != Mode.NONE;
+	}
+
+	public double getZMin()
+	{
+		return zMin;
+	}
+
+	public double getZMax()
+	{
+		return zMax;
+	}
+
+	public double getThickness()
+	{
+		return zMax - zMin;
+	}
+
+	/**
+	 * Get the number of samples for a source that has
+	 * {@code voxelsPerUnit} voxels per screen z unit.
+	 */
+	public int getNumSamples( final double voxelsPerUnit )
+	{
+		final double voxels = getThickness() * voxelsPerUnit;
+		return ( int ) Math.min( MAX_SAMPLES, Math.floor( voxels ) + 1 );
+	}
+}
@@ -0,0 +1,240 @@
+package modifiedviewer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import viewer.render.Source;
+
+/**
+ * Estimates how long it takes to render a pixel from a given {@link Source} at
+ * a given mipmap level. Estimates are learned from measured render times
+ * (which include loading the blocks that were not cached) and are used to
+ * choose the finest mipmap levels that can be rendered within a time budget.
+ *
+ * One model is shared by all {@link TileRenderer}s by default. Estimates are
+ * kept per (dataset, setup, level) for {@link SetupSource}s, such that all
+ * renderers of a dataset learn together, and per source instance otherwise.
+ */
+public class RenderCostModel
+{
+	/**
+	 * A source that shows one setup of a dataset. Sources of the same dataset
+	 * (compared by identity) and setup share their estimates.
+	 */
+	public interface SetupSource
+	{
+		public Object getDataset();
+
+		public int getSetup();
+	}
+
+	/**
+	 * Weight of a new measurement in the moving averages.
+	 */
+	final static double ALPHA = 0.1;
+
+	/**
+	 * The estimate is the mean plus this many mean absolute deviations, such
+	 * that renders that have to load blocks from disk are accounted for.
+	 */
+	final static double DEVIATIONS = 2;
+
+	/**
+	 * Moving averages of the render time per pixel (ns) and its deviation, for
+	 * each mipmap level of a source.
+	 */
+	private static class Levels
+	{
+		final double[] mean;
+
+		final double[] deviation;
+
+		final boolean[] measured;
+
+		/**
+		 * Volume of a voxel at each level (relative to the global
+		 * coordinate system), or 0 if unknown.
+		 */
+		final double[] voxelVolume;
+
+		Levels( final Source< ? > source )
+		{
+			final int numLevels = source.getNumMipmapLevels();
+			mean = new double[ numLevels ];
+			deviation = new double[ numLevels ];
+			measured = new boolean[ numLevels ];
+			voxelVolume = new double[ numLevels ];
+			for ( int level = 0; level < numLevels; ++level )
+			{
+				final AffineTransform3D t = source.getSourceTransform( 0, level );
+				voxelVolume[ level ] = t == null ? 0 : Math.abs( determinant( t ) );
+			}
+		}
+	}
+
+	private final static RenderCostModel shared = new RenderCostModel();
+
+	/**
+	 * Get the model shared by all {@link TileRenderer}s.
+	 */
+	public static RenderCostModel getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * Estimates of {@link SetupSource}s, by dataset and setup.
+	 */
+	private final WeakHashMap< Object, HashMap< Integer, Levels > > datasets;
+
+	/**
+	 * Estimates of other sources.
+	 */
+	private final WeakHashMap< Source< ? >, Levels > sources;
+
+	public RenderCostModel()
+	{
+		datasets = new WeakHashMap< Object, HashMap< Integer, Levels > >();
+		sources = new WeakHashMap< Source< ? >, Levels >();
+	}
+
+	private Levels getLevels( final Source< ? > source )
+	{
+		if ( source instanceof SetupSource )
+		{
+			final SetupSource s = ( SetupSource ) source;
+			HashMap< Integer, Levels > setups = datasets.get( s.getDataset() );
+			if ( setups == null )
+			{
+				setups = new HashMap< Integer, Levels >();
+				datasets.put( s.getDataset(), setups );
+			}
+			Levels levels = setups.get( s.getSetup() );
+			if ( levels == null )
+			{
+				levels = new Levels( source );
+				setups.put( s.getSetup(), levels );
+			}
+			return levels;
+		}
+
+		Levels levels = sources.get( source );
+		if ( levels == null )
+		{
+			levels = new Levels( source );
+			sources.put( source, levels );
+		}
+		return levels;
+	}
+
+	/**
+	 * Add a measurement.
+	 *
+	 * @param nanosPerPixel
+	 *            time it took to render a pixel from {@code source} at
+	 *            mipmap level {@code level}.
+	 */
+	public synchronized void update( final Source< ? > source, final int level, final double nanosPerPixel )
+	{
+		final Levels levels = getLevels( source );
+		if ( level < 0 || level >= levels.mean.length )
+			return;
+		if ( levels.measured[ level ] )
+		{
+			final double diff = nanosPerPixel - levels.mean[ level ];
+			levels.mean[ level ] += ALPHA * diff;
+			levels.deviation[ level ] += ALPHA * ( Math.abs( diff ) - levels.deviation[ level ] );
+		}
+		else
+		{
+			levels.mean[ level ] = nanosPerPixel;
+			levels.deviation[ level ] = 0;
+			levels.measured[ level ] = true;
+		}
+	}
+
+	/**
+	 * Get the estimated time (ns) to render a pixel from {@code source} at
+	 * mipmap level {@code level}. Levels that were never measured are
+	 * estimated from the nearest measured level (the finer one if there are
+	 * two), scaled by the ratio of their voxel counts. If no level was
+	 * measured, the estimate is 0, such that the levels are tried (and
+	 * measured) eventually.
+	 */
+	public synchronized double estimate( final Source< ? > source, final int level )
+	{
+		final Levels levels = getLevels( source );
+		final int n = levels.mean.length;
+		if ( level < 0 || level >= n )
+			return 0;
+		if ( levels.measured[ level ] )
+			return estimate( levels, level );
+		for ( int d = 1; d < n; ++d )
+			for ( final int l : new int[] { level - d, level + d } )
+				if ( l >= 0 && l < n && levels.measured[ l ] )
+				{
+					final double from = levels.voxelVolume[ l ];
+					final double to = levels.voxelVolume[ level ];
+					final double voxelRatio = from > 0 && to > 0 ? from / to : 1;
+					return estimate( levels, l ) * voxelRatio;
+				}
+		return 0;
+	}
+
+	private static double estimate( final Levels levels, final int level )
+	{
+		return levels.mean[ level ] + DEVIATIONS * levels.deviation[ level ];
+	}
+
+	private static double determinant( final AffineTransform3D t )
+	{
+		return t.get( 0, 0 ) * ( t.get( 1, 1 ) * t.get( 2, 2 ) - t.get( 1, 2 ) * t.get( 2, 1 ) )
+				- t.get( 0, 1 ) * ( t.get( 1, 0 ) * t.get( 2, 2 ) - t.get( 1, 2 ) * t.get( 2, 0 ) )
+				+ t.get( 0, 2 ) * ( t.get( 1, 0 ) * t.get( 2, 1 ) - t.get( 1, 1 ) * t.get( 2, 0 ) );
+	}
+
+	/**
+	 * Choose mipmap levels to render within a time budget. Starting from
+	 * {@code bestLevels}, all visible sources are made one level coarser at a
+	 * time, until the estimated render time fits in the budget or all sources
+	 * are at their coarsest level.
+	 *
+	 * @param sources
+	 *            all sources.
+	 * @param visibleSourceIndices
+	 *            indices of the sources that are rendered.
+	 * @param bestLevels
+	 *            the best mipmap level of each source.
+	 * @param maxLevels
+	 *            the coarsest mipmap level of each source.
+	 * @param numPixels
+	 *            number of pixels to render.
+	 * @param budgetNanos
+	 *            time budget.
+	 * @return chosen mipmap level of each source.
+	 */
+	public synchronized int[] chooseLevels( final List< ? extends Source< ? > > sources, final List< Integer > visibleSourceIndices, final int[] bestLevels, final int[] maxLevels, final long numPixels, final long budgetNanos )
+	{
+		final int[] levels = bestLevels.clone();
+		while ( true )
+		{
+			double nanos = 0;
+			for ( final int i : visibleSourceIndices )
+				nanos += estimate( sources.get( i ), levels[ i ] ) * numPixels;
+			if ( nanos <= budgetNanos )
+				return levels;
+
+			boolean coarsened = false;
+			for ( final int i : visibleSourceIndices )
+				if ( levels[ i ] < maxLevels[ i ] )
+				{
+					++levels[ i ];
+					coarsened = true;
+				}
+			if ( !coarsened )
+				return levels;
+		}
+	}
+}
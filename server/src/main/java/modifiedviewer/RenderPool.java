@@ -0,0 +1,28 @@
+package modifiedviewer;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the {@link ForkJoinPool} that is shared by all {@link TileRenderer}s.
+ * By default, it has one thread per available processor.
+ */
+public class RenderPool
+{
+	private static ForkJoinPool sharedPool = null;
+
+	public static synchronized ForkJoinPool getSharedPool()
+	{
+		if ( sharedPool == null )
+			sharedPool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+		return sharedPool;
+	}
+
+	/**
+	 * Replace the shared pool, e.g. to change its parallelism. Must be called
+	 * before the first {@link TileRenderer} is created.
+	 */
+	public static synchronized void setSharedPool( final ForkJoinPool pool )
+	{
+		sharedPool = pool;
+	}
+}
@@ -0,0 +1,122 @@
+package modifiedviewer;
+
+import modifiedviewer.TileRenderer.TargetType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * What and how {@link TileRenderer#paint(viewer.render.ViewerState, int, int, RenderSettings)}
+ * renders. Settings that are not set keep their defaults: an ARGB target using
+ * the converters of the sources, the best mipmap level, no time budget, the
+ * visible sources, and no projection.
+ */
+public class RenderSettings
+{
+	private TargetType type = TargetType.ARGB;
+
+	private DisplayLut[] luts = null;
+
+	private int mipmapLevel = -1;
+
+	private long budgetNanos = 0;
+
+	private Fusion fusion = Fusion.DEFAULT;
+
+	private Projection projection = Projection.NONE;
+
+	/**
+	 * Render to {@link TileRenderer#getScreenImage()} (ARGB),
+	 * {@link TileRenderer#getGrayImage()} (GRAY), or
+	 * {@link TileRenderer#getUint16Data()} (UINT16).
+	 */
+	public RenderSettings type( final TargetType type )
+	{
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * If not {@code null}, ARGB and GRAY targets are rendered by looking up
+	 * source values in these tables (one per source) instead of using the
+	 * converters of the sources. Sources must be {@link UnsignedShortType} in
+	 * this case.
+	 */
+	public RenderSettings luts( final DisplayLut[] luts )
+	{
+		this.luts = luts;
+		return this;
+	}
+
+	/**
+	 * Mipmap level to render. If negative, the best mipmap level for the
+	 * current transform is used, coarsened for thick projected slabs. Levels
+	 * beyond the coarsest level of a source are clamped.
+	 */
+	public RenderSettings mipmapLevel( final int mipmapLevel )
+	{
+		this.mipmapLevel = mipmapLevel;
+		return this;
+	}
+
+	/**
+	 * If positive and the mipmap level is negative, use the finest mipmap
+	 * levels that are expected to render within this time (see
+	 * {@link RenderCostModel}). {@link TileRenderer#isLastPaintDegraded()}
+	 * tells whether these are coarser than the best levels.
+	 */
+	public RenderSettings budgetNanos( final long budgetNanos )
+	{
+		this.budgetNanos = budgetNanos;
+		return this;
+	}
+
+	/**
+	 * Which sources to render, and whether to fuse their values (see
+	 * {@link FusedRenderer}). Fused sources must be {@link UnsignedShortType}.
+	 */
+	public RenderSettings fusion( final Fusion fusion )
+	{
+		this.fusion = fusion;
+		return this;
+	}
+
+	/**
+	 * Whether to project a slab along the view axis (see
+	 * {@link SlabProjector}). Only applies if LUTs are given, or to UINT16
+	 * targets. Projected sources must be {@link UnsignedShortType}.
+	 */
+	public RenderSettings projection( final Projection projection )
+	{
+		this.projection = projection;
+		return this;
+	}
+
+	public TargetType getType()
+	{
+		return type;
+	}
+
+	public DisplayLut[] getLuts()
+	{
+		return luts;
+	}
+
+	public int getMipmapLevel()
+	{
+		return mipmapLevel;
+	}
+
+	public long getBudgetNanos()
+	{
+		return budgetNanos;
+	}
+
+	public Fusion getFusion()
+	{
+		return fusion;
+	}
+
+	public Projection getProjection()
+	{
+		return projection;
+	}
+}
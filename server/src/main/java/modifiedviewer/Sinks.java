@@ -0,0 +1,213 @@
+package modifiedviewer;
+
+import net.imglib2.converter.Converter;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * {@link PixelSink} implementations for the tile targets.
+ */
+public class Sinks
+{
+	/**
+	 * Convert to ARGB with a {@link Converter} and write to an {@code int[]}.
+	 */
+	public static < A > PixelSink< A > argb( final int[] data, final Converter< ? super A, ARGBType > converter )
+	{
+		return new PixelSink< A >()
+		{
+			@Override
+			public Writer< A > createWriter()
+			{
+				final ARGBType argb = new ARGBType();
+				return new Writer< A >()
+				{
+					@Override
+					public void set( final int index, final A value )
+					{
+						converter.convert( value, argb );
+						data[ index ] = argb.get();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Map real values linearly from [min, max] to [0, 255] and write to a
+	 * {@code byte[]}.
+	 */
+	public static < A extends RealType< A > > PixelSink< A > gray( final byte[] data, final double min, final double max )
+	{
+		final double scale = 255.0 / ( max - min );
+		return new PixelSink< A >()
+		{
+			@Override
+			public Writer< A > createWriter()
+			{
+				return new Writer< A >()
+				{
+					@Override
+					public void set( final int index, final A value )
+					{
+						final double v = ( value.getRealDouble() - min ) * scale;
+						data[ index ] = ( byte ) ( v <= 0 ? 0 : v >= 255 ? 255 : ( int ) ( v + 0.5 ) );
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Convert to ARGB with a {@link Converter} and write the luminance to a
+	 * {@code byte[]}. For gray ARGB values (r = g = b), the luminance equals
+	 * the channel value.
+	 */
+	public static < A > PixelSink< A > argbToGray( final byte[] data, final Converter< ? super A, ARGBType > converter )
+	{
+		return new PixelSink< A >()
+		{
+			@Override
+			public Writer< A > createWriter()
+			{
+				final ARGBType argb = new ARGBType();
+				return new Writer< A >()
+				{
+					@Override
+					public void set( final int index, final A value )
+					{
+						converter.convert( value, argb );
+						final int v = argb.get();
+						data[ index ] = ( byte ) ( ( 77 * ( ( v >> 16 ) & 0xff ) + 151 * ( ( v >> 8 ) & 0xff ) + 28 * ( v & 0xff ) ) >> 8 );
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Write real values, clamped to [0, 65535], to a {@code short[]}.
+	 */
+	public static < A extends RealType< A > > PixelSink< A > uint16( final short[] data )
+	{
+		return new PixelSink< A >()
+		{
+			@Override
+			public Writer< A > createWriter()
+			{
+				return new Writer< A >()
+				{
+					@Override
+					public void set( final int index, final A value )
+					{
+						data[ index ] = ( short ) clampUint16( value.getRealDouble() );
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Add real values to the unsigned 16-bit values in a {@code short[]},
+	 * saturating at 65535.
+	 */
+	public static < A extends RealType< A > > PixelSink< A > uint16Add( final short[] data )
+	{
+		return new PixelSink< A >()
+		{
+			@Override
+			public Writer< A > createWriter()
+			{
+				return new Writer< A >()
+				{
+					@Override
+					public void set( final int index, final A value )
+					{
+						data[ index ] = ( short ) clampUint16( ( data[ index ] & 0xffff ) + value.getRealDouble() );
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Look up ARGB values of unsigned 16-bit values in a {@link DisplayLut}.
+	 * If {@code add}, add to the existing ARGB values (saturating per
+	 * channel), otherwise overwrite them.
+	 */
+	public static PixelSink< UnsignedShortType > lutArgb( final int[] data, final DisplayLut lut, final boolean add )
+	{
+		final int[] table = lut.getArgb();
+		return new PixelSink< UnsignedShortType >()
+		{
+			@Override
+			public Writer< UnsignedShortType > createWriter()
+			{
+				if ( add )
+					return new Writer< UnsignedShortType >()
+					{
+						@Override
+						public void set( final int index, final UnsignedShortType value )
+						{
+							final int a = data[ index ];
+							final int b = table[ value.get() ];
+							final int r = Math.min( 255, ( ( a >> 16 ) & 0xff ) + ( ( b >> 16 ) & 0xff ) );
+							final int g = Math.min( 255, ( ( a >> 8 ) & 0xff ) + ( ( b >> 8 ) & 0xff ) );
+							final int bl = Math.min( 255, ( a & 0xff ) + ( b & 0xff ) );
+							data[ index ] = 0xff000000 | ( r << 16 ) | ( g << 8 ) | bl;
+						}
+					};
+				else
+					return new Writer< UnsignedShortType >()
+					{
+						@Override
+						public void set( final int index, final UnsignedShortType value )
+						{
+							data[ index ] = table[ value.get() ];
+						}
+					};
+			}
+		};
+	}
+
+	/**
+	 * Look up gray values of unsigned 16-bit values in a {@link DisplayLut}.
+	 * If {@code add}, add to the existing gray values (saturating), otherwise
+	 * overwrite them.
+	 */
+	public static PixelSink< UnsignedShortType > lutGray( final byte[] data, final DisplayLut lut, final boolean add )
+	{
+		final byte[] table = lut.getGray();
+		return new PixelSink< UnsignedShortType >()
+		{
+			@Override
+			public Writer< UnsignedShortType > createWriter()
+			{
+				if ( add )
+					return new Writer< UnsignedShortType >()
+					{
+						@Override
+						public void set( final int index, final UnsignedShortType value )
+						{
+							data[ index ] = ( byte ) Math.min( 255, ( data[ index ] & 0xff ) + ( table[ value.get() ] & 0xff ) );
+						}
+					};
+				else
+					return new Writer< UnsignedShortType >()
+					{
+						@Override
+						public void set( final int index, final UnsignedShortType value )
+						{
+							data[ index ] = table[ value.get() ];
+						}
+					};
+			}
+		};
+	}
+
+	static int clampUint16( final double v )
+	{
+		return v <= 0 ? 0 : v >= 65535 ? 65535 : ( int ) ( v + 0.5 );
+	}
+}
@@ -0,0 +1,121 @@
+package modifiedviewer;
+
+import modifiedviewer.Projection.Mode;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Projects a slab of a 3D source along z. The value at {@code (x, y, z)} is
+ * the projection of the source values at {@code (x, y, z)} ...
+ * {@code (x, y, z + numSamples - 1)}, i.e., the source is expected to be
+ * transformed such that consecutive integer z positions are the samples of
+ * the slab. The samples are read one after another while the projection is
+ * accumulated, so no sections are stored.
+ */
+public class SlabProjector< T extends RealType< T > > implements RandomAccessible< T >
+{
+	private final RandomAccessible< T > source;
+
+	private final int numSamples;
+
+	private final Mode mode;
+
+	/**
+	 * @param source
+	 *            the source, with the samples of the slab at consecutive z
+	 *            positions.
+	 * @param numSamples
+	 *            number of samples per pixel.
+	 * @param mode
+	 *            how to project the samples ({@link Mode#MAX} or
+	 *            {@link Mode#MEAN}).
+	 */
+	public SlabProjector( final RandomAccessible< T > source, final int numSamples, final Mode mode )
+	{
+		this.source = source;
+		this.numSamples = Math.max( 1, numSamples );
+		this.mode = mode;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return source.numDimensions();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new SlabRandomAccess();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	class SlabRandomAccess extends Point implements RandomAccess< T >
+	{
+		private final RandomAccess< T > a;
+
+		private final T value;
+
+		SlabRandomAccess()
+		{
+			super( source.numDimensions() );
+			a = source.randomAccess();
+			value = a.get().createVariable();
+		}
+
+		@Override
+		public T get()
+		{
+			a.setPosition( position );
+			double v = 0;
+			if ( mode == Mode.MEAN )
+			{
+				int n = 0;
+				for ( int k = 0; k < numSamples; ++k )
+				{
+					final double s = a.get().getRealDouble();
+					if ( s != 0 )
+					{
+						v += s;
+						++n;
+					}
+					a.fwd( 2 );
+				}
+				if ( n > 0 )
+					v /= n;
+			}
+			else
+			{
+				for ( int k = 0; k < numSamples; ++k )
+				{
+					v = Math.max( v, a.get().getRealDouble() );
+					a.fwd( 2 );
+				}
+			}
+			value.setReal( v );
+			return value;
+		}
+
+		@Override
+		public SlabRandomAccess copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public SlabRandomAccess copyRandomAccess()
+		{
+			final SlabRandomAccess c = new SlabRandomAccess();
+			c.setPosition( this );
+			return c;
+		}
+	}
+}
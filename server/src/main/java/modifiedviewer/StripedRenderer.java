@@ -0,0 +1,177 @@
+package modifiedviewer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+
+/**
+ * Render a 2D {@link RandomAccessible} into a {@link PixelSink}. Several
+ * sources can be rendered as layers into the same target, where each layer has
+ * its own sink (e.g., one that overwrites and others that accumulate). The
+ * target is split into horizontal stripes that are rendered as tasks of a
+ * {@link ForkJoinPool}. The pool is shared by all tiles that are rendered
+ * concurrently, so a single tile can use all cores under light load and many
+ * tiles do not oversubscribe the cores under heavy load.
+ * <p>
+ * Rendering can be {@link #cancel() cancelled} from another thread.
+ *
+ * @param <A>
+ *            source pixel type.
+ */
+public class StripedRenderer< A >
+{
+	/**
+	 * Stripes are split no further than this many rows.
+	 */
+	public static final int DEFAULT_STRIPE_HEIGHT = 16;
+
+	final protected List< ? extends RandomAccessible< A > > sources;
+
+	final protected List< ? extends PixelSink< A > > sinks;
+
+	final protected ForkJoinPool pool;
+
+	final protected int stripeHeight;
+
+	/**
+	 * Set by {@link #cancel()}. Checked by stripes before rendering each row.
+	 */
+	protected volatile boolean interrupted;
+
+	protected long lastFrameRenderNanoTime;
+
+	/**
+	 * @param sources
+	 *            layers to render, in order.
+	 * @param sinks
+	 *            sink for each layer.
+	 * @param pool
+	 *            pool to render on.
+	 * @param stripeHeight
+	 *            stripes are split no further than this many rows.
+	 */
+	public StripedRenderer( final List< ? extends RandomAccessible< A > > sources, final List< ? extends PixelSink< A > > sinks, final ForkJoinPool pool, final int stripeHeight )
+	{
+		this.sources = sources;
+		this.sinks = sinks;
+		this.pool = pool;
+		this.stripeHeight = stripeHeight;
+		interrupted = false;
+		lastFrameRenderNanoTime = -1;
+	}
+
+	public StripedRenderer( final List< ? extends RandomAccessible< A > > sources, final List< ? extends PixelSink< A > > sinks, final ForkJoinPool pool )
+	{
+		this( sources, sinks, pool, DEFAULT_STRIPE_HEIGHT );
+	}
+
+	public StripedRenderer( final RandomAccessible< A > source, final PixelSink< A > sink, final ForkJoinPool pool )
+	{
+		this( Collections.singletonList( source ), Collections.singletonList( sink ), pool, DEFAULT_STRIPE_HEIGHT );
+	}
+
+	/**
+	 * Render the target image. Blocks until all stripes are done.
+	 *
+	 * @param width
+	 *            width of the target image.
+	 * @param height
+	 *            height of the target image.
+	 * @return {@code true} if rendering completed, {@code false} if it was
+	 *         {@link #cancel() cancelled}.
+	 */
+	public boolean map( final int width, final int height )
+	{
+		final long startTime = System.nanoTime();
+		if ( !interrupted )
+			pool.invoke( new Stripe( width, 0, height ) );
+		lastFrameRenderNanoTime = System.nanoTime() - startTime;
+		return !interrupted;
+	}
+
+	/**
+	 * Abort the current (or next) {@link #map}.
+	 */
+	public void cancel()
+	{
+		interrupted = true;
+	}
+
+	/**
+	 * How many nano-seconds did the last {@link #map} take.
+	 */
+	public long getLastFrameRenderNanoTime()
+	{
+		return lastFrameRenderNanoTime;
+	}
+
+	/**
+	 * Renders rows {@code [minY, maxY)}, after splitting into halves until at
+	 * most {@link #stripeHeight} rows remain.
+	 */
+	@SuppressWarnings( "serial" )
+	class Stripe extends RecursiveAction
+	{
+		final int width;
+
+		final int minY;
+
+		final int maxY;
+
+		Stripe( final int width, final int minY, final int maxY )
+		{
+			this.width = width;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( interrupted )
+				return;
+
+			final int rows = maxY - minY;
+			if ( rows > stripeHeight )
+			{
+				final int midY = minY + rows / 2;
+				invokeAll( new Stripe( width, minY, midY ), new Stripe( width, midY, maxY ) );
+				return;
+			}
+
+			renderStripe( width, minY, maxY );
+		}
+	}
+
+	/**
+	 * Render rows {@code [minY, maxY)} of all layers. Called from the tasks
+	 * of the pool.
+	 */
+	protected void renderStripe( final int width, final int minY, final int maxY )
+	{
+		for ( int l = 0; l < sources.size(); ++l )
+		{
+			final RandomAccessible< A > source = sources.get( l );
+			final RandomAccess< A > sourceRandomAccess = source.randomAccess();
+			sourceRandomAccess.setPosition( new long[ source.numDimensions() ] );
+			final PixelSink.Writer< A > writer = sinks.get( l ).createWriter();
+			for ( int y = minY; y < maxY; ++y )
+			{
+				if ( interrupted )
+					return;
+				sourceRandomAccess.setPosition( 0, 0 );
+				sourceRandomAccess.setPosition( y, 1 );
+				int i = y * width;
+				for ( int x = 0; x < width; ++x )
+				{
+					writer.set( i++, sourceRandomAccess.get() );
+					sourceRandomAccess.fwd( 0 );
+				}
+			}
+		}
+	}
+}
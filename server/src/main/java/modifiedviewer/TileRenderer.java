@@ -0,0 +1,725 @@
+package modifiedviewer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.TypeIdentity;
+import net.imglib2.display.ARGBScreenImage;
+import net.imglib2.display.RealARGBConverter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.sampler.special.ConstantRandomAccessible;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import viewer.GuiHelpers;
+import viewer.display.AccumulateARGB;
+import viewer.render.Interpolation;
+import viewer.render.Source;
+import viewer.render.SourceState;
+import viewer.render.ViewerState;
+
+public class TileRenderer
+{
+	/**
+	 * What to render.
+	 */
+	public static enum TargetType
+	{
+		/**
+		 * ARGB, using the converters of the sources.
+		 */
+		ARGB,
+
+		/**
+		 * 8-bit gray.
+		 */
+		GRAY,
+
+		/**
+		 * Unsigned 16-bit source values (sum of visible sources).
+		 */
+		UINT16
+	}
+
+	/**
+	 * Currently active projector, used to re-paint the display. It maps the
+	 * {@link #source} data to {@link #screenImage}.
+	 */
+	protected StripedRenderer< ? > projector;
+
+	/**
+	 * Whether {@link #cancel()} was called since the last
+	 * {@link #resetCancel()}. If set, the projector of the next {@link #paint}
+	 * is cancelled right away.
+	 */
+	protected boolean cancelled;
+
+	/**
+	 * Used to render the tile for encoding.
+	 */
+	protected ARGBScreenImage screenImage;
+
+	/**
+	 * {@link BufferedImage} wrapping the data in the {@link #screenImage}.
+	 */
+	protected BufferedImage bufferedImage;
+
+	/**
+	 * 8-bit gray {@link BufferedImage}, used to render grayscale tiles.
+	 */
+	protected BufferedImage grayImage;
+
+	/**
+	 * The data of {@link #grayImage}.
+	 */
+	protected byte[] grayData;
+
+	/**
+	 * Used to render unsigned 16-bit tiles.
+	 */
+	protected short[] uint16Data;
+
+	protected int uint16Width;
+
+	protected int uint16Height;
+
+	/**
+	 * The mipmap level of each source in the last {@link #paint}.
+	 */
+	protected int[] lastMipmapLevel;
+
+	/**
+	 * The indices of the sources rendered in the last {@link #paint}.
+	 */
+	protected ArrayList< Integer > lastSourceIndices;
+
+	/**
+	 * The index of the coarsest mipmap level.
+	 */
+	protected int[] maxMipmapLevel;
+
+	/**
+	 * Whether the last {@link #paint} used coarser mipmap levels than the best
+	 * ones, to meet its time budget.
+	 */
+	protected boolean lastPaintDegraded;
+
+	/**
+	 * Time (ns) it took to create the projector in the last {@link #paint}.
+	 */
+	protected long lastProjectorNanoTime;
+
+	/**
+	 * Time (ns) it took to render (including loading source data) in the last
+	 * {@link #paint}.
+	 */
+	protected long lastRenderNanoTime;
+
+	/**
+	 * Stripes of all tiles are rendered on this pool.
+	 */
+	final protected ForkJoinPool renderPool;
+
+	/**
+	 * Render times are recorded in and estimated by this model.
+	 */
+	final protected RenderCostModel costModel;
+
+	/**
+	 * @param renderPool
+	 *            pool to render on.
+	 * @param costModel
+	 *            model to record render times in and to choose mipmap levels
+	 *            for a time budget.
+	 */
+	public TileRenderer( final ForkJoinPool renderPool, final RenderCostModel costModel )
+	{
+		projector = null;
+		cancelled = false;
+		screenImage = null;
+		bufferedImage = null;
+		grayImage = null;
+		grayData = null;
+		uint16Data = null;
+		lastMipmapLevel = new int[ 0 ];
+		lastSourceIndices = new ArrayList< Integer >();
+		maxMipmapLevel = new int[ 0 ];
+		lastPaintDegraded = false;
+
+		this.renderPool = renderPool;
+		this.costModel = costModel;
+	}
+
+	/**
+	 * Use the {@link RenderCostModel#getShared() shared cost model}.
+	 *
+	 * @param renderPool
+	 *            pool to render on.
+	 */
+	public TileRenderer( final ForkJoinPool renderPool )
+	{
+		this( renderPool, RenderCostModel.getShared() );
+	}
+
+	/**
+	 * Render on the {@link RenderPool#getSharedPool() shared pool}.
+	 */
+	public TileRenderer()
+	{
+		this( RenderPool.getSharedPool() );
+	}
+
+	public synchronized ARGBScreenImage getScreenImage()
+	{
+		return screenImage;
+	}
+
+	public synchronized BufferedImage getBufferedImage()
+	{
+		return bufferedImage;
+	}
+
+	public synchronized BufferedImage getGrayImage()
+	{
+		return grayImage;
+	}
+
+	public synchronized byte[] getGrayData()
+	{
+		return grayData;
+	}
+
+	public synchronized short[] getUint16Data()
+	{
+		return uint16Data;
+	}
+
+	public synchronized int[] getLastMipmapLevel()
+	{
+		return lastMipmapLevel;
+	}
+
+	public synchronized ArrayList< Integer > getLastSourceIndices()
+	{
+		return lastSourceIndices;
+	}
+
+	public synchronized boolean isLastPaintDegraded()
+	{
+		return lastPaintDegraded;
+	}
+
+	public synchronized long getLastProjectorNanoTime()
+	{
+		return lastProjectorNanoTime;
+	}
+
+	public synchronized long getLastRenderNanoTime()
+	{
+		return lastRenderNanoTime;
+	}
+
+	/**
+	 * Cancel the currently active (or next) rendering. {@link #paint} will
+	 * return {@code false}.
+	 */
+	public synchronized void cancel()
+	{
+		cancelled = true;
+		if ( projector != null )
+			projector.cancel();
+	}
+
+	/**
+	 * Clear the cancelled flag set by {@link #cancel()}.
+	 */
+	public synchronized void resetCancel()
+	{
+		cancelled = false;
+	}
+
+	/**
+	 * Check whether the tile size was changed and recreate the target of the
+	 * given type accordingly.
+	 */
+	protected synchronized void checkResize( final int tileW, final int tileH, final TargetType type )
+	{
+		if ( type == TargetType.UINT16 )
+		{
+			if ( uint16Data == null || uint16Width != tileW || uint16Height != tileH )
+			{
+				uint16Data = new short[ tileW * tileH ];
+				uint16Width = tileW;
+				uint16Height = tileH;
+			}
+		}
+		else if ( type == TargetType.GRAY )
+		{
+			if ( grayImage == null || grayImage.getWidth() != tileW || grayImage.getHeight() != tileH )
+			{
+				grayImage = new BufferedImage( tileW, tileH, BufferedImage.TYPE_BYTE_GRAY );
+				grayData = ( ( DataBufferByte ) grayImage.getRaster().getDataBuffer() ).getData();
+			}
+		}
+		else if ( screenImage == null || screenImage.dimension( 0 ) != tileW || screenImage.dimension( 1 ) != tileH )
+		{
+			screenImage = new ARGBScreenImage( tileW, tileH );
+			bufferedImage = GuiHelpers.getBufferedImage( screenImage );
+		}
+	}
+
+	/**
+	 * Check whether the number of sources in the state has changed and recreate
+	 * mipmap arrays if necessary.
+	 */
+	protected synchronized void checkNumSourcesChanged( final ViewerState state )
+	{
+		final int numSources = state.numSources();
+		if ( numSources != maxMipmapLevel.length )
+		{
+			final List< SourceState< ? >> sources = state.getSources();
+			maxMipmapLevel = new int[ numSources ];
+			for ( int i = 0; i < maxMipmapLevel.length; ++i )
+				maxMipmapLevel[ i ] = sources.get( i ).getSpimSource().getNumMipmapLevels() - 1;
+		}
+	}
+
+	private final static AffineTransform3D identityTransform = new AffineTransform3D();
+
+	/**
+	 * Render ARGB image to {@link #screenImage}.
+	 */
+	public boolean paint( final ViewerState state, final int tileW, final int tileH )
+	{
+		return paint( state, tileW, tileH, new RenderSettings() );
+	}
+
+	/**
+	 * Render image to {@link #screenImage} (ARGB), {@link #grayImage} (GRAY),
+	 * or {@link #uint16Data} (UINT16), as specified by {@code settings}.
+	 */
+	public boolean paint( final ViewerState state, final int tileW, final int tileH, final RenderSettings settings )
+	{
+		final TargetType type = settings.getType();
+		final DisplayLut[] luts = settings.getLuts();
+		final int mipmapLevel = settings.getMipmapLevel();
+		final long budgetNanos = settings.getBudgetNanos();
+		final Fusion fusion = settings.getFusion();
+		final Projection projection = settings.getProjection();
+
+		checkResize( tileW, tileH, type );
+		checkNumSourcesChanged( state );
+
+		final int numSources = state.numSources();
+		final List< SourceState< ? > > sources = state.getSources();
+		final ArrayList< Integer > visibleSourceIndices = fusion.getSourceIndices( state );
+		final ArrayList< Source< ? > > spimSources = new ArrayList< Source< ? > >( numSources );
+		for ( final SourceState< ? > source : sources )
+			spimSources.add( source.getSpimSource() );
+
+		// the mipmap level that would best suit the current screen scale
+		final int[] targetMipmapLevel = new int[ numSources ];
+
+		// the mipmap level at which we will be rendering
+		final int[] currentMipmapLevel;
+
+		// the projector that paints to the screenImage.
+		final StripedRenderer< ? > p;
+
+		// time it took to create the projector
+		final long projectortime;
+
+		synchronized ( this )
+		{
+			for ( int i = 0; i < numSources; ++i )
+				targetMipmapLevel[ i ] = mipmapLevel < 0 ?
+						state.getBestMipMapLevel( identityTransform, i ) :
+						Math.min( mipmapLevel, maxMipmapLevel[ i ] );
+			if ( mipmapLevel < 0 && projection.isProjected() )
+				for ( final int i : visibleSourceIndices )
+					targetMipmapLevel[ i ] = getSlabMipmapLevel( state, spimSources.get( i ), targetMipmapLevel[ i ], maxMipmapLevel[ i ], projection );
+
+			if ( mipmapLevel < 0 && budgetNanos > 0 )
+			{
+				currentMipmapLevel = costModel.chooseLevels( spimSources, visibleSourceIndices, targetMipmapLevel, maxMipmapLevel, ( long ) tileW * tileH, budgetNanos );
+				lastPaintDegraded = !Arrays.equals( currentMipmapLevel, targetMipmapLevel );
+			}
+			else
+			{
+				currentMipmapLevel = targetMipmapLevel;
+				lastPaintDegraded = false;
+			}
+
+			final long t0 = System.nanoTime();
+			if ( fusion.isFused() && !visibleSourceIndices.isEmpty() )
+			{
+				// fused values are displayed with the settings of the first source
+				final DisplayLut lut = luts != null ? luts[ visibleSourceIndices.get( 0 ) ] : DisplayLut.get( 0, 65535, "gray" );
+				final PixelSink< UnsignedShortType > sink = type == TargetType.UINT16 ?
+						Sinks.< UnsignedShortType >uint16( uint16Data ) :
+						type == TargetType.GRAY ?
+								Sinks.lutGray( grayData, lut, false ) :
+								Sinks.lutArgb( screenImage.getData(), lut, false );
+				p = createFusedProjector( state, identityTransform, currentMipmapLevel, visibleSourceIndices, fusion, projection, sink, renderPool );
+			}
+			else
+				switch ( type )
+				{
+				case UINT16:
+					p = createUint16Projector( state, identityTransform, currentMipmapLevel, visibleSourceIndices, projection, uint16Data, renderPool );
+					break;
+				case GRAY:
+					p = luts != null ?
+							createLutProjector( state, identityTransform, currentMipmapLevel, visibleSourceIndices, projection, luts, null, grayData, renderPool ) :
+							createGrayProjector( state, identityTransform, currentMipmapLevel, grayData, renderPool );
+					break;
+				case ARGB:
+				default:
+					p = luts != null ?
+							createLutProjector( state, identityTransform, currentMipmapLevel, visibleSourceIndices, projection, luts, screenImage.getData(), null, renderPool ) :
+							createProjector( state, identityTransform, currentMipmapLevel, screenImage.getData(), renderPool );
+				}
+			projectortime = System.nanoTime() - t0;
+			projector = p;
+			lastMipmapLevel = currentMipmapLevel;
+			lastSourceIndices = visibleSourceIndices;
+			if ( cancelled )
+				p.cancel();
+		}
+
+		// try rendering
+		final boolean success = p.map( tileW, tileH );
+		final long rendertime = p.getLastFrameRenderNanoTime();
+
+		synchronized ( this )
+		{
+			projector = null;
+		}
+
+		// if rendering was not cancelled...
+		if ( success )
+		{
+			// attribute render time to the visible sources in equal shares
+			// (projected slabs take several samples per pixel, skip them)
+			if ( !visibleSourceIndices.isEmpty() && tileW > 0 && tileH > 0 && !projection.isProjected() )
+			{
+				final double nanosPerPixel = ( double ) rendertime / visibleSourceIndices.size() / tileW / tileH;
+				for ( final int i : visibleSourceIndices )
+					costModel.update( spimSources.get( i ), currentMipmapLevel[ i ], nanosPerPixel );
+			}
+		}
+
+		synchronized ( this )
+		{
+			lastProjectorNanoTime = projectortime;
+			lastRenderNanoTime = rendertime;
+		}
+
+		return success;
+	}
+
+	/**
+	 *
+	 * @param viewerState
+	 *            sources, transform, and timepoint to render.
+	 * @param screenScaleTransform
+	 *            screen scale, transforms screen coordinates to viewer
+	 *            coordinates.
+	 * @param mipmapIndex
+	 *            mipmap level.
+	 * @param target
+	 *            ARGB render target.
+	 * @param renderPool
+	 *            pool to render on.
+	 */
+	public static StripedRenderer< ? > createProjector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final int[] target, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			final List< SourceState< ? > > sources = viewerState.getSources();
+			final ArrayList< Integer > visibleSourceIndices = viewerState.getVisibleSourceIndices();
+			if ( visibleSourceIndices.isEmpty() )
+				return new StripedRenderer< ARGBType >( new ConstantRandomAccessible< ARGBType >( argbtype, 2 ), Sinks.argb( target, new TypeIdentity< ARGBType >() ), renderPool );
+			else if ( visibleSourceIndices.size() == 1 )
+			{
+				final int i = visibleSourceIndices.get( 0 );
+				return createSingleSourceProjector( viewerState, sources.get( i ), screenScaleTransform, mipmapIndex[ i ], target, renderPool );
+			}
+			else
+			{
+				final ArrayList< RandomAccessible< ARGBType > > accessibles = new ArrayList< RandomAccessible< ARGBType > >( visibleSourceIndices.size() );
+				for ( final int i : visibleSourceIndices )
+					accessibles.add( getConvertedTransformedSource( viewerState, sources.get( i ), screenScaleTransform, mipmapIndex[ i ] ) );
+				return new StripedRenderer< ARGBType >( new AccumulateARGB( accessibles ), Sinks.argb( target, new TypeIdentity< ARGBType >() ), renderPool );
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #createProjector}, but render 8-bit gray values. A single
+	 * source with a {@link RealARGBConverter} is mapped directly from its
+	 * display range to gray. Otherwise, sources are accumulated in ARGB and converted to
+	 * luminance.
+	 *
+	 * @param target
+	 *            8-bit gray render target.
+	 */
+	public static StripedRenderer< ? > createGrayProjector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final byte[] target, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			final List< SourceState< ? > > sources = viewerState.getSources();
+			final ArrayList< Integer > visibleSourceIndices = viewerState.getVisibleSourceIndices();
+			if ( visibleSourceIndices.isEmpty() )
+				return new StripedRenderer< ARGBType >( new ConstantRandomAccessible< ARGBType >( argbtype, 2 ), Sinks.argbToGray( target, new TypeIdentity< ARGBType >() ), renderPool );
+			else if ( visibleSourceIndices.size() == 1 )
+			{
+				final int i = visibleSourceIndices.get( 0 );
+				return createSingleSourceGrayProjector( viewerState, sources.get( i ), screenScaleTransform, mipmapIndex[ i ], target, renderPool );
+			}
+			else
+			{
+				final ArrayList< RandomAccessible< ARGBType > > accessibles = new ArrayList< RandomAccessible< ARGBType > >( visibleSourceIndices.size() );
+				for ( final int i : visibleSourceIndices )
+					accessibles.add( getConvertedTransformedSource( viewerState, sources.get( i ), screenScaleTransform, mipmapIndex[ i ] ) );
+				return new StripedRenderer< ARGBType >( new AccumulateARGB( accessibles ), Sinks.argbToGray( target, new TypeIdentity< ARGBType >() ), renderPool );
+			}
+		}
+	}
+
+	private final static ARGBType argbtype = new ARGBType();
+
+	private static < T extends NumericType< T > > RandomAccessible< T > getTransformedSource( final ViewerState viewerState, final Source< T > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex )
+	{
+		final int timepoint = viewerState.getCurrentTimepoint();
+		final Interpolation interpolation = viewerState.getInterpolation();
+		final RealRandomAccessible< T > img = source.getInterpolatedSource( timepoint, mipmapIndex, interpolation );
+		return RealViews.constantAffine( img, getSourceToScreen( viewerState, source, screenScaleTransform, mipmapIndex ) );
+	}
+
+	/**
+	 * Like {@link #getTransformedSource(ViewerState, Source, AffineTransform3D, int)},
+	 * but project a slab along screen z if {@code projection} is
+	 * {@link Projection#isProjected() projected}. The slab is sampled at
+	 * equidistant screen z positions, at most one voxel apart (unless limited
+	 * by {@link Projection#MAX_SAMPLES}).
+	 */
+	private static < T extends RealType< T > > RandomAccessible< T > getTransformedSource( final ViewerState viewerState, final Source< T > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex, final Projection projection )
+	{
+		if ( !projection.isProjected() )
+			return getTransformedSource( viewerState, source, screenScaleTransform, mipmapIndex );
+
+		final int timepoint = viewerState.getCurrentTimepoint();
+		final Interpolation interpolation = viewerState.getInterpolation();
+		final RealRandomAccessible< T > img = source.getInterpolatedSource( timepoint, mipmapIndex, interpolation );
+
+		final AffineTransform3D sourceToScreen = getSourceToScreen( viewerState, source, screenScaleTransform, mipmapIndex );
+		final int n = projection.getNumSamples( getVoxelsPerScreenZ( sourceToScreen ) );
+		final double step = n > 1 ? projection.getThickness() / ( n - 1 ) : 1;
+		final double z0 = n > 1 ? projection.getZMin() : 0.5 * ( projection.getZMin() + projection.getZMax() );
+
+		// integer z positions are the samples: screen z = z0 + step * z
+		final AffineTransform3D screenToSamples = new AffineTransform3D();
+		screenToSamples.set( 1 / step, 2, 2 );
+		screenToSamples.set( -z0 / step, 2, 3 );
+		sourceToScreen.preConcatenate( screenToSamples );
+
+		return new SlabProjector< T >( RealViews.constantAffine( img, sourceToScreen ), n, projection.getMode() );
+	}
+
+	private static AffineTransform3D getSourceToScreen( final ViewerState viewerState, final Source< ? > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex )
+	{
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		viewerState.getViewerTransform( sourceToScreen );
+		sourceToScreen.concatenate( source.getSourceTransform( viewerState.getCurrentTimepoint(), mipmapIndex ) );
+		sourceToScreen.preConcatenate( screenScaleTransform );
+		return sourceToScreen;
+	}
+
+	/**
+	 * Get the number of source voxels crossed per unit step along screen z.
+	 */
+	private static double getVoxelsPerScreenZ( final AffineTransform3D sourceToScreen )
+	{
+		final AffineTransform3D screenToSource = sourceToScreen.inverse();
+		double v = 0;
+		for ( int d = 0; d < 3; ++d )
+			v = Math.max( v, Math.abs( screenToSource.get( d, 2 ) ) );
+		return v;
+	}
+
+	/**
+	 * Get the finest mipmap level, starting from {@code level}, at which the
+	 * slab of {@code projection} can be sampled once per voxel within
+	 * {@link Projection#MAX_SAMPLES}.
+	 */
+	private static int getSlabMipmapLevel( final ViewerState viewerState, final Source< ? > source, final int level, final int maxLevel, final Projection projection )
+	{
+		int l = level;
+		while ( l < maxLevel && projection.getThickness() * getVoxelsPerScreenZ( getSourceToScreen( viewerState, source, identityTransform, l ) ) > Projection.MAX_SAMPLES - 1 )
+			++l;
+		return l;
+	}
+
+	private static < T extends NumericType< T > > RandomAccessible< ARGBType > getConvertedTransformedSource( final ViewerState viewerState, final SourceState< T > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex )
+	{
+		return Converters.convert( getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, mipmapIndex ), source.getConverter(), argbtype );
+	}
+
+	private static < T extends NumericType< T > > StripedRenderer< T > createSingleSourceProjector( final ViewerState viewerState, final SourceState< T > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex, final int[] target, final ForkJoinPool renderPool )
+	{
+		return new StripedRenderer< T >( getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, mipmapIndex ), Sinks.argb( target, source.getConverter() ), renderPool );
+	}
+
+	/**
+	 * Like {@link #createProjector}, but render the sum of the unsigned 16-bit
+	 * values of all visible sources (saturating at 65535). All sources must be
+	 * of {@link RealType}.
+	 *
+	 * @param target
+	 *            unsigned 16-bit render target.
+	 */
+	public static StripedRenderer< ? > createUint16Projector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final short[] target, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			return createUint16Projector( viewerState, screenScaleTransform, mipmapIndex, viewerState.getVisibleSourceIndices(), Projection.NONE, target, renderPool );
+		}
+	}
+
+	/**
+	 * Like {@link #createUint16Projector(ViewerState, AffineTransform3D, int[], short[], ForkJoinPool)},
+	 * but render the given sources instead of the visible ones, optionally
+	 * projecting a slab of each source.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static StripedRenderer< ? > createUint16Projector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final List< Integer > visibleSourceIndices, final Projection projection, final short[] target, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			final List< SourceState< ? > > sources = viewerState.getSources();
+			final ArrayList< RandomAccessible > layers = new ArrayList< RandomAccessible >();
+			final ArrayList< PixelSink > sinks = new ArrayList< PixelSink >();
+			if ( visibleSourceIndices.isEmpty() )
+			{
+				layers.add( new ConstantRandomAccessible< UnsignedShortType >( new UnsignedShortType(), 2 ) );
+				sinks.add( Sinks.uint16( target ) );
+			}
+			else
+				for ( final int i : visibleSourceIndices )
+				{
+					layers.add( getTransformedSource( viewerState, ( Source ) sources.get( i ).getSpimSource(), screenScaleTransform, mipmapIndex[ i ], projection ) );
+					sinks.add( sinks.isEmpty() ? Sinks.uint16( target ) : Sinks.uint16Add( target ) );
+				}
+			return new StripedRenderer( layers, sinks, renderPool );
+		}
+	}
+
+	/**
+	 * Like {@link #createProjector}, but convert source values by looking them
+	 * up in {@link DisplayLut}s. Contributions of multiple visible sources are
+	 * added (saturating). All sources must be {@link UnsignedShortType}.
+	 *
+	 * @param luts
+	 *            lookup table for each source.
+	 * @param argbTarget
+	 *            ARGB render target, or {@code null} if rendering gray.
+	 * @param grayTarget
+	 *            8-bit gray render target, or {@code null} if rendering ARGB.
+	 */
+	public static StripedRenderer< UnsignedShortType > createLutProjector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final DisplayLut[] luts, final int[] argbTarget, final byte[] grayTarget, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			return createLutProjector( viewerState, screenScaleTransform, mipmapIndex, viewerState.getVisibleSourceIndices(), Projection.NONE, luts, argbTarget, grayTarget, renderPool );
+		}
+	}
+
+	/**
+	 * Like {@link #createLutProjector(ViewerState, AffineTransform3D, int[], DisplayLut[], int[], byte[], ForkJoinPool)},
+	 * but render the given sources instead of the visible ones, optionally
+	 * projecting a slab of each source.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static StripedRenderer< UnsignedShortType > createLutProjector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final List< Integer > visibleSourceIndices, final Projection projection, final DisplayLut[] luts, final int[] argbTarget, final byte[] grayTarget, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			final List< SourceState< ? > > sources = viewerState.getSources();
+			final ArrayList< RandomAccessible< UnsignedShortType > > layers = new ArrayList< RandomAccessible< UnsignedShortType > >();
+			final ArrayList< PixelSink< UnsignedShortType > > sinks = new ArrayList< PixelSink< UnsignedShortType > >();
+			if ( visibleSourceIndices.isEmpty() )
+			{
+				layers.add( new ConstantRandomAccessible< UnsignedShortType >( new UnsignedShortType(), 2 ) );
+				final DisplayLut black = DisplayLut.get( 0, 65535, "000000" );
+				sinks.add( argbTarget != null ? Sinks.lutArgb( argbTarget, black, false ) : Sinks.lutGray( grayTarget, black, false ) );
+			}
+			else
+				for ( final int i : visibleSourceIndices )
+				{
+					final Source< UnsignedShortType > source = ( Source< UnsignedShortType > ) sources.get( i ).getSpimSource();
+					layers.add( getTransformedSource( viewerState, source, screenScaleTransform, mipmapIndex[ i ], projection ) );
+					final boolean add = !sinks.isEmpty();
+					sinks.add( argbTarget != null ? Sinks.lutArgb( argbTarget, luts[ i ], add ) : Sinks.lutGray( grayTarget, luts[ i ], add ) );
+				}
+			return new StripedRenderer< UnsignedShortType >( layers, sinks, renderPool );
+		}
+	}
+
+	/**
+	 * Like {@link #createProjector}, but fuse the unsigned 16-bit values of
+	 * the given sources (see {@link FusedRenderer}) and convert the fused
+	 * values with {@code sink}. All sources must be {@link UnsignedShortType}.
+	 *
+	 * @param sourceIndices
+	 *            the sources to fuse.
+	 * @param fusion
+	 *            blend mode and weights.
+	 * @param projection
+	 *            slab to project of each source before fusing.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static FusedRenderer createFusedProjector( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int[] mipmapIndex, final List< Integer > sourceIndices, final Fusion fusion, final Projection projection, final PixelSink< UnsignedShortType > sink, final ForkJoinPool renderPool )
+	{
+		synchronized ( viewerState )
+		{
+			final List< SourceState< ? > > sources = viewerState.getSources();
+			final ArrayList< RandomAccessible< UnsignedShortType > > layers = new ArrayList< RandomAccessible< UnsignedShortType > >( sourceIndices.size() );
+			final double[] weights = new double[ sourceIndices.size() ];
+			for ( int l = 0; l < sourceIndices.size(); ++l )
+			{
+				final int i = sourceIndices.get( l );
+				final Source< UnsignedShortType > source = ( Source< UnsignedShortType > ) sources.get( i ).getSpimSource();
+				layers.add( getTransformedSource( viewerState, source, screenScaleTransform, mipmapIndex[ i ], projection ) );
+				weights[ l ] = fusion.getWeight( i );
+			}
+			return new FusedRenderer( layers, weights, fusion.getBlend(), sink, renderPool );
+		}
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static < T extends NumericType< T > > StripedRenderer< T > createSingleSourceGrayProjector( final ViewerState viewerState, final SourceState< T > source, final AffineTransform3D screenScaleTransform, final int mipmapIndex, final byte[] target, final ForkJoinPool renderPool )
+	{
+		final RandomAccessible< T > img = getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, mipmapIndex );
+		final Converter< T, ARGBType > converter = source.getConverter();
+		final PixelSink< T > sink;
+		if ( converter instanceof RealARGBConverter )
+		{
+			final RealARGBConverter< ? > range = ( RealARGBConverter< ? > ) converter;
+			sink = ( PixelSink< T > ) Sinks.gray( target, range.getMin(), range.getMax() );
+		}
+		else
+			sink = Sinks.argbToGray( target, converter );
+		return new StripedRenderer< T >( img, sink, renderPool );
+	}
+}
@@ -0,0 +1,621 @@
+package tileserver;
+
+import java.io.PrintWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of {@code short} source blocks in direct (off-heap) memory,
+ * shared by all {@link TileGenerator}s (see {@link CachedSource}). Blocks are
+ * kept in least-recently-used order in a number of independently locked
+ * stripes, each with its share of the byte budget. Concurrent requests for a
+ * block that is being loaded wait for that load instead of loading it again.
+ *
+ * Evicted blocks are not freed explicitly, as random accesses may still read
+ * them. Their memory is recycled for new blocks once they are no longer
+ * reachable. Once the allocated memory reaches the budget (plus
+ * {@link #SLACK_FRACTION} for evicted blocks waiting to be recycled), new
+ * blocks wait for memory to be recycled (for at most
+ * {@link #MAX_RECYCLE_WAIT_MILLIS}) instead of allocating more.
+ */
+public class BlockCache
+{
+	/**
+	 * Loads the data of a block.
+	 */
+	public interface Loader
+	{
+		/**
+		 * Fill {@code data} with the block {@code key}, in flat order (x
+		 * fastest) with the full {@link BlockCache#getBlockSize() block size}
+		 * as strides.
+		 */
+		public void load( Key key, ShortBuffer data );
+	}
+
+	/**
+	 * Identifies a block of one mipmap level of a source.
+	 */
+	public static class Key
+	{
+		/**
+		 * The dataset, compared by identity.
+		 */
+		final Object dataset;
+
+		final int setup;
+
+		final int timepoint;
+
+		final int level;
+
+		/**
+		 * Grid position of the block.
+		 */
+		final long x, y, z;
+
+		private final int hash;
+
+		public Key( final Object dataset, final int setup, final int timepoint, final int level, final long x, final long y, final long z )
+		{
+			this.dataset = dataset;
+			this.setup = setup;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			int h = System.identityHashCode( dataset );
+			h = 31 * h + setup;
+			h = 31 * h + timepoint;
+			h = 31 * h + level;
+			h = 31 * h + ( int ) ( x ^ ( x >>> 32 ) );
+			h = 31 * h + ( int ) ( y ^ ( y >>> 32 ) );
+			h = 31 * h + ( int ) ( z ^ ( z >>> 32 ) );
+			hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key k = ( Key ) obj;
+			return dataset == k.dataset && setup == k.setup && timepoint == k.timepoint && level == k.level && x == k.x && y == k.y && z == k.z;
+		}
+	}
+
+	/**
+	 * A cached block. Holding a reference to the block keeps its memory from
+	 * being recycled.
+	 */
+	public static class Block
+	{
+		private final ByteBuffer buffer;
+
+		private final ShortBuffer data;
+
+		private final CountDownLatch loaded;
+
+		private volatile RuntimeException failure;
+
+		Block( final ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+			data = buffer.asShortBuffer();
+			loaded = new CountDownLatch( 1 );
+			failure = null;
+		}
+
+		/**
+		 * Get the block data, see {@link Loader#load(Key, ShortBuffer)}.
+		 */
+		public ShortBuffer getData()
+		{
+			return data;
+		}
+
+		boolean isLoaded()
+		{
+			return loaded.getCount() == 0;
+		}
+
+		/**
+		 * Wait until the block is loaded.
+		 *
+		 * @throws RuntimeException
+		 *             if loading failed.
+		 */
+		void await()
+		{
+			boolean interrupted = false;
+			while ( true )
+			{
+				try
+				{
+					loaded.await();
+					break;
+				}
+				catch ( final InterruptedException e )
+				{
+					interrupted = true;
+				}
+			}
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+			if ( failure != null )
+				throw failure;
+		}
+	}
+
+	/**
+	 * Memory of an evicted block, recycled when the block is no longer
+	 * reachable.
+	 */
+	private static class Recycled extends WeakReference< Block >
+	{
+		final ByteBuffer buffer;
+
+		Recycled( final Block block, final ByteBuffer buffer, final ReferenceQueue< Block > queue )
+		{
+			super( block, queue );
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Stripe
+	{
+		final LinkedHashMap< Key, Block > blocks = new LinkedHashMap< Key, Block >( 64, 0.75f, true );
+	}
+
+	static final int NUM_STRIPES = 16;
+
+	/**
+	 * How long (ms) a new block waits for memory to be recycled when the
+	 * budget is allocated. If none is recycled in time (e.g., because all
+	 * evicted blocks are still read), memory is allocated beyond the budget.
+	 */
+	static final long MAX_RECYCLE_WAIT_MILLIS = 1000;
+
+	/**
+	 * Memory that may be allocated beyond the budget, as a fraction of the
+	 * budget, for evicted blocks that are not recycled yet. Recycling needs
+	 * a garbage collection, which is requested when this is used up.
+	 */
+	static final double SLACK_FRACTION = 0.125;
+
+	public static final long DEFAULT_MAX_BYTES = 1024l * 1024 * 1024;
+
+	public static final int[] DEFAULT_BLOCK_SIZE = new int[] { 64, 64, 8 };
+
+	private static BlockCache shared = new BlockCache( DEFAULT_MAX_BYTES, DEFAULT_BLOCK_SIZE );
+
+	/**
+	 * Get the cache shared by all {@link TileGenerator}s, or {@code null} if
+	 * source blocks are not cached.
+	 */
+	public static synchronized BlockCache getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * Replace the shared cache, e.g. to change its budget, or disable it
+	 * ({@code null}). Must be called before the first {@link TileGenerator}
+	 * is created.
+	 */
+	public static synchronized void setShared( final BlockCache cache )
+	{
+		shared = cache;
+	}
+
+	private final int[] blockSize;
+
+	private final int blockBytes;
+
+	/**
+	 * Number of blocks each stripe may hold.
+	 */
+	private final int maxBlocksPerStripe;
+
+	private final Stripe[] stripes;
+
+	private final ReferenceQueue< Block > recycleQueue;
+
+	/**
+	 * Keeps the {@link Recycled} references of evicted blocks reachable until
+	 * they are enqueued.
+	 */
+	private final Set< Recycled > recycling;
+
+	/**
+	 * Bytes that may be allocated before new blocks wait for recycled
+	 * memory.
+	 */
+	private final long maxAllocatedBytes;
+
+	/**
+	 * Time (ms) a garbage collection was last requested to recycle memory.
+	 */
+	private final AtomicLong lastGc;
+
+	/**
+	 * Buffers that are allocated but not used by a block, e.g. of blocks
+	 * whose load failed.
+	 */
+	private final ConcurrentLinkedQueue< ByteBuffer > free;
+
+	private final AtomicLong numBlocks;
+
+	private final AtomicLong allocatedBytes;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private final AtomicLong coalesced;
+
+	private final AtomicLong evictions;
+
+	/**
+	 * Number of blocks allocated beyond the budget because no memory was
+	 * recycled in time.
+	 */
+	private final AtomicLong overBudget;
+
+	/**
+	 * Time loading a block from its source, i.e., source I/O.
+	 */
+	private final LatencyHistogram loadTime;
+
+	/**
+	 * @param maxBytes
+	 *            byte budget of cached blocks.
+	 * @param blockSize
+	 *            block size in x, y, and z. Must be powers of two.
+	 */
+	public BlockCache( final long maxBytes, final int[] blockSize )
+	{
+		for ( final int s : blockSize )
+			if ( s <= 0 || Integer.bitCount( s ) != 1 )
+				throw new IllegalArgumentException( "block size must be a power of two: " + s );
+		this.blockSize = blockSize.clone();
+		blockBytes = 2 * blockSize[ 0 ] * blockSize[ 1 ] * blockSize[ 2 ];
+		maxBlocksPerStripe = ( int ) Math.max( 1, maxBytes / blockBytes / NUM_STRIPES );
+		stripes = new Stripe[ NUM_STRIPES ];
+		for ( int i = 0; i < NUM_STRIPES; ++i )
+			stripes[ i ] = new Stripe();
+		recycleQueue = new ReferenceQueue< Block >();
+		recycling = Collections.newSetFromMap( new ConcurrentHashMap< Recycled, Boolean >() );
+		free = new ConcurrentLinkedQueue< ByteBuffer >();
+		maxAllocatedBytes = getMaxBytes() + ( long ) ( SLACK_FRACTION * getMaxBytes() );
+		lastGc = new AtomicLong();
+		numBlocks = new AtomicLong();
+		allocatedBytes = new AtomicLong();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		coalesced = new AtomicLong();
+		evictions = new AtomicLong();
+		overBudget = new AtomicLong();
+		loadTime = new LatencyHistogram( "tileserver_source_io", "Time loading a block from its source (source I/O)." );
+	}
+
+	/**
+	 * Get the block size in x, y, and z.
+	 */
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	/**
+	 * Get a block, loading it with {@code loader} if it is not cached.
+	 *
+	 * @throws RuntimeException
+	 *             if the loader failed.
+	 */
+	public Block get( final Key key, final Loader loader )
+	{
+		final Stripe stripe = stripes[ ( key.hashCode() & 0x7fffffff ) % NUM_STRIPES ];
+		Block block;
+		boolean load = false;
+		ByteBuffer buffer = null;
+		while ( true )
+		{
+			synchronized ( stripe )
+			{
+				block = stripe.blocks.get( key );
+				if ( block != null )
+				{
+					hits.incrementAndGet();
+					if ( !block.isLoaded() )
+						coalesced.incrementAndGet();
+				}
+				else if ( buffer != null )
+				{
+					misses.incrementAndGet();
+					block = new Block( buffer );
+					buffer = null;
+					stripe.blocks.put( key, block );
+					numBlocks.incrementAndGet();
+					evict( stripe );
+					load = true;
+				}
+			}
+			if ( block != null )
+				break;
+			// allocate outside the lock, as it may wait for recycled memory
+			buffer = allocate();
+		}
+		if ( buffer != null )
+			free.add( buffer );
+
+		if ( !load )
+		{
+			block.await();
+			return block;
+		}
+
+		final long t0 = System.nanoTime();
+		boolean done = false;
+		try
+		{
+			loader.load( key, block.data );
+			done = true;
+		}
+		catch ( final RuntimeException e )
+		{
+			block.failure = e;
+			throw e;
+		}
+		finally
+		{
+			if ( !done )
+			{
+				synchronized ( stripe )
+				{
+					stripe.blocks.remove( key );
+					numBlocks.decrementAndGet();
+				}
+				if ( block.failure == null )
+					block.failure = new IllegalStateException( "loading block failed" );
+				// threads waiting for the block fail without reading it
+				free.add( block.buffer );
+			}
+			block.loaded.countDown();
+		}
+		loadTime.record( System.nanoTime() - t0 );
+		return block;
+	}
+
+	/**
+	 * Evict all blocks of a dataset, e.g. when the dataset is unloaded.
+	 * Blocks that are being loaded are not evicted.
+	 */
+	public void invalidate( final Object dataset )
+	{
+		for ( final Stripe stripe : stripes )
+		{
+			synchronized ( stripe )
+			{
+				final Iterator< Map.Entry< Key, Block > > it = stripe.blocks.entrySet().iterator();
+				while ( it.hasNext() )
+				{
+					final Map.Entry< Key, Block > entry = it.next();
+					final Block block = entry.getValue();
+					if ( entry.getKey().dataset != dataset || !block.isLoaded() )
+						continue;
+					it.remove();
+					recycle( block );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a buffer for a new block: an unused or recycled one if possible,
+	 * newly allocated if the budget allows. Otherwise, wait for an evicted
+	 * block to be recycled, for at most {@link #MAX_RECYCLE_WAIT_MILLIS}.
+	 */
+	private ByteBuffer allocate()
+	{
+		ByteBuffer buffer = poll();
+		if ( buffer != null )
+			return buffer;
+
+		while ( true )
+		{
+			final long allocated = allocatedBytes.get();
+			if ( allocated + blockBytes > maxAllocatedBytes )
+				break;
+			if ( allocatedBytes.compareAndSet( allocated, allocated + blockBytes ) )
+				return ByteBuffer.allocateDirect( blockBytes ).order( ByteOrder.nativeOrder() );
+		}
+
+		// Evicted blocks are only enqueued for recycling after they were
+		// garbage collected. Like ByteBuffer.allocateDirect() when direct
+		// memory is exhausted, ask for a collection (at most once per wait
+		// time) and wait.
+		final long now = System.currentTimeMillis();
+		final long gc = lastGc.get();
+		if ( now - gc > MAX_RECYCLE_WAIT_MILLIS && lastGc.compareAndSet( gc, now ) )
+			System.gc();
+		boolean interrupted = false;
+		final long deadline = System.currentTimeMillis() + MAX_RECYCLE_WAIT_MILLIS;
+		try
+		{
+			while ( buffer == null )
+			{
+				final long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 )
+					break;
+				try
+				{
+					final Recycled recycled = ( Recycled ) recycleQueue.remove( wait );
+					if ( recycled != null )
+					{
+						recycling.remove( recycled );
+						buffer = recycled.buffer;
+					}
+					else
+						buffer = free.poll();
+				}
+				catch ( final InterruptedException e )
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+		if ( buffer != null )
+			return buffer;
+
+		overBudget.incrementAndGet();
+		allocatedBytes.addAndGet( blockBytes );
+		return ByteBuffer.allocateDirect( blockBytes ).order( ByteOrder.nativeOrder() );
+	}
+
+	/**
+	 * Get an unused or recycled buffer, if there is one.
+	 */
+	private ByteBuffer poll()
+	{
+		final ByteBuffer buffer = free.poll();
+		if ( buffer != null )
+			return buffer;
+		final Recycled recycled = ( Recycled ) recycleQueue.poll();
+		if ( recycled == null )
+			return null;
+		recycling.remove( recycled );
+		return recycled.buffer;
+	}
+
+	/**
+	 * Evict least recently used blocks until the stripe fits its share of
+	 * the budget. Blocks that are being loaded are not evicted.
+	 */
+	private void evict( final Stripe stripe )
+	{
+		final Iterator< Map.Entry< Key, Block > > it = stripe.blocks.entrySet().iterator();
+		while ( stripe.blocks.size() > maxBlocksPerStripe && it.hasNext() )
+		{
+			final Block block = it.next().getValue();
+			if ( !block.isLoaded() )
+				continue;
+			it.remove();
+			recycle( block );
+		}
+	}
+
+	/**
+	 * Count an evicted block and recycle its memory once it is no longer
+	 * reachable.
+	 */
+	private void recycle( final Block block )
+	{
+		recycling.add( new Recycled( block, block.buffer, recycleQueue ) );
+		numBlocks.decrementAndGet();
+		evictions.incrementAndGet();
+	}
+
+	public long getNumBlocks()
+	{
+		return numBlocks.get();
+	}
+
+	/**
+	 * Get the bytes of cached blocks.
+	 */
+	public long getBytes()
+	{
+		return numBlocks.get() * blockBytes;
+	}
+
+	/**
+	 * Get the bytes of direct memory allocated for blocks, including evicted
+	 * blocks that were not recycled yet.
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Get the number of blocks allocated beyond the budget because no
+	 * memory was recycled within {@link #MAX_RECYCLE_WAIT_MILLIS}.
+	 */
+	public long getOverBudget()
+	{
+		return overBudget.get();
+	}
+
+	public long getMaxBytes()
+	{
+		return ( long ) maxBlocksPerStripe * NUM_STRIPES * blockBytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of hits that waited for a block being loaded by another
+	 * thread.
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Write the block load time histogram ({@code tileserver_source_io}), in
+	 * Prometheus text format.
+	 */
+	public void writeLoadTime( final PrintWriter out )
+	{
+		loadTime.write( out );
+	}
+
+	@Override
+	public String toString()
+	{
+		final long n = loadTime.getCount();
+		return String.format( "block cache: %d blocks  %d/%d MB (%d MB allocated, %d blocks over budget)  hits:%d  misses:%d  coalesced:%d  evictions:%d  mean load:%.2f ms",
+				getNumBlocks(), getBytes() / ( 1024 * 1024 ), getMaxBytes() / ( 1024 * 1024 ), getAllocatedBytes() / ( 1024 * 1024 ), getOverBudget(),
+				getHits(), getMisses(), getCoalesced(), getEvictions(),
+				n == 0 ? 0 : loadTime.getSumNanos() * 1e-6 / n );
+	}
+}
@@ -0,0 +1,81 @@
+package tileserver;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * An {@link javax.imageio.stream.ImageOutputStream} that writes to an
+ * {@link EncodeBuffer} in memory. Unlike the streams created by
+ * {@link javax.imageio.ImageIO#createImageOutputStream(Object)}, it never
+ * goes through a temporary file, and it can be reused for many images (see
+ * {@link #rewind()}), so an {@link javax.imageio.ImageWriter} can keep it as
+ * its output.
+ */
+public class BufferImageOutputStream extends ImageOutputStreamImpl
+{
+	private final EncodeBuffer buffer;
+
+	public BufferImageOutputStream( final EncodeBuffer buffer )
+	{
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Clear the {@link EncodeBuffer} and start over at position 0.
+	 */
+	public void rewind()
+	{
+		buffer.reset();
+		streamPos = 0;
+		flushedPos = 0;
+		bitOffset = 0;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		checkClosed();
+		bitOffset = 0;
+		if ( streamPos >= buffer.size() )
+			return -1;
+		return buffer.getData()[ ( int ) streamPos++ ] & 0xff;
+	}
+
+	@Override
+	public int read( final byte[] b, final int off, final int len ) throws IOException
+	{
+		checkClosed();
+		bitOffset = 0;
+		final int n = ( int ) Math.min( len, buffer.size() - streamPos );
+		if ( n <= 0 )
+			return len == 0 ? 0 : -1;
+		System.arraycopy( buffer.getData(), ( int ) streamPos, b, off, n );
+		streamPos += n;
+		return n;
+	}
+
+	@Override
+	public void write( final int b ) throws IOException
+	{
+		checkClosed();
+		flushBits();
+		buffer.write( ( int ) streamPos, b );
+		++streamPos;
+	}
+
+	@Override
+	public void write( final byte[] b, final int off, final int len ) throws IOException
+	{
+		checkClosed();
+		flushBits();
+		buffer.write( ( int ) streamPos, b, off, len );
+		streamPos += len;
+	}
+
+	@Override
+	public long length()
+	{
+		return buffer.size();
+	}
+}
@@ -0,0 +1,244 @@
+package tileserver;
+
+import java.nio.ShortBuffer;
+
+import modifiedviewer.RenderCostModel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import viewer.render.Interpolation;
+import viewer.render.Source;
+
+/**
+ * Wraps a {@link Source} such that its image data is read through a
+ * {@link BlockCache}. Sources of the same dataset and setup share cached
+ * blocks, regardless of which {@link TileGenerator} they belong to.
+ */
+public class CachedSource implements Source< UnsignedShortType >, RenderCostModel.SetupSource
+{
+	private final Source< UnsignedShortType > source;
+
+	private final Object dataset;
+
+	private final int setup;
+
+	private final BlockCache cache;
+
+	/**
+	 * log2 of the block size in x, y, and z.
+	 */
+	private final int[] shift;
+
+	/**
+	 * @param source
+	 *            the wrapped source.
+	 * @param dataset
+	 *            the dataset of the source (compared by identity).
+	 * @param setup
+	 *            the setup of the source within the dataset.
+	 * @param cache
+	 *            the cache to read blocks through.
+	 */
+	public CachedSource( final Source< UnsignedShortType > source, final Object dataset, final int setup, final BlockCache cache )
+	{
+		this.source = source;
+		this.dataset = dataset;
+		this.setup = setup;
+		this.cache = cache;
+		final int[] blockSize = cache.getBlockSize();
+		shift = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			shift[ d ] = Integer.numberOfTrailingZeros( blockSize[ d ] );
+	}
+
+	/**
+	 * One mipmap level of one timepoint, read through the {@link BlockCache}.
+	 */
+	class CachedImg extends FinalInterval implements RandomAccessibleInterval< UnsignedShortType >, BlockCache.Loader
+	{
+		private final int timepoint;
+
+		private final int level;
+
+		private final RandomAccessibleInterval< UnsignedShortType > img;
+
+		CachedImg( final int timepoint, final int level, final RandomAccessibleInterval< UnsignedShortType > img )
+		{
+			super( img );
+			this.timepoint = timepoint;
+			this.level = level;
+			this.img = img;
+		}
+
+		@Override
+		public RandomAccess< UnsignedShortType > randomAccess()
+		{
+			return new CachedRandomAccess( this );
+		}
+
+		@Override
+		public RandomAccess< UnsignedShortType > randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+
+		@Override
+		public void load( final BlockCache.Key key, final ShortBuffer data )
+		{
+			final int sx = 1 << shift[ 0 ];
+			final int sy = 1 << shift[ 1 ];
+			final long x0 = key.x << shift[ 0 ];
+			final long y0 = key.y << shift[ 1 ];
+			final long z0 = key.z << shift[ 2 ];
+			final int w = ( int ) Math.min( sx, max( 0 ) + 1 - x0 );
+			final int h = ( int ) Math.min( sy, max( 1 ) + 1 - y0 );
+			final int d = ( int ) Math.min( 1 << shift[ 2 ], max( 2 ) + 1 - z0 );
+			final RandomAccess< UnsignedShortType > a = img.randomAccess();
+			final long[] pos = new long[ 3 ];
+			for ( int z = 0; z < d; ++z )
+				for ( int y = 0; y < h; ++y )
+				{
+					pos[ 0 ] = x0;
+					pos[ 1 ] = y0 + y;
+					pos[ 2 ] = z0 + z;
+					a.setPosition( pos );
+					int i = ( z * sy + y ) * sx;
+					for ( int x = 0; x < w; ++x )
+					{
+						data.put( i++, a.get().getShort() );
+						a.fwd( 0 );
+					}
+				}
+		}
+	}
+
+	/**
+	 * Reads the block that contains the current position from the
+	 * {@link BlockCache}. The current block is kept until the position moves
+	 * out of it.
+	 */
+	class CachedRandomAccess extends Point implements RandomAccess< UnsignedShortType >
+	{
+		private final CachedImg img;
+
+		private final UnsignedShortType type;
+
+		private final int mx, my, mz;
+
+		private final int sx, sy;
+
+		private BlockCache.Block block;
+
+		private ShortBuffer data;
+
+		private long bx, by, bz;
+
+		CachedRandomAccess( final CachedImg img )
+		{
+			super( 3 );
+			this.img = img;
+			type = new UnsignedShortType();
+			sx = 1 << shift[ 0 ];
+			sy = 1 << shift[ 1 ];
+			mx = sx - 1;
+			my = sy - 1;
+			mz = ( 1 << shift[ 2 ] ) - 1;
+			block = null;
+		}
+
+		@Override
+		public UnsignedShortType get()
+		{
+			final long x = position[ 0 ];
+			final long y = position[ 1 ];
+			final long z = position[ 2 ];
+			final long cx = x >> shift[ 0 ];
+			final long cy = y >> shift[ 1 ];
+			final long cz = z >> shift[ 2 ];
+			if ( block == null || cx != bx || cy != by || cz != bz )
+			{
+				block = cache.get( new BlockCache.Key( dataset, setup, img.timepoint, img.level, cx, cy, cz ), img );
+				data = block.getData();
+				bx = cx;
+				by = cy;
+				bz = cz;
+			}
+			type.set( data.get( ( ( ( int ) z & mz ) * sy + ( ( int ) y & my ) ) * sx + ( ( int ) x & mx ) ) & 0xffff );
+			return type;
+		}
+
+		@Override
+		public CachedRandomAccess copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public CachedRandomAccess copyRandomAccess()
+		{
+			final CachedRandomAccess a = new CachedRandomAccess( img );
+			a.setPosition( this );
+			return a;
+		}
+	}
+
+	@Override
+	public Object getDataset()
+	{
+		return dataset;
+	}
+
+	@Override
+	public int getSetup()
+	{
+		return setup;
+	}
+
+	@Override
+	public boolean isPresent( final int t )
+	{
+		return source.isPresent( t );
+	}
+
+	@Override
+	public RandomAccessibleInterval< UnsignedShortType > getSource( final int t, final int level )
+	{
+		return new CachedImg( t, level, source.getSource( t, level ) );
+	}
+
+	@Override
+	public RealRandomAccessible< UnsignedShortType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		final RandomAccessibleInterval< UnsignedShortType > img = getSource( t, level );
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( img ), new NLinearInterpolatorFactory< UnsignedShortType >() );
+		else
+			return Views.interpolate( Views.extendZero( img ), new NearestNeighborInterpolatorFactory< UnsignedShortType >() );
+	}
+
+	@Override
+	public AffineTransform3D getSourceTransform( final int t, final int level )
+	{
+		return source.getSourceTransform( t, level );
+	}
+
+	@Override
+	public String getName()
+	{
+		return source.getName();
+	}
+
+	@Override
+	public int getNumMipmapLevels()
+	{
+		return source.getNumMipmapLevels();
+	}
+}
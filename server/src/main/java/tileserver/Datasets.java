@@ -0,0 +1,453 @@
+package tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import viewer.SequenceViewsLoader;
+
+/**
+ * The datasets served by a tile server. Either a single dataset (
+ * {@link TileServerOptions#datasetXml}) with the empty name, or all
+ * {@code <name>.xml} files in {@link TileServerOptions#datasetDir}.
+ *
+ * The loader and {@link GeneratorPool} of a dataset are created when it
+ * is first {@link #acquire(String) acquired}. When more than
+ * {@link TileServerOptions#maxLoadedDatasets} datasets are loaded, the least
+ * recently used datasets that are not acquired are unloaded again.
+ */
+public class Datasets
+{
+	/**
+	 * A dataset and, while it is loaded, its generator pool.
+	 */
+	public static class Dataset
+	{
+		private final String name;
+
+		private final File xml;
+
+		/**
+		 * {@code null} if not loaded. Loader, generators, and prefetcher are
+		 * written while holding the dataset's lock, but may be read without
+		 * (loading can take a while).
+		 */
+		private volatile SequenceViewsLoader loader;
+
+		private volatile GeneratorPool generators;
+
+		private volatile Prefetcher prefetcher;
+
+		/**
+		 * Version of the loaded dataset, see {@link #getVersion()}.
+		 */
+		private volatile String version;
+
+		/**
+		 * Number of {@link Datasets#acquire(String) acquisitions} not
+		 * released yet.
+		 */
+		private int users;
+
+		private long lastUsed;
+
+		Dataset( final String name, final File xml )
+		{
+			this.name = name;
+			this.xml = xml;
+			loader = null;
+			users = 0;
+			lastUsed = 0;
+		}
+
+		/**
+		 * Get the name of the dataset, the empty string for the single
+		 * dataset of {@link TileServerOptions#datasetXml}.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Get the version of the dataset, which {@link TileRequest#getKey()
+		 * tile keys} contain. Unless set explicitly, it is derived from path,
+		 * size, and modification time of the dataset xml file when the
+		 * dataset is loaded. Only valid while the dataset is acquired.
+		 */
+		public String getVersion()
+		{
+			return version;
+		}
+
+		/**
+		 * Get the generator pool. Only valid while the dataset is acquired.
+		 */
+		public GeneratorPool getGenerators()
+		{
+			return generators;
+		}
+
+		/**
+		 * Get the prefetcher rendering into the tile cache, or {@code null}
+		 * if prefetching is disabled. Only valid while the dataset is
+		 * acquired.
+		 */
+		public Prefetcher getPrefetcher()
+		{
+			return prefetcher;
+		}
+
+		boolean isLoaded()
+		{
+			return loader != null;
+		}
+
+		@Override
+		public String toString()
+		{
+			final GeneratorPool g = generators;
+			final Prefetcher p = prefetcher;
+			return String.format( "dataset '%s': ", name ) + ( g == null ? "not loaded" : g ) + ( p == null ? "" : "\n  " + p );
+		}
+	}
+
+	private final TileServerOptions options;
+
+	/**
+	 * Directory of dataset xml files, or {@code null} to serve only
+	 * {@link TileServerOptions#datasetXml}.
+	 */
+	private final File dir;
+
+	private final TileMetrics metrics;
+
+	/**
+	 * Cache that prefetchers render into. {@code null} if prefetching is
+	 * disabled.
+	 */
+	private final TileCache prefetchCache;
+
+	/**
+	 * Renders in progress, shared by requests and prefetches of all datasets.
+	 */
+	private final RenderFlights flights;
+
+	/**
+	 * Datasets requested so far, by name.
+	 */
+	private final HashMap< String, Dataset > datasets;
+
+	private long numLoads;
+
+	private long numUnloads;
+
+	/**
+	 * @param metrics
+	 *            generators record render and encode times and tile counts
+	 *            here.
+	 * @param prefetchCache
+	 *            cache that prefetchers render into, or {@code null} to
+	 *            disable prefetching.
+	 */
+	public Datasets( final TileServerOptions options, final TileMetrics metrics, final TileCache prefetchCache )
+	{
+		this.options = options;
+		dir = options.datasetDir.isEmpty() ? null : new File( options.datasetDir );
+		this.metrics = metrics;
+		this.prefetchCache = options.prefetchThreads > 0 ? prefetchCache : null;
+		datasets = new HashMap< String, Dataset >();
+		flights = new RenderFlights();
+		numLoads = 0;
+		numUnloads = 0;
+	}
+
+	/**
+	 * Get the renders in progress, see {@link RenderFlights}.
+	 */
+	public RenderFlights getFlights()
+	{
+		return flights;
+	}
+
+	/**
+	 * Whether datasets are served from a directory, under a path prefix of
+	 * their name.
+	 */
+	public boolean isMulti()
+	{
+		return dir != null;
+	}
+
+	/**
+	 * Split a request path into dataset name and the remaining path. In
+	 * single-dataset mode, the name is empty and the path unchanged.
+	 *
+	 * @return name and remaining path (at least "/").
+	 */
+	public String[] splitPath( final String target )
+	{
+		if ( dir == null )
+			return new String[] { "", target };
+		final int i = target.indexOf( '/', 1 );
+		return i < 0 ?
+				new String[] { target.substring( 1 ), "/" } :
+				new String[] { target.substring( 1, i ), target.substring( i ) };
+	}
+
+	/**
+	 * Get a dataset for rendering, loading it if necessary. The dataset stays
+	 * loaded until it is {@link #release(Dataset) released}.
+	 *
+	 * @return the dataset, or {@code null} if there is no dataset of that
+	 *         name.
+	 * @throws IOException
+	 *             if the dataset could not be loaded.
+	 */
+	public Dataset acquire( final String name ) throws IOException
+	{
+		final Dataset dataset;
+		synchronized ( this )
+		{
+			Dataset d = datasets.get( name );
+			if ( d == null )
+			{
+				final File xml = getXml( name );
+				if ( xml == null )
+					return null;
+				d = new Dataset( name, xml );
+				datasets.put( name, d );
+			}
+			++d.users;
+			d.lastUsed = System.currentTimeMillis();
+			dataset = d;
+		}
+
+		boolean loaded = false;
+		try
+		{
+			load( dataset );
+			loaded = true;
+		}
+		finally
+		{
+			if ( !loaded )
+				release( dataset );
+		}
+		unloadIdle();
+		return dataset;
+	}
+
+	/**
+	 * Release a dataset {@link #acquire(String) acquired} before.
+	 */
+	public void release( final Dataset dataset )
+	{
+		synchronized ( this )
+		{
+			--dataset.users;
+			dataset.lastUsed = System.currentTimeMillis();
+		}
+		unloadIdle();
+	}
+
+	/**
+	 * Get the xml file of a dataset.
+	 *
+	 * @return the file, or {@code null} if there is no dataset of that name.
+	 */
+	private File getXml( final String name )
+	{
+		if ( dir == null )
+			return name.isEmpty() ? new File( options.datasetXml ) : null;
+		if ( !isValidName( name ) )
+			return null;
+		final File xml = new File( dir, name + ".xml" );
+		return xml.isFile() ? xml : null;
+	}
+
+	/**
+	 * Dataset names must not be empty, start with a dot, or contain other
+	 * characters than letters, digits, '.', '_', and '-'.
+	 */
+	static boolean isValidName( final String name )
+	{
+		if ( name.isEmpty() || name.startsWith( "." ) )
+			return false;
+		for ( int i = 0; i < name.length(); ++i )
+		{
+			final char c = name.charAt( i );
+			if ( !Character.isLetterOrDigit( c ) && c != '.' && c != '_' && c != '-' )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create loader, generators, and prefetcher of a dataset, unless it is
+	 * loaded already.
+	 */
+	private void load( final Dataset dataset ) throws IOException
+	{
+		synchronized ( dataset )
+		{
+			if ( dataset.loader != null )
+				return;
+			final SequenceViewsLoader loader;
+			try
+			{
+				loader = new SequenceViewsLoader( dataset.xml.getPath() );
+			}
+			catch ( final Exception e )
+			{
+				throw new IOException( "cannot load dataset '" + dataset.name + "' from " + dataset.xml, e );
+			}
+			final GeneratorPool generators = new GeneratorPool( new GeneratorPool.Factory()
+			{
+				@Override
+				public TileGenerator create()
+				{
+					return new TileGenerator( loader, metrics );
+				}
+			}, options.minGenerators, options.numGenerators, options.generatorGrowWaitMillis, options.generatorIdleMillis, options.generatorTimeoutMillis );
+			dataset.version = getVersion( dataset.xml );
+			dataset.generators = generators;
+			dataset.prefetcher = prefetchCache == null ?
+					null :
+					new Prefetcher( generators, prefetchCache, flights, options.prefetchThreads, options.maxQueuedPrefetches, options.prefetchMinIdleGenerators );
+			dataset.loader = loader;
+		}
+		synchronized ( this )
+		{
+			++numLoads;
+		}
+	}
+
+	/**
+	 * Get the version of a dataset xml file, see {@link Dataset#getVersion()}.
+	 */
+	private String getVersion( final File xml )
+	{
+		if ( !options.datasetVersion.isEmpty() )
+			return options.datasetVersion;
+		return Integer.toHexString( xml.getAbsolutePath().hashCode() ) + "-" + Long.toHexString( xml.length() ) + "-" + Long.toHexString( xml.lastModified() );
+	}
+
+	/**
+	 * Drop loader, generators, and prefetcher of a dataset, and its blocks in
+	 * the {@link BlockCache#getShared() shared block cache}. Must only be
+	 * called for datasets that are not acquired.
+	 */
+	private void unload( final Dataset dataset )
+	{
+		synchronized ( dataset )
+		{
+			if ( dataset.loader == null )
+				return;
+			if ( dataset.prefetcher != null )
+				dataset.prefetcher.shutdown();
+			final BlockCache blockCache = BlockCache.getShared();
+			if ( blockCache != null )
+				blockCache.invalidate( dataset.loader );
+			dataset.generators.shutdown();
+			dataset.prefetcher = null;
+			dataset.generators = null;
+			dataset.loader = null;
+		}
+		++numUnloads;
+	}
+
+	/**
+	 * Unload least recently used datasets that are not acquired, until at
+	 * most {@link TileServerOptions#maxLoadedDatasets} are loaded.
+	 */
+	private synchronized void unloadIdle()
+	{
+		final ArrayList< Dataset > loaded = new ArrayList< Dataset >();
+		for ( final Dataset dataset : datasets.values() )
+			if ( dataset.isLoaded() )
+				loaded.add( dataset );
+		while ( loaded.size() > Math.max( 1, options.maxLoadedDatasets ) )
+		{
+			Dataset victim = null;
+			for ( final Dataset dataset : loaded )
+				if ( dataset.users == 0 && ( victim == null || dataset.lastUsed < victim.lastUsed ) )
+					victim = dataset;
+			if ( victim == null )
+				return;
+			unload( victim );
+			loaded.remove( victim );
+		}
+	}
+
+	/**
+	 * Stop the prefetchers of all loaded datasets.
+	 */
+	public synchronized void shutdown()
+	{
+		for ( final Dataset dataset : datasets.values() )
+		{
+			final Prefetcher prefetcher = dataset.prefetcher;
+			if ( prefetcher != null )
+				prefetcher.shutdown();
+		}
+	}
+
+	public synchronized int getNumLoaded()
+	{
+		int n = 0;
+		for ( final Dataset dataset : datasets.values() )
+			if ( dataset.isLoaded() )
+				++n;
+		return n;
+	}
+
+	/**
+	 * Get the generator pools of all loaded datasets.
+	 */
+	public synchronized ArrayList< GeneratorPool > getGeneratorPools()
+	{
+		final ArrayList< GeneratorPool > pools = new ArrayList< GeneratorPool >();
+		for ( final Dataset dataset : datasets.values() )
+		{
+			final GeneratorPool generators = dataset.generators;
+			if ( generators != null )
+				pools.add( generators );
+		}
+		return pools;
+	}
+
+	/**
+	 * Whether the initial generators of all loaded datasets are built.
+	 */
+	public boolean isReady()
+	{
+		for ( final GeneratorPool generators : getGeneratorPools() )
+			if ( !generators.isReady() )
+				return false;
+		return true;
+	}
+
+	public synchronized long getNumLoads()
+	{
+		return numLoads;
+	}
+
+	public synchronized long getNumUnloads()
+	{
+		return numUnloads;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( String.format( "datasets: %d/%d loaded  loads:%d  unloads:%d",
+				getNumLoaded(), options.maxLoadedDatasets, numLoads, numUnloads ) );
+		for ( final Dataset dataset : datasets.values() )
+			if ( dataset.isLoaded() )
+				sb.append( "\n" ).append( dataset );
+		return sb.toString();
+	}
+}
@@ -0,0 +1,614 @@
+package tileserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of encoded tiles, the second level behind {@link TileCache}.
+ * Tiles are appended to memory-mapped segment files in a directory. The index
+ * is rebuilt from the segments at startup, such that the cache survives
+ * restarts.
+ *
+ * Entries are keyed on the canonical {@link TileRequest#getKey() request key},
+ * which contains the dataset version. Entries of other versions are never hit,
+ * so their segments are the first to be evicted.
+ *
+ * The size limit is enforced by deleting whole segments: the segment that
+ * contains the least recently used tile is deleted with all its tiles. Segment
+ * files are counted with their full mapped size. Recency is persisted per
+ * segment, as the modification time of its file, which is updated when the
+ * segment is hit (at most every {@link #TOUCH_INTERVAL_MILLIS}). At startup,
+ * segments are indexed from least to most recently used.
+ *
+ * Hits are returned as read-only views of the mapped segments, such that they
+ * can be written to the network without copying through the heap (Jetty
+ * writes them like its own memory-mapped static files, rather than with
+ * {@link FileChannel#transferTo}). Views may still be in flight when their
+ * segment is evicted. On POSIX systems the mapping stays valid after the file
+ * is deleted. Where mapped files cannot be deleted (Windows), the file is
+ * deleted on a later eviction or at {@link #close()}.
+ *
+ * Tiles are {@link #put(String, TileCache.Tile) put} asynchronously: they are
+ * queued and appended by a background thread, such that rendering threads do
+ * not wait for the disk. When the queue is full, tiles are not cached.
+ */
+public class DiskTileCache
+{
+	/**
+	 * Marks a complete record. Written last, such that records torn by a
+	 * crash are not seen at the next startup.
+	 */
+	static final int MAGIC = 0x54494c45;
+
+	/**
+	 * magic, crc, key length, content type length, etag length, data length.
+	 */
+	static final int HEADER_BYTES = 6 * 4;
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * Maximum number of tiles waiting to be appended.
+	 */
+	static final int MAX_QUEUED_WRITES = 256;
+
+	/**
+	 * How often (ms) at most to persist that a segment was hit.
+	 */
+	static final long TOUCH_INTERVAL_MILLIS = 60 * 1000;
+
+	/**
+	 * A cached tile, as returned by {@link DiskTileCache#get(String)}.
+	 */
+	public static class Hit
+	{
+		private final ByteBuffer data;
+
+		private final String contentType;
+
+		private final String etag;
+
+		Hit( final ByteBuffer data, final String contentType, final String etag )
+		{
+			this.data = data;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+
+		/**
+		 * Get a read-only view of the encoded tile in the mapped segment.
+		 */
+		public ByteBuffer getData()
+		{
+			return data;
+		}
+
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		public String getETag()
+		{
+			return etag;
+		}
+	}
+
+	private static class Segment
+	{
+		final int id;
+
+		final File file;
+
+		final RandomAccessFile raf;
+
+		final MappedByteBuffer buffer;
+
+		/**
+		 * Bytes used by records.
+		 */
+		int size;
+
+		/**
+		 * Keys of the indexed records, such that they can be removed from the
+		 * index when the segment is evicted.
+		 */
+		final ArrayList< String > keys;
+
+		/**
+		 * Time (ms) the hit was last persisted as the modification time of
+		 * the {@link #file}.
+		 */
+		volatile long touched;
+
+		Segment( final int id, final File file, final int capacity ) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			raf = new RandomAccessFile( file, "rw" );
+			buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, Math.max( capacity, raf.length() ) );
+			size = 0;
+			keys = new ArrayList< String >();
+			touched = file.lastModified();
+		}
+
+		/**
+		 * Persist that the segment was hit, unless that was done recently.
+		 */
+		void touch()
+		{
+			final long now = System.currentTimeMillis();
+			if ( now - touched > TOUCH_INTERVAL_MILLIS )
+			{
+				touched = now;
+				file.setLastModified( now );
+			}
+		}
+
+		void close()
+		{
+			buffer.force();
+			try
+			{
+				raf.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Write
+	{
+		final String key;
+
+		final TileCache.Tile tile;
+
+		Write( final String key, final TileCache.Tile tile )
+		{
+			this.key = key;
+			this.tile = tile;
+		}
+	}
+
+	private static class Entry
+	{
+		final Segment segment;
+
+		final int dataOffset;
+
+		final int dataLength;
+
+		final String contentType;
+
+		final String etag;
+
+		Entry( final Segment segment, final int dataOffset, final int dataLength, final String contentType, final String etag )
+		{
+			this.segment = segment;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+	}
+
+	private final File dir;
+
+	private final long maxBytes;
+
+	private final int segmentBytes;
+
+	/**
+	 * Index in access order, keyed on request key.
+	 */
+	private final LinkedHashMap< String, Entry > index;
+
+	private final ArrayList< Segment > segments;
+
+	/**
+	 * The segment new tiles are appended to.
+	 */
+	private Segment active;
+
+	/**
+	 * Sum of the mapped sizes of all segment files.
+	 */
+	private long bytes;
+
+	/**
+	 * Files of evicted segments that could not be deleted yet.
+	 */
+	private final ArrayList< File > undeleted;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private long evictedSegments;
+
+	/**
+	 * Tiles waiting to be appended by the {@link #writer}.
+	 */
+	private final BlockingQueue< Write > writes;
+
+	private final Thread writer;
+
+	private final AtomicLong droppedWrites;
+
+	/**
+	 * @param dir
+	 *            directory of the segment files.
+	 * @param maxBytes
+	 *            byte budget of all segments.
+	 * @param segmentBytes
+	 *            size of a segment file.
+	 */
+	public DiskTileCache( final File dir, final long maxBytes, final int segmentBytes ) throws IOException
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = segmentBytes;
+		index = new LinkedHashMap< String, Entry >( 1024, 0.75f, true );
+		segments = new ArrayList< Segment >();
+		bytes = 0;
+		undeleted = new ArrayList< File >();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictedSegments = 0;
+		writes = new ArrayBlockingQueue< Write >( MAX_QUEUED_WRITES );
+		droppedWrites = new AtomicLong();
+
+		dir.mkdirs();
+		final File[] files = dir.listFiles();
+		final ArrayList< Integer > ids = new ArrayList< Integer >();
+		final HashMap< Integer, Long > lastModified = new HashMap< Integer, Long >();
+		if ( files != null )
+			for ( final File file : files )
+			{
+				final String name = file.getName();
+				if ( name.startsWith( "segment-" ) && name.endsWith( ".dat" ) )
+				{
+					final int id = Integer.parseInt( name.substring( 8, name.length() - 4 ) );
+					ids.add( id );
+					lastModified.put( id, file.lastModified() );
+				}
+			}
+		// least recently used first, such that the index starts in access
+		// order
+		Collections.sort( ids, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer a, final Integer b )
+			{
+				final int c = lastModified.get( a ).compareTo( lastModified.get( b ) );
+				return c != 0 ? c : a.compareTo( b );
+			}
+		} );
+		active = null;
+		for ( final int id : ids )
+		{
+			final Segment segment = new Segment( id, segmentFile( id ), segmentBytes );
+			load( segment );
+			if ( active == null || segment.id > active.id )
+				active = segment;
+		}
+		evict();
+
+		writer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "disk-cache-writer" );
+		writer.setDaemon( true );
+		writer.start();
+	}
+
+	private File segmentFile( final int id )
+	{
+		return new File( dir, "segment-" + id + ".dat" );
+	}
+
+	/**
+	 * Add the records of a segment to the index.
+	 */
+	private void load( final Segment segment )
+	{
+		final ByteBuffer buf = segment.buffer.duplicate();
+		int pos = 0;
+		while ( pos + HEADER_BYTES <= buf.capacity() && buf.getInt( pos ) == MAGIC )
+		{
+			final int crc = buf.getInt( pos + 4 );
+			final int keyLength = buf.getInt( pos + 8 );
+			final int typeLength = buf.getInt( pos + 12 );
+			final int etagLength = buf.getInt( pos + 16 );
+			final int dataLength = buf.getInt( pos + 20 );
+			final int bodyLength = keyLength + typeLength + etagLength + dataLength;
+			if ( keyLength < 0 || typeLength < 0 || etagLength < 0 || dataLength < 0 || pos + HEADER_BYTES + bodyLength > buf.capacity() )
+				break;
+			final byte[] body = new byte[ bodyLength ];
+			buf.position( pos + HEADER_BYTES );
+			buf.get( body );
+			final CRC32 crc32 = new CRC32();
+			crc32.update( body );
+			if ( ( int ) crc32.getValue() != crc )
+				break;
+			final String key = new String( body, 0, keyLength, UTF8 );
+			if ( !index.containsKey( key ) )
+			{
+				final String contentType = new String( body, keyLength, typeLength, UTF8 );
+				final String etag = etagLength == 0 ? null : new String( body, keyLength + typeLength, etagLength, UTF8 );
+				index.put( key, new Entry( segment, pos + HEADER_BYTES + bodyLength - dataLength, dataLength, contentType, etag ) );
+				segment.keys.add( key );
+			}
+			pos += HEADER_BYTES + bodyLength;
+		}
+		segment.size = pos;
+		segments.add( segment );
+		bytes += segment.buffer.capacity();
+	}
+
+	/**
+	 * Get a cached tile.
+	 *
+	 * @return the tile, or {@code null} if it is not cached.
+	 */
+	public Hit get( final String key )
+	{
+		final ByteBuffer data;
+		final Entry entry;
+		synchronized ( this )
+		{
+			entry = index.get( key );
+			if ( entry == null )
+			{
+				misses.incrementAndGet();
+				return null;
+			}
+			data = entry.segment.buffer.duplicate();
+		}
+		hits.incrementAndGet();
+		entry.segment.touch();
+		data.limit( entry.dataOffset + entry.dataLength );
+		data.position( entry.dataOffset );
+		return new Hit( data.slice().asReadOnlyBuffer(), entry.contentType, entry.etag );
+	}
+
+	/**
+	 * Whether a tile is cached. Does not count as hit or miss, nor as access.
+	 */
+	public synchronized boolean contains( final String key )
+	{
+		return index.containsKey( key );
+	}
+
+	/**
+	 * Queue a tile to be appended. The tile is dropped if too many tiles are
+	 * queued already.
+	 */
+	public void put( final String key, final TileCache.Tile tile )
+	{
+		if ( !writes.offer( new Write( key, tile ) ) )
+			droppedWrites.incrementAndGet();
+	}
+
+	private void writeLoop()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Write w = writes.take();
+				try
+				{
+					write( w.key, w.tile );
+				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{}
+	}
+
+	/**
+	 * Append a tile and evict segments if the cache grew beyond its budget.
+	 * Tiles that are cached already are not appended again (rendering is
+	 * deterministic).
+	 */
+	private synchronized void write( final String key, final TileCache.Tile tile ) throws IOException
+	{
+		if ( index.containsKey( key ) )
+			return;
+
+		final byte[] keyBytes = key.getBytes( UTF8 );
+		final byte[] typeBytes = tile.getContentType().getBytes( UTF8 );
+		final byte[] etagBytes = tile.getETag() == null ? new byte[ 0 ] : tile.getETag().getBytes( UTF8 );
+		final byte[] data = tile.getData();
+		final int recordLength = HEADER_BYTES + keyBytes.length + typeBytes.length + etagBytes.length + data.length;
+		if ( recordLength > segmentBytes )
+			return;
+
+		if ( active == null || active.size + recordLength > active.buffer.capacity() )
+		{
+			final int id = active == null ? 0 : active.id + 1;
+			active = new Segment( id, segmentFile( id ), segmentBytes );
+			segments.add( active );
+			bytes += active.buffer.capacity();
+		}
+
+		final int pos = active.size;
+		final ByteBuffer buf = active.buffer.duplicate();
+		final CRC32 crc32 = new CRC32();
+		crc32.update( keyBytes );
+		crc32.update( typeBytes );
+		crc32.update( etagBytes );
+		crc32.update( data );
+		buf.position( pos + 4 );
+		buf.putInt( ( int ) crc32.getValue() );
+		buf.putInt( keyBytes.length );
+		buf.putInt( typeBytes.length );
+		buf.putInt( etagBytes.length );
+		buf.putInt( data.length );
+		buf.put( keyBytes );
+		buf.put( typeBytes );
+		buf.put( etagBytes );
+		buf.put( data );
+		buf.putInt( pos, MAGIC );
+
+		active.size += recordLength;
+		index.put( key, new Entry( active, pos + recordLength - data.length, data.length, tile.getContentType(), tile.getETag() ) );
+		active.keys.add( key );
+		evict();
+	}
+
+	/**
+	 * Delete segments until the cache fits its budget. The segment of the
+	 * least recently used tile is deleted first. The active segment is never
+	 * deleted.
+	 */
+	private void evict()
+	{
+		deleteUndeleted();
+		while ( bytes > maxBytes )
+		{
+			Segment victim = null;
+			for ( final Entry entry : index.values() )
+				if ( entry.segment != active )
+				{
+					victim = entry.segment;
+					break;
+				}
+			if ( victim == null )
+				for ( final Segment segment : segments )
+					if ( segment != active )
+					{
+						victim = segment;
+						break;
+					}
+			if ( victim == null )
+				return;
+
+			for ( final String key : victim.keys )
+				index.remove( key );
+			segments.remove( victim );
+			bytes -= victim.buffer.capacity();
+			++evictedSegments;
+			// the mapping stays valid for views handed out by get(), until
+			// they are garbage collected
+			victim.close();
+			if ( !victim.file.delete() )
+				undeleted.add( victim.file );
+		}
+	}
+
+	/**
+	 * Retry deleting the files of evicted segments, which fails while they
+	 * are mapped on some platforms.
+	 */
+	private void deleteUndeleted()
+	{
+		final Iterator< File > it = undeleted.iterator();
+		while ( it.hasNext() )
+		{
+			final File file = it.next();
+			if ( file.delete() || !file.exists() )
+				it.remove();
+		}
+	}
+
+	/**
+	 * Stop appending queued tiles, flush all segments to disk and close them.
+	 */
+	public void close()
+	{
+		writer.interrupt();
+		try
+		{
+			writer.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		closeSegments();
+	}
+
+	private synchronized void closeSegments()
+	{
+		for ( final Segment segment : segments )
+			segment.close();
+		deleteUndeleted();
+		segments.clear();
+		index.clear();
+		active = null;
+		bytes = 0;
+	}
+
+	public synchronized int getNumTiles()
+	{
+		return index.size();
+	}
+
+	/**
+	 * Get the bytes of all segment files, including unused space at their
+	 * ends.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public synchronized long getEvictedSegments()
+	{
+		return evictedSegments;
+	}
+
+	/**
+	 * Get the number of tiles that were not cached because too many were
+	 * queued.
+	 */
+	public long getDroppedWrites()
+	{
+		return droppedWrites.get();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "disk cache: %d tiles  %d/%d MB in %d segments  hits:%d  misses:%d  evicted segments:%d  dropped writes:%d",
+				getNumTiles(), getBytes() / ( 1024 * 1024 ), maxBytes / ( 1024 * 1024 ), segments.size(),
+				getHits(), getMisses(), getEvictedSegments(), getDroppedWrites() );
+	}
+}
@@ -0,0 +1,105 @@
+package tileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that encoded tiles are written to. Unlike
+ * {@link java.io.ByteArrayOutputStream}, it is not synchronized, can be
+ * written at arbitrary positions (see {@link BufferImageOutputStream}), and
+ * exposes its backing array. Each {@link TileGenerator} reuses one buffer for
+ * all its tiles, so that encoding does not allocate in steady state.
+ */
+public class EncodeBuffer extends OutputStream
+{
+	private byte[] data;
+
+	private int size;
+
+	public EncodeBuffer( final int capacity )
+	{
+		data = new byte[ capacity ];
+		size = 0;
+	}
+
+	/**
+	 * Discard the contents, keeping the backing array.
+	 */
+	public void reset()
+	{
+		size = 0;
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity > data.length )
+			data = Arrays.copyOf( data, Math.max( capacity, 2 * data.length ) );
+	}
+
+	@Override
+	public void write( final int b )
+	{
+		ensureCapacity( size + 1 );
+		data[ size++ ] = ( byte ) b;
+	}
+
+	@Override
+	public void write( final byte[] b, final int off, final int len )
+	{
+		ensureCapacity( size + len );
+		System.arraycopy( b, off, data, size, len );
+		size += len;
+	}
+
+	/**
+	 * Write {@code len} bytes at {@code pos}, growing the buffer if they
+	 * extend beyond its {@link #size()}.
+	 */
+	public void write( final int pos, final byte[] b, final int off, final int len )
+	{
+		ensureCapacity( pos + len );
+		System.arraycopy( b, off, data, pos, len );
+		size = Math.max( size, pos + len );
+	}
+
+	/**
+	 * Write one byte at {@code pos}, see {@link #write(int, byte[], int, int)}.
+	 */
+	public void write( final int pos, final int b )
+	{
+		ensureCapacity( pos + 1 );
+		data[ pos ] = ( byte ) b;
+		size = Math.max( size, pos + 1 );
+	}
+
+	/**
+	 * Get the backing array. Valid bytes are {@code [0, size())}. The array is
+	 * replaced when the buffer grows.
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get a copy of the contents.
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf( data, size );
+	}
+
+	/**
+	 * Write the contents to {@code os} in one call.
+	 */
+	public void writeTo( final OutputStream os ) throws IOException
+	{
+		os.write( data, 0, size );
+	}
+}
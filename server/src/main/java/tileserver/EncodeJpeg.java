@@ -1,14 +1,12 @@
 package tileserver;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
 
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.display.ARGBScreenImage;
@@ -36,13 +34,11 @@ public class EncodeJpeg
 		param.setCompressionQuality( 1f );
 		param.setSourceSubsampling( 1, 1, 0, 0 );
 
-		final ByteArrayOutputStream stream = new ByteArrayOutputStream( ( int ) argb.size() );
-		final ImageOutputStream ios = ImageIO.createImageOutputStream( stream );
-		jpegWriter.setOutput( ios );
+		final EncodeBuffer buffer = new EncodeBuffer( ( int ) argb.size() );
+		jpegWriter.setOutput( new BufferImageOutputStream( buffer ) );
 		final IIOImage iioImage = new IIOImage( bi, null, null );
 		jpegWriter.write( null, iioImage, param );
-		ios.close();
-		final byte[] data = stream.toByteArray();
+		final byte[] data = buffer.toByteArray();
 
 		jpegWriter.dispose();
 
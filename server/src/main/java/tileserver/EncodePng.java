@@ -1,5 +1,6 @@
 package tileserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import net.imglib2.img.array.ArrayImg;
@@ -15,7 +16,9 @@ public class EncodePng
 	public static byte[] encodePng( final ArrayImg< UnsignedByteType, ByteArray > img ) throws IOException
 	{
 		final byte[] gray = img.update( null ).getCurrentStorageArray();
-		final byte[] data = PNG.toPNG( ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), null, gray, gray, gray );
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream( gray.length );
+		new PngEncoder( 6 ).writeGray8( gray, ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), stream );
+		final byte[] data = stream.toByteArray();
 		return data;
 	}
 
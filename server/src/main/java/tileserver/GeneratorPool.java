@@ -0,0 +1,473 @@
+package tileserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@link TileGenerator}s whose size adapts to the load, between a
+ * minimum and a maximum.
+ * <p>
+ * The minimum number of generators is built in parallel when the pool is
+ * created. The pool is {@link #isReady() ready} once they are built. When a
+ * {@link #take()} has to wait longer than the grow threshold, another
+ * generator is built (up to the maximum). When no {@link #take()} had to wait
+ * for the idle time, returned generators are dropped (down to the minimum).
+ * <p>
+ * Generators must be returned with {@link #put(TileGenerator)}, or with
+ * {@link #discard(TileGenerator)} if rendering failed. Generators that are
+ * taken for longer than the timeout are {@link TileGenerator#cancel()
+ * cancelled}. If they are still not returned after twice the timeout, they are
+ * counted as leaked and replaced. Both are checked while a {@link #take()}
+ * waits, i.e., when the generators are needed.
+ */
+public class GeneratorPool
+{
+	/**
+	 * Creates the generators of a pool.
+	 */
+	public interface Factory
+	{
+		public TileGenerator create();
+	}
+
+	/**
+	 * A generator taken from the pool.
+	 */
+	private static class Taken
+	{
+		final long time = System.currentTimeMillis();
+
+		final AtomicBoolean cancelled = new AtomicBoolean();
+	}
+
+	/**
+	 * Builds generators for all pools, in parallel.
+	 */
+	private static final ExecutorService builders = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+	{
+		private final AtomicInteger n = new AtomicInteger();
+
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread thread = new Thread( r, "generator-builder-" + n.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+
+	private final Factory factory;
+
+	private final int minSize;
+
+	private final int maxSize;
+
+	private final long growWaitMillis;
+
+	private final long idleMillis;
+
+	private final long timeoutMillis;
+
+	/**
+	 * Idle generators, most recently returned first.
+	 */
+	private final LinkedBlockingDeque< TileGenerator > idle;
+
+	/**
+	 * Notified when a generator becomes idle, see {@link #poll(int, long)}.
+	 */
+	private final Object idleMonitor = new Object();
+
+	/**
+	 * Generators taken from the pool.
+	 */
+	private final ConcurrentHashMap< TileGenerator, Taken > taken;
+
+	/**
+	 * Generators that exist or are being built, excluding leaked ones.
+	 */
+	private final AtomicInteger size;
+
+	/**
+	 * Generators built so far.
+	 */
+	private final AtomicInteger numBuilt;
+
+	/**
+	 * Time (ms) a {@link #take()} last had to wait.
+	 */
+	private volatile long lastWait;
+
+	private volatile boolean shutdown;
+
+	private final AtomicLong numTakes = new AtomicLong();
+
+	private final AtomicLong numWaits = new AtomicLong();
+
+	private final AtomicLong numGrown = new AtomicLong();
+
+	private final AtomicLong numShrunk = new AtomicLong();
+
+	private final AtomicLong numFailed = new AtomicLong();
+
+	private final AtomicLong numTimedOut = new AtomicLong();
+
+	private final AtomicLong numLeaked = new AtomicLong();
+
+	private final AtomicLong numBuildErrors = new AtomicLong();
+
+	/**
+	 * @param factory
+	 *            creates generators.
+	 * @param minSize
+	 *            number of generators built right away and kept when idle.
+	 * @param maxSize
+	 *            maximum number of generators.
+	 * @param growWaitMillis
+	 *            build another generator when a {@link #take()} waits longer
+	 *            than this (ms).
+	 * @param idleMillis
+	 *            drop returned generators when no {@link #take()} had to wait
+	 *            for this long (ms).
+	 * @param timeoutMillis
+	 *            cancel generators taken for longer than this (ms), and
+	 *            replace them if they are not returned after twice this.
+	 */
+	public GeneratorPool( final Factory factory, final int minSize, final int maxSize, final long growWaitMillis, final long idleMillis, final long timeoutMillis )
+	{
+		this.factory = factory;
+		this.maxSize = Math.max( 1, maxSize );
+		this.minSize = Math.max( 1, Math.min( minSize, this.maxSize ) );
+		this.growWaitMillis = Math.max( 1, growWaitMillis );
+		this.idleMillis = idleMillis;
+		this.timeoutMillis = timeoutMillis;
+		idle = new LinkedBlockingDeque< TileGenerator >();
+		taken = new ConcurrentHashMap< TileGenerator, Taken >();
+		size = new AtomicInteger();
+		numBuilt = new AtomicInteger();
+		lastWait = System.currentTimeMillis();
+		shutdown = false;
+		for ( int i = 0; i < this.minSize; ++i )
+			build();
+	}
+
+	/**
+	 * Build a generator in the background, unless the pool is at its maximum
+	 * size.
+	 *
+	 * @return whether a generator is built.
+	 */
+	private boolean build()
+	{
+		while ( true )
+		{
+			final int s = size.get();
+			if ( s >= maxSize || shutdown )
+				return false;
+			if ( size.compareAndSet( s, s + 1 ) )
+				break;
+		}
+		builders.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				boolean added = false;
+				try
+				{
+					final TileGenerator generator = factory.create();
+					numBuilt.incrementAndGet();
+					if ( !shutdown )
+					{
+						addIdle( generator );
+						added = true;
+					}
+				}
+				catch ( final RuntimeException e )
+				{
+					e.printStackTrace();
+					numBuildErrors.incrementAndGet();
+				}
+				finally
+				{
+					// also if factory.create() threw an Error
+					if ( !added )
+						size.decrementAndGet();
+				}
+			}
+		} );
+		return true;
+	}
+
+	/**
+	 * Wait for an idle generator. If the wait takes longer than the grow
+	 * threshold, another generator is built. Generators whose build failed
+	 * are rebuilt while waiting, so that a failed build cannot leave the pool
+	 * below its minimum size (or empty) for good.
+	 */
+	public TileGenerator take() throws InterruptedException
+	{
+		numTakes.incrementAndGet();
+		TileGenerator generator = idle.pollFirst();
+		if ( generator == null )
+		{
+			numWaits.incrementAndGet();
+			boolean grown = false;
+			while ( generator == null )
+			{
+				reclaimTimedOut();
+				generator = idle.pollFirst( growWaitMillis, TimeUnit.MILLISECONDS );
+				if ( generator == null )
+				{
+					if ( !grown )
+					{
+						if ( build() )
+						{
+							grown = true;
+							numGrown.incrementAndGet();
+						}
+					}
+					else if ( size.get() < minSize )
+						build();
+				}
+			}
+			lastWait = System.currentTimeMillis();
+		}
+		checkOut( generator );
+		return generator;
+	}
+
+	/**
+	 * Take the least recently used idle generator, if more than
+	 * {@code minIdle} generators are idle. Does not wait, and does not grow
+	 * the pool.
+	 *
+	 * @return the generator, or {@code null} if there is none.
+	 */
+	public TileGenerator poll( final int minIdle )
+	{
+		if ( idle.size() <= minIdle )
+			return null;
+		final TileGenerator generator = idle.pollLast();
+		if ( generator != null )
+			checkOut( generator );
+		return generator;
+	}
+
+	/**
+	 * Wait until more than {@code minIdle} generators are idle and take the
+	 * least recently used one. Does not grow the pool.
+	 *
+	 * @return the generator, or {@code null} if none became available within
+	 *         {@code timeoutMillis}.
+	 */
+	public TileGenerator poll( final int minIdle, final long timeoutMillis ) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized ( idleMonitor )
+		{
+			while ( true )
+			{
+				final TileGenerator generator = poll( minIdle );
+				if ( generator != null )
+					return generator;
+				final long wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 || shutdown )
+					return null;
+				idleMonitor.wait( wait );
+			}
+		}
+	}
+
+	private void checkOut( final TileGenerator generator )
+	{
+		generator.resetCancel();
+		taken.put( generator, new Taken() );
+	}
+
+	/**
+	 * Return a generator. It is dropped if the pool shrinks, or if it was
+	 * replaced after timing out.
+	 */
+	public void put( final TileGenerator generator )
+	{
+		if ( taken.remove( generator ) == null )
+			return;
+		if ( shutdown )
+		{
+			size.decrementAndGet();
+			return;
+		}
+		if ( System.currentTimeMillis() - lastWait > idleMillis && shrink() )
+		{
+			numShrunk.incrementAndGet();
+			return;
+		}
+		addIdle( generator );
+	}
+
+	private void addIdle( final TileGenerator generator )
+	{
+		idle.addFirst( generator );
+		synchronized ( idleMonitor )
+		{
+			idleMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Return a generator whose rendering failed. It is dropped, and replaced
+	 * if the pool falls below its minimum size.
+	 */
+	public void discard( final TileGenerator generator )
+	{
+		if ( taken.remove( generator ) == null )
+			return;
+		numFailed.incrementAndGet();
+		size.decrementAndGet();
+		if ( size.get() < minSize )
+			build();
+	}
+
+	/**
+	 * Decrement the size if it is above the minimum.
+	 */
+	private boolean shrink()
+	{
+		while ( true )
+		{
+			final int s = size.get();
+			if ( s <= minSize )
+				return false;
+			if ( size.compareAndSet( s, s - 1 ) )
+				return true;
+		}
+	}
+
+	/**
+	 * Cancel generators that were taken for longer than the timeout. Replace
+	 * those taken for longer than twice the timeout.
+	 */
+	private void reclaimTimedOut()
+	{
+		if ( timeoutMillis <= 0 )
+			return;
+		final long now = System.currentTimeMillis();
+		final Iterator< Map.Entry< TileGenerator, Taken > > it = taken.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final Map.Entry< TileGenerator, Taken > entry = it.next();
+			final Taken t = entry.getValue();
+			final long age = now - t.time;
+			if ( age > 2 * timeoutMillis )
+			{
+				if ( taken.remove( entry.getKey(), t ) )
+				{
+					numLeaked.incrementAndGet();
+					size.decrementAndGet();
+					build();
+				}
+			}
+			else if ( age > timeoutMillis && t.cancelled.compareAndSet( false, true ) )
+			{
+				numTimedOut.incrementAndGet();
+				entry.getKey().cancel();
+			}
+		}
+	}
+
+	/**
+	 * Whether the initial generators are built.
+	 */
+	public boolean isReady()
+	{
+		return numBuilt.get() >= minSize;
+	}
+
+	/**
+	 * Drop all generators. Taken generators are dropped when they are
+	 * returned.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		while ( idle.pollFirst() != null )
+			size.decrementAndGet();
+	}
+
+	/**
+	 * Get the number of generators, including those being built.
+	 */
+	public int getSize()
+	{
+		return size.get();
+	}
+
+	public int getNumIdle()
+	{
+		return idle.size();
+	}
+
+	public int getNumTaken()
+	{
+		return taken.size();
+	}
+
+	/**
+	 * Get the fraction of generators that are taken.
+	 */
+	public double getUtilization()
+	{
+		final int s = getSize();
+		return s == 0 ? 0 : Math.min( 1.0, ( double ) getNumTaken() / s );
+	}
+
+	public long getNumTakes()
+	{
+		return numTakes.get();
+	}
+
+	/**
+	 * Get the number of {@link #take()}s that had to wait.
+	 */
+	public long getNumWaits()
+	{
+		return numWaits.get();
+	}
+
+	public long getNumFailed()
+	{
+		return numFailed.get();
+	}
+
+	public long getNumTimedOut()
+	{
+		return numTimedOut.get();
+	}
+
+	/**
+	 * Get the number of generators that were not returned after twice the
+	 * timeout.
+	 */
+	public long getNumLeaked()
+	{
+		return numLeaked.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "generators: %d (%d-%d)  idle:%d  taken:%d  utilization:%.0f%%  waits:%d/%d  grown:%d  shrunk:%d  failed:%d  timed out:%d  leaked:%d  build errors:%d",
+				getSize(), minSize, maxSize, getNumIdle(), getNumTaken(), 100 * getUtilization(),
+				getNumWaits(), getNumTakes(), numGrown.get(), numShrunk.get(), getNumFailed(), getNumTimedOut(), getNumLeaked(), numBuildErrors.get() );
+	}
+}
@@ -0,0 +1,101 @@
+package tileserver;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with power-of-two nanosecond buckets. Recording is
+ * lock-free and can be done concurrently from any number of threads.
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Bucket {@code k} counts durations {@code d} with
+	 * {@code 2^(k-1) < d <= 2^k} ns (bucket 0 counts {@code d <= 1}).
+	 */
+	static final int NUM_BUCKETS = 64;
+
+	/**
+	 * Smallest bucket exported by {@link #write}, 2^10 ns (~1 us).
+	 */
+	static final int MIN_EXPORTED_BUCKET = 10;
+
+	/**
+	 * Largest bucket exported by {@link #write}, 2^36 ns (~69 s).
+	 */
+	static final int MAX_EXPORTED_BUCKET = 36;
+
+	private final String name;
+
+	private final String help;
+
+	private final AtomicLongArray buckets;
+
+	private final AtomicLong count;
+
+	private final AtomicLong sumNanos;
+
+	/**
+	 * @param name
+	 *            metric name (without unit suffix).
+	 * @param help
+	 *            description of the metric.
+	 */
+	public LatencyHistogram( final String name, final String help )
+	{
+		this.name = name;
+		this.help = help;
+		buckets = new AtomicLongArray( NUM_BUCKETS );
+		count = new AtomicLong();
+		sumNanos = new AtomicLong();
+	}
+
+	/**
+	 * Record a duration (ns). Negative durations are recorded as 0.
+	 */
+	public void record( final long nanos )
+	{
+		final long d = Math.max( 0, nanos );
+		buckets.incrementAndGet( bucket( d ) );
+		count.incrementAndGet();
+		sumNanos.addAndGet( d );
+	}
+
+	static int bucket( final long nanos )
+	{
+		return nanos <= 1 ? 0 : Math.min( NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( nanos - 1 ) );
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getSumNanos()
+	{
+		return sumNanos.get();
+	}
+
+	/**
+	 * Write the histogram in Prometheus text format, with cumulative buckets
+	 * and durations in seconds.
+	 */
+	public void write( final PrintWriter out )
+	{
+		out.println( "# HELP " + name + "_seconds " + help );
+		out.println( "# TYPE " + name + "_seconds histogram" );
+		long cumulative = 0;
+		for ( int k = 0; k < NUM_BUCKETS; ++k )
+		{
+			cumulative += buckets.get( k );
+			if ( k >= MIN_EXPORTED_BUCKET && k <= MAX_EXPORTED_BUCKET )
+				out.println( name + "_seconds_bucket{le=\"" + ( ( 1l << k ) * 1e-9 ) + "\"} " + cumulative );
+		}
+		// count and buckets are not updated atomically together, so use the
+		// sum of the buckets as the total
+		out.println( name + "_seconds_bucket{le=\"+Inf\"} " + cumulative );
+		out.println( name + "_seconds_sum " + ( sumNanos.get() * 1e-9 ) );
+		out.println( name + "_seconds_count " + cumulative );
+	}
+}
@@ -0,0 +1,123 @@
+package tileserver;
+
+import java.util.Arrays;
+
+/**
+ * Minimal LZ4 block format compressor (greedy matching with a single-entry
+ * hash table, as in the LZ4 "fast" mode). The output is a raw LZ4 block that
+ * can be decoded with any LZ4 block decompressor, given the uncompressed size.
+ */
+public class Lz4
+{
+	private static final int MIN_MATCH = 4;
+
+	private static final int LAST_LITERALS = 5;
+
+	private static final int MF_LIMIT = 12;
+
+	private static final int MAX_DISTANCE = 65535;
+
+	private static final int HASH_LOG = 12;
+
+	private final int[] hashTable = new int[ 1 << HASH_LOG ];
+
+	/**
+	 * Maximum compressed size for {@code length} input bytes.
+	 */
+	public static int maxCompressedLength( final int length )
+	{
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress {@code src[0, length)} into {@code dst}, which must have at
+	 * least {@link #maxCompressedLength(int)} bytes.
+	 *
+	 * @return the compressed size.
+	 */
+	public int compress( final byte[] src, final int length, final byte[] dst )
+	{
+		int ip = 0;
+		int anchor = 0;
+		int op = 0;
+
+		if ( length >= MF_LIMIT + 1 )
+		{
+			Arrays.fill( hashTable, -1 );
+			final int limit = length - MF_LIMIT;
+			final int matchLimit = length - LAST_LITERALS;
+			while ( ip < limit )
+			{
+				final int seq = readInt( src, ip );
+				final int h = hash( seq );
+				final int ref = hashTable[ h ];
+				hashTable[ h ] = ip;
+				if ( ref < 0 || ip - ref > MAX_DISTANCE || readInt( src, ref ) != seq )
+				{
+					++ip;
+					continue;
+				}
+
+				int matchLength = MIN_MATCH;
+				while ( ip + matchLength < matchLimit && src[ ref + matchLength ] == src[ ip + matchLength ] )
+					++matchLength;
+
+				op = writeSequence( src, anchor, ip - anchor, ip - ref, matchLength, dst, op );
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		// last literals
+		final int literals = length - anchor;
+		op = writeLiteralLength( dst, op, literals, 0 );
+		System.arraycopy( src, anchor, dst, op, literals );
+		return op + literals;
+	}
+
+	private static int writeSequence( final byte[] src, final int anchor, final int literals, final int offset, final int matchLength, final byte[] dst, int op )
+	{
+		final int ml = matchLength - MIN_MATCH;
+		op = writeLiteralLength( dst, op, literals, ml >= 15 ? 15 : ml );
+		System.arraycopy( src, anchor, dst, op, literals );
+		op += literals;
+		dst[ op++ ] = ( byte ) offset;
+		dst[ op++ ] = ( byte ) ( offset >>> 8 );
+		if ( ml >= 15 )
+			op = writeLength( dst, op, ml - 15 );
+		return op;
+	}
+
+	/**
+	 * Write the token (with the given match length nibble) and the extra
+	 * literal length bytes.
+	 */
+	private static int writeLiteralLength( final byte[] dst, int op, final int literals, final int matchNibble )
+	{
+		dst[ op++ ] = ( byte ) ( ( ( literals >= 15 ? 15 : literals ) << 4 ) | matchNibble );
+		if ( literals >= 15 )
+			op = writeLength( dst, op, literals - 15 );
+		return op;
+	}
+
+	private static int writeLength( final byte[] dst, int op, int len )
+	{
+		while ( len >= 255 )
+		{
+			dst[ op++ ] = ( byte ) 255;
+			len -= 255;
+		}
+		dst[ op++ ] = ( byte ) len;
+		return op;
+	}
+
+	private static int readInt( final byte[] b, final int i )
+	{
+		return ( b[ i ] & 0xff ) | ( ( b[ i + 1 ] & 0xff ) << 8 ) | ( ( b[ i + 2 ] & 0xff ) << 16 ) | ( ( b[ i + 3 ] & 0xff ) << 24 );
+	}
+
+	private static int hash( final int seq )
+	{
+		return ( seq * -1640531535 ) >>> ( 32 - HASH_LOG );
+	}
+}
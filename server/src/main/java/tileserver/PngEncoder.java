@@ -0,0 +1,575 @@
+package tileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming PNG encoder. Image data is filtered row by row (choosing the
+ * filter type with the smallest sum of absolute differences for each row),
+ * compressed with {@link Deflater}, and written as a sequence of IDAT chunks
+ * directly to an {@link OutputStream}.
+ * <p>
+ * If an {@link ExecutorService} is given, the image is split into horizontal
+ * strips that are filtered and compressed in parallel. Each strip is a
+ * sequence of deflate blocks ending on a byte boundary (the last strip is
+ * finished, all others are sync-flushed), so the concatenation of all strips
+ * is a single valid zlib stream.
+ * <p>
+ * Instances are not thread-safe but can be reused.
+ */
+public class PngEncoder
+{
+	public static final int COLOR_TYPE_GRAY = 0;
+
+	public static final int COLOR_TYPE_RGB = 2;
+
+	private static final byte[] SIGNATURE = new byte[] { ( byte ) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	private static final int FILTER_NONE = 0;
+
+	private static final int FILTER_SUB = 1;
+
+	private static final int FILTER_UP = 2;
+
+	private static final int FILTER_PAETH = 4;
+
+	/**
+	 * Maximum size of IDAT chunks.
+	 */
+	private static final int CHUNK_SIZE = 1 << 15;
+
+	private final int compressionLevel;
+
+	private final ExecutorService executor;
+
+	private final int stripHeight;
+
+	private final ChunkWriter chunkWriter;
+
+	/**
+	 * Used for sequential compression.
+	 */
+	private final Deflater deflater;
+
+	private final byte[] deflateBuffer;
+
+	/**
+	 * Reused by {@link #deflateSequential}.
+	 */
+	private RowFilter filter;
+
+	/**
+	 * Idle {@link Strip} workspaces, reused by {@link #compressStrip}.
+	 */
+	private final ConcurrentLinkedQueue< Strip > idleStrips;
+
+	/**
+	 * @param compressionLevel
+	 *            {@link Deflater} compression level (0-9).
+	 * @param executor
+	 *            used to compress strips in parallel. If {@code null}, the
+	 *            image is compressed sequentially.
+	 * @param stripHeight
+	 *            how many rows to compress per strip in parallel mode.
+	 */
+	public PngEncoder( final int compressionLevel, final ExecutorService executor, final int stripHeight )
+	{
+		this.compressionLevel = compressionLevel;
+		this.executor = executor;
+		this.stripHeight = stripHeight;
+		chunkWriter = new ChunkWriter();
+		deflater = new Deflater( compressionLevel );
+		deflater.setStrategy( Deflater.FILTERED );
+		deflateBuffer = new byte[ CHUNK_SIZE ];
+		filter = null;
+		idleStrips = new ConcurrentLinkedQueue< Strip >();
+	}
+
+	/**
+	 * Create a sequential encoder.
+	 */
+	public PngEncoder( final int compressionLevel )
+	{
+		this( compressionLevel, null, 0 );
+	}
+
+	/**
+	 * Write 8-bit RGB PNG. The alpha channel of the ARGB pixels is ignored.
+	 */
+	public void writeRGB( final int[] argb, final int width, final int height, final OutputStream os ) throws IOException
+	{
+		write( new RowSource()
+		{
+			@Override
+			public void getRow( final int y, final byte[] row )
+			{
+				for ( int x = 0, i = y * width, j = 0; x < width; ++x, ++i )
+				{
+					final int v = argb[ i ];
+					row[ j++ ] = ( byte ) ( v >> 16 );
+					row[ j++ ] = ( byte ) ( v >> 8 );
+					row[ j++ ] = ( byte ) v;
+				}
+			}
+		}, width, height, 8, COLOR_TYPE_RGB, 3, os );
+	}
+
+	/**
+	 * Write 8-bit grayscale PNG.
+	 */
+	public void writeGray8( final byte[] gray, final int width, final int height, final OutputStream os ) throws IOException
+	{
+		write( new RowSource()
+		{
+			@Override
+			public void getRow( final int y, final byte[] row )
+			{
+				System.arraycopy( gray, y * width, row, 0, width );
+			}
+		}, width, height, 8, COLOR_TYPE_GRAY, 1, os );
+	}
+
+	/**
+	 * Write 16-bit grayscale PNG.
+	 */
+	public void writeGray16( final short[] gray, final int width, final int height, final OutputStream os ) throws IOException
+	{
+		write( new RowSource()
+		{
+			@Override
+			public void getRow( final int y, final byte[] row )
+			{
+				for ( int x = 0, i = y * width, j = 0; x < width; ++x, ++i )
+				{
+					final short v = gray[ i ];
+					row[ j++ ] = ( byte ) ( v >> 8 );
+					row[ j++ ] = ( byte ) v;
+				}
+			}
+		}, width, height, 16, COLOR_TYPE_GRAY, 2, os );
+	}
+
+	/**
+	 * Provides unfiltered image rows in PNG byte order.
+	 */
+	interface RowSource
+	{
+		public void getRow( int y, byte[] row );
+	}
+
+	private void write( final RowSource rows, final int width, final int height, final int bitDepth, final int colorType, final int bytesPerPixel, final OutputStream os ) throws IOException
+	{
+		os.write( SIGNATURE );
+
+		final byte[] ihdr = new byte[ 13 ];
+		putInt( ihdr, 0, width );
+		putInt( ihdr, 4, height );
+		ihdr[ 8 ] = ( byte ) bitDepth;
+		ihdr[ 9 ] = ( byte ) colorType;
+		ihdr[ 10 ] = 0; // compression
+		ihdr[ 11 ] = 0; // filter
+		ihdr[ 12 ] = 0; // interlace
+		writeChunk( os, "IHDR", ihdr, 0, ihdr.length );
+
+		chunkWriter.start( os );
+		if ( executor == null || height <= stripHeight )
+			deflateSequential( rows, width * bytesPerPixel, height, bytesPerPixel );
+		else
+			deflateParallel( rows, width * bytesPerPixel, height, bytesPerPixel );
+		chunkWriter.finish();
+
+		writeChunk( os, "IEND", new byte[ 0 ], 0, 0 );
+		os.flush();
+	}
+
+	private void deflateSequential( final RowSource rows, final int rowBytes, final int height, final int bpp ) throws IOException
+	{
+		if ( filter == null || filter.rowBytes != rowBytes || filter.bpp != bpp )
+			filter = new RowFilter( rowBytes, bpp );
+		else
+			filter.reset();
+		deflater.reset();
+		for ( int y = 0; y < height; ++y )
+		{
+			filter.filterRow( rows, y );
+			deflater.setInput( filter.best, 0, rowBytes + 1 );
+			while ( !deflater.needsInput() )
+				drain( deflater.deflate( deflateBuffer ) );
+		}
+		deflater.finish();
+		while ( !deflater.finished() )
+			drain( deflater.deflate( deflateBuffer ) );
+	}
+
+	private void drain( final int len ) throws IOException
+	{
+		if ( len > 0 )
+			chunkWriter.write( deflateBuffer, 0, len );
+	}
+
+	private void deflateParallel( final RowSource rows, final int rowBytes, final int height, final int bpp ) throws IOException
+	{
+		final ArrayList< Future< Strip > > strips = new ArrayList< Future< Strip > >();
+		for ( int y = 0; y < height; y += stripHeight )
+		{
+			final int minY = y;
+			final int maxY = Math.min( height, y + stripHeight );
+			strips.add( executor.submit( new Callable< Strip >()
+			{
+				@Override
+				public Strip call() throws Exception
+				{
+					return compressStrip( rows, rowBytes, bpp, minY, maxY, maxY == height );
+				}
+			} ) );
+		}
+
+		// zlib header: CM = 8, CINFO = 7 (32K window), FLEVEL from compression level
+		final int cmf = 0x78;
+		final int flevel = compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : compressionLevel == 6 ? 2 : 3;
+		int flg = flevel << 6;
+		flg += 31 - ( ( cmf << 8 ) + flg ) % 31;
+		chunkWriter.write( new byte[] { ( byte ) cmf, ( byte ) flg }, 0, 2 );
+
+		long adler = 1;
+		try
+		{
+			for ( final Future< Strip > future : strips )
+			{
+				final Strip strip = future.get();
+				chunkWriter.write( strip.data, 0, strip.length );
+				adler = combineAdler32( adler, strip.adler, strip.rawLength );
+				idleStrips.add( strip );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new IOException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new IOException( e.getCause() );
+		}
+
+		final byte[] trailer = new byte[ 4 ];
+		putInt( trailer, 0, ( int ) adler );
+		chunkWriter.write( trailer, 0, 4 );
+	}
+
+	/**
+	 * Raw deflate output of one strip and the Adler32 checksum of its
+	 * (filtered) input, and the workspace to compute them. Strips are reused
+	 * for later images.
+	 */
+	class Strip
+	{
+		byte[] data;
+
+		int length;
+
+		long adler;
+
+		long rawLength;
+
+		final Deflater deflater;
+
+		final Adler32 adler32;
+
+		final byte[] buf;
+
+		RowFilter filter;
+
+		Strip()
+		{
+			data = new byte[ 0 ];
+			deflater = new Deflater( compressionLevel, true );
+			deflater.setStrategy( Deflater.FILTERED );
+			adler32 = new Adler32();
+			buf = new byte[ CHUNK_SIZE ];
+			filter = null;
+		}
+	}
+
+	private Strip compressStrip( final RowSource rows, final int rowBytes, final int bpp, final int minY, final int maxY, final boolean last )
+	{
+		Strip strip = idleStrips.poll();
+		if ( strip == null )
+			strip = new Strip();
+		if ( strip.filter == null || strip.filter.rowBytes != rowBytes || strip.filter.bpp != bpp )
+			strip.filter = new RowFilter( rowBytes, bpp );
+		else
+			strip.filter.reset();
+		final int capacity = ( rowBytes + 1 ) * ( maxY - minY ) / 2 + 64;
+		if ( strip.data.length < capacity )
+			strip.data = new byte[ capacity ];
+		strip.length = 0;
+
+		final RowFilter filter = strip.filter;
+		final Deflater def = strip.deflater;
+		def.reset();
+		final Adler32 adler32 = strip.adler32;
+		adler32.reset();
+		final byte[] buf = strip.buf;
+		for ( int y = minY; y < maxY; ++y )
+		{
+			if ( y == minY && y > 0 )
+				filter.loadPrevious( rows, y - 1 );
+			filter.filterRow( rows, y );
+			adler32.update( filter.best, 0, rowBytes + 1 );
+			def.setInput( filter.best, 0, rowBytes + 1 );
+			while ( !def.needsInput() )
+				append( strip, buf, def.deflate( buf ) );
+		}
+		if ( last )
+		{
+			def.finish();
+			while ( !def.finished() )
+				append( strip, buf, def.deflate( buf ) );
+		}
+		else
+		{
+			int len;
+			do
+			{
+				len = def.deflate( buf, 0, buf.length, Deflater.SYNC_FLUSH );
+				append( strip, buf, len );
+			}
+			while ( len == buf.length );
+		}
+
+		strip.adler = adler32.getValue();
+		strip.rawLength = ( long ) ( rowBytes + 1 ) * ( maxY - minY );
+		return strip;
+	}
+
+	private static void append( final Strip strip, final byte[] buf, final int len )
+	{
+		if ( strip.length + len > strip.data.length )
+		{
+			final byte[] data = new byte[ Math.max( strip.length + len, 2 * strip.data.length ) ];
+			System.arraycopy( strip.data, 0, data, 0, strip.length );
+			strip.data = data;
+		}
+		System.arraycopy( buf, 0, strip.data, strip.length, len );
+		strip.length += len;
+	}
+
+	/**
+	 * Combine Adler32 checksums of two consecutive byte sequences, where
+	 * {@code len2} is the length of the second sequence (see zlib's
+	 * adler32_combine).
+	 */
+	static long combineAdler32( final long adler1, final long adler2, final long len2 )
+	{
+		final long base = 65521;
+		final long rem = len2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = ( rem * sum1 ) % base;
+		sum1 += ( adler2 & 0xffff ) + base - 1;
+		sum2 += ( ( adler1 >> 16 ) & 0xffff ) + ( ( adler2 >> 16 ) & 0xffff ) + base - rem;
+		if ( sum1 >= base )
+			sum1 -= base;
+		if ( sum1 >= base )
+			sum1 -= base;
+		if ( sum2 >= ( base << 1 ) )
+			sum2 -= ( base << 1 );
+		if ( sum2 >= base )
+			sum2 -= base;
+		return sum1 | ( sum2 << 16 );
+	}
+
+	/**
+	 * Applies the None, Sub, Up, and Paeth filters to a row and keeps the one
+	 * with the smallest sum of absolute values (interpreted as signed bytes).
+	 */
+	static class RowFilter
+	{
+		final int rowBytes;
+
+		final int bpp;
+
+		byte[] previous;
+
+		byte[] current;
+
+		final byte[][] filtered;
+
+		/**
+		 * The filtered row (including the leading filter type byte) with the
+		 * smallest sum of absolute values.
+		 */
+		byte[] best;
+
+		RowFilter( final int rowBytes, final int bpp )
+		{
+			this.rowBytes = rowBytes;
+			this.bpp = bpp;
+			previous = new byte[ rowBytes ];
+			current = new byte[ rowBytes ];
+			filtered = new byte[ 4 ][ rowBytes + 1 ];
+			filtered[ 0 ][ 0 ] = FILTER_NONE;
+			filtered[ 1 ][ 0 ] = FILTER_SUB;
+			filtered[ 2 ][ 0 ] = FILTER_UP;
+			filtered[ 3 ][ 0 ] = FILTER_PAETH;
+		}
+
+		/**
+		 * Start over with a first row (which has no previous row).
+		 */
+		void reset()
+		{
+			Arrays.fill( previous, ( byte ) 0 );
+		}
+
+		void loadPrevious( final RowSource rows, final int y )
+		{
+			rows.getRow( y, previous );
+		}
+
+		void filterRow( final RowSource rows, final int y )
+		{
+			rows.getRow( y, current );
+
+			final byte[] none = filtered[ 0 ];
+			final byte[] sub = filtered[ 1 ];
+			final byte[] up = filtered[ 2 ];
+			final byte[] paeth = filtered[ 3 ];
+			long sumNone = 0, sumSub = 0, sumUp = 0, sumPaeth = 0;
+			for ( int i = 0; i < rowBytes; ++i )
+			{
+				final int x = current[ i ] & 0xff;
+				final int a = i >= bpp ? current[ i - bpp ] & 0xff : 0;
+				final int b = previous[ i ] & 0xff;
+				final int c = i >= bpp ? previous[ i - bpp ] & 0xff : 0;
+
+				final byte vNone = ( byte ) x;
+				final byte vSub = ( byte ) ( x - a );
+				final byte vUp = ( byte ) ( x - b );
+				final byte vPaeth = ( byte ) ( x - paethPredictor( a, b, c ) );
+				none[ i + 1 ] = vNone;
+				sub[ i + 1 ] = vSub;
+				up[ i + 1 ] = vUp;
+				paeth[ i + 1 ] = vPaeth;
+				sumNone += Math.abs( vNone );
+				sumSub += Math.abs( vSub );
+				sumUp += Math.abs( vUp );
+				sumPaeth += Math.abs( vPaeth );
+			}
+
+			best = none;
+			long min = sumNone;
+			if ( sumSub < min )
+			{
+				best = sub;
+				min = sumSub;
+			}
+			if ( sumUp < min )
+			{
+				best = up;
+				min = sumUp;
+			}
+			if ( sumPaeth < min )
+				best = paeth;
+
+			final byte[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+
+		private static int paethPredictor( final int a, final int b, final int c )
+		{
+			final int p = a + b - c;
+			final int pa = Math.abs( p - a );
+			final int pb = Math.abs( p - b );
+			final int pc = Math.abs( p - c );
+			if ( pa <= pb && pa <= pc )
+				return a;
+			else if ( pb <= pc )
+				return b;
+			else
+				return c;
+		}
+	}
+
+	/**
+	 * Collects compressed data and writes it as IDAT chunks of at most
+	 * {@link PngEncoder#CHUNK_SIZE} bytes.
+	 */
+	static class ChunkWriter
+	{
+		private final byte[] buffer = new byte[ CHUNK_SIZE ];
+
+		private int length;
+
+		private OutputStream os;
+
+		void start( final OutputStream os )
+		{
+			this.os = os;
+			length = 0;
+		}
+
+		void write( final byte[] data, int off, int len ) throws IOException
+		{
+			while ( len > 0 )
+			{
+				final int n = Math.min( len, buffer.length - length );
+				System.arraycopy( data, off, buffer, length, n );
+				length += n;
+				off += n;
+				len -= n;
+				if ( length == buffer.length )
+					flushChunk();
+			}
+		}
+
+		void finish() throws IOException
+		{
+			if ( length > 0 )
+				flushChunk();
+			os = null;
+		}
+
+		private void flushChunk() throws IOException
+		{
+			writeChunk( os, "IDAT", buffer, 0, length );
+			length = 0;
+		}
+	}
+
+	private static void writeChunk( final OutputStream os, final String type, final byte[] data, final int off, final int len ) throws IOException
+	{
+		final byte[] header = new byte[ 8 ];
+		putInt( header, 0, len );
+		for ( int i = 0; i < 4; ++i )
+			header[ 4 + i ] = ( byte ) type.charAt( i );
+
+		final CRC32 crc = new CRC32();
+		crc.update( header, 4, 4 );
+		crc.update( data, off, len );
+		final byte[] trailer = new byte[ 4 ];
+		putInt( trailer, 0, ( int ) crc.getValue() );
+
+		os.write( header );
+		os.write( data, off, len );
+		os.write( trailer );
+	}
+
+	private static void putInt( final byte[] b, final int off, final int v )
+	{
+		b[ off ] = ( byte ) ( v >>> 24 );
+		b[ off + 1 ] = ( byte ) ( v >>> 16 );
+		b[ off + 2 ] = ( byte ) ( v >>> 8 );
+		b[ off + 3 ] = ( byte ) v;
+	}
+}
@@ -0,0 +1,313 @@
+package tileserver;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Speculatively renders the neighbors of requested tiles (adjacent tiles in x
+ * and y, and the same tile in the next and previous section) into the
+ * {@link TileCache}.
+ * <p>
+ * Prefetching only uses idle {@link TileGenerator}s, and only while more than
+ * a minimum number of generators are idle. Running prefetches are cancelled by
+ * {@link #preempt()} when real requests need the generators.
+ */
+public class Prefetcher
+{
+	private static final int[][] NEIGHBORS = {
+			{ 1, 0, 0 }, { -1, 0, 0 }, { 0, 1, 0 }, { 0, -1, 0 }, { 0, 0, 1 }, { 0, 0, -1 } };
+
+	/**
+	 * How long (ms) to wait for idle generators before dropping a queued
+	 * prefetch.
+	 */
+	private static final long MAX_AGE_MILLIS = 1000;
+
+	private final GeneratorPool generators;
+
+	private final TileCache cache;
+
+	private final RenderFlights flights;
+
+	private final int maxQueued;
+
+	private final int minIdleGenerators;
+
+	/**
+	 * Queued prefetches, most recent first.
+	 */
+	private final LinkedBlockingDeque< Queued > queue;
+
+	/**
+	 * Keys of queued and running prefetches.
+	 */
+	private final Set< String > pending;
+
+	/**
+	 * Running prefetches.
+	 */
+	private final Map< RenderTracker.Render, Boolean > active;
+
+	private final Thread[] threads;
+
+	private final AtomicLong numQueued = new AtomicLong();
+
+	private final AtomicLong numDropped = new AtomicLong();
+
+	private final AtomicLong numRendered = new AtomicLong();
+
+	private final AtomicLong numPreempted = new AtomicLong();
+
+	private final AtomicLong numHits = new AtomicLong();
+
+	private final AtomicLong numFailed = new AtomicLong();
+
+	static class Queued
+	{
+		final TileRequest tileRequest;
+
+		final long time;
+
+		Queued( final TileRequest tileRequest )
+		{
+			this.tileRequest = tileRequest;
+			time = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param generators
+	 *            the generator pool shared with real requests.
+	 * @param cache
+	 *            where to put prefetched tiles.
+	 * @param flights
+	 *            renders in progress. Tiles that are being rendered already
+	 *            are not prefetched.
+	 * @param numThreads
+	 *            how many tiles to prefetch concurrently.
+	 * @param maxQueued
+	 *            maximum number of queued prefetches. When exceeded, the
+	 *            oldest are dropped.
+	 * @param minIdleGenerators
+	 *            prefetch only while more generators than this are idle.
+	 */
+	public Prefetcher( final GeneratorPool generators, final TileCache cache, final RenderFlights flights, final int numThreads, final int maxQueued, final int minIdleGenerators )
+	{
+		this.generators = generators;
+		this.cache = cache;
+		this.flights = flights;
+		this.maxQueued = maxQueued;
+		this.minIdleGenerators = minIdleGenerators;
+		queue = new LinkedBlockingDeque< Queued >();
+		pending = Collections.newSetFromMap( new ConcurrentHashMap< String, Boolean >() );
+		active = new ConcurrentHashMap< RenderTracker.Render, Boolean >();
+		threads = new Thread[ numThreads ];
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			threads[ i ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					prefetchLoop();
+				}
+			}, "prefetch-" + i );
+			threads[ i ].setDaemon( true );
+			threads[ i ].setPriority( Thread.MIN_PRIORITY );
+			threads[ i ].start();
+		}
+	}
+
+	/**
+	 * Queue the neighbors of a tile that was just served.
+	 */
+	public void prefetchNeighbors( final TileRequest tileRequest )
+	{
+		for ( final int[] n : NEIGHBORS )
+			prefetch( tileRequest.getNeighbor( n[ 0 ], n[ 1 ], n[ 2 ] ) );
+	}
+
+	/**
+	 * Queue a tile for prefetching, unless it is already cached or queued.
+	 * The most recently queued tiles are rendered first.
+	 */
+	public void prefetch( final TileRequest tileRequest )
+	{
+		final String key = tileRequest.getKey();
+		if ( cache.contains( key ) || !pending.add( key ) )
+			return;
+		numQueued.incrementAndGet();
+		queue.addFirst( new Queued( tileRequest ) );
+		while ( queue.size() > maxQueued )
+		{
+			final Queued dropped = queue.pollLast();
+			if ( dropped != null )
+			{
+				pending.remove( dropped.tileRequest.getKey() );
+				numDropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Cancel all running prefetches, so that their generators become
+	 * available for real requests.
+	 */
+	public void preempt()
+	{
+		for ( final RenderTracker.Render render : active.keySet() )
+			if ( active.remove( render ) != null )
+			{
+				render.cancel();
+				numPreempted.incrementAndGet();
+			}
+	}
+
+	/**
+	 * Count a cache hit on a tile. Should be called for every tile served from
+	 * the cache.
+	 */
+	public void countHit( final TileCache.Tile tile )
+	{
+		if ( tile.isPrefetched() && tile.markUsed() )
+			numHits.incrementAndGet();
+	}
+
+	public void shutdown()
+	{
+		for ( final Thread thread : threads )
+			thread.interrupt();
+	}
+
+	public long getNumRendered()
+	{
+		return numRendered.get();
+	}
+
+	public long getNumHits()
+	{
+		return numHits.get();
+	}
+
+	/**
+	 * Get the number of prefetches that failed with an exception.
+	 */
+	public long getNumFailed()
+	{
+		return numFailed.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		final long rendered = numRendered.get();
+		final long hits = numHits.get();
+		return String.format( "prefetch queued:%d  dropped:%d  preempted:%d  failed:%d  rendered:%d  hits:%d (%.1f%%)", numQueued.get(), numDropped.get(), numPreempted.get(), numFailed.get(), rendered, hits, rendered == 0 ? 0.0 : 100.0 * hits / rendered );
+	}
+
+	private void prefetchLoop()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Queued queued = queue.takeFirst();
+				final TileRequest tileRequest = queued.tileRequest;
+				try
+				{
+					final TileGenerator generator = takeIdleGenerator( queued );
+					if ( generator == null )
+					{
+						numDropped.incrementAndGet();
+						continue;
+					}
+					final RenderFlights.Renderer renderer = new RenderFlights.Renderer()
+					{
+						@Override
+						public TileCache.Tile render() throws IOException
+						{
+							return prefetchTile( tileRequest, generator );
+						}
+					};
+					if ( cache.contains( tileRequest.getKey() ) || !flights.tryRender( tileRequest, renderer ) )
+						generators.put( generator );
+				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+					numFailed.incrementAndGet();
+				}
+				catch ( final RuntimeException e )
+				{
+					// e.g., reading the source failed. The generator was
+					// discarded, keep prefetching.
+					e.printStackTrace();
+					numFailed.incrementAndGet();
+				}
+				finally
+				{
+					pending.remove( tileRequest.getKey() );
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{}
+	}
+
+	/**
+	 * Render a tile with {@code generator} (preemptibly) and put it into the
+	 * cache. The generator is returned to the pool, or discarded if rendering
+	 * failed.
+	 *
+	 * @return the tile, or {@code null} if it was preempted or degraded.
+	 */
+	private TileCache.Tile prefetchTile( final TileRequest tileRequest, final TileGenerator generator ) throws IOException
+	{
+		final RenderTracker.Render render = new RenderTracker.Render( tileRequest, null );
+		render.attach( generator );
+		active.put( render, Boolean.TRUE );
+		byte[] data = null;
+		boolean failed = true;
+		try
+		{
+			// tiles rendered at coarser levels to meet a time budget must not
+			// be cached
+			data = generator.getTile( tileRequest );
+			if ( generator.isLastTileDegraded() )
+				data = null;
+			failed = false;
+		}
+		finally
+		{
+			active.remove( render );
+			render.detach();
+			if ( failed )
+				generators.discard( generator );
+			else
+				generators.put( generator );
+		}
+		if ( data == null )
+			return null;
+
+		numRendered.incrementAndGet();
+		final TileCache.Tile tile = new TileCache.Tile( data, tileRequest.getFormat().getContentType(), tileRequest.getETag(), true );
+		cache.put( tileRequest.getKey(), tile );
+		return tile;
+	}
+
+	/**
+	 * Wait until more than {@link #minIdleGenerators} generators are idle and
+	 * take one of them.
+	 *
+	 * @return the generator, or {@code null} if the prefetch became too old.
+	 */
+	private TileGenerator takeIdleGenerator( final Queued queued ) throws InterruptedException
+	{
+		return generators.poll( minIdleGenerators, MAX_AGE_MILLIS - ( System.currentTimeMillis() - queued.time ) );
+	}
+}
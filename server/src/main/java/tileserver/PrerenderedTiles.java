@@ -0,0 +1,214 @@
+package tileserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import tileserver.PyramidExporter.Tile;
+import tileserver.TileRequest.Format;
+
+/**
+ * A static CATMAID tile pyramid written by {@link PyramidExporter}. Requests
+ * that exactly match a tile of the pyramid (axis-aligned stackToTile with a
+ * power-of-two scale and a translation on the tile grid, same size and
+ * rendering settings) can be answered with the file instead of rendering.
+ *
+ * The pyramid is described by the {@link PyramidExporter#MANIFEST manifest}
+ * in its directory.
+ */
+public class PrerenderedTiles
+{
+	/**
+	 * Tolerance for matching stackToTile values to the tile grid.
+	 */
+	static final double EPSILON = 1e-6;
+
+	private final File dir;
+
+	private final int[] axes;
+
+	private final double[] origin;
+
+	private final int tileSize;
+
+	private final Format format;
+
+	private final String extension;
+
+	private final float quality;
+
+	private final double displayMin;
+
+	private final double displayMax;
+
+	/**
+	 * Requests answered with a pre-rendered tile.
+	 */
+	private final AtomicLong numServed;
+
+	/**
+	 * Requests that match the pyramid, but whose tile file does not exist.
+	 */
+	private final AtomicLong numMissing;
+
+	/**
+	 * Requests that do not match the pyramid.
+	 */
+	private final AtomicLong numUnmatched;
+
+	/**
+	 * @param dir
+	 *            output directory of the {@link PyramidExporter}.
+	 */
+	public PrerenderedTiles( final File dir ) throws IOException
+	{
+		this.dir = dir;
+		final Properties manifest = new Properties();
+		final InputStream is = new FileInputStream( new File( dir, PyramidExporter.MANIFEST ) );
+		try
+		{
+			manifest.load( is );
+		}
+		finally
+		{
+			is.close();
+		}
+		axes = PyramidExporter.getAxes( manifest.getProperty( "orientation", "xy" ) );
+		final String[] o = manifest.getProperty( "origin", "0,0,0" ).split( "," );
+		origin = new double[] { Double.parseDouble( o[ 0 ] ), Double.parseDouble( o[ 1 ] ), Double.parseDouble( o[ 2 ] ) };
+		tileSize = Integer.parseInt( manifest.getProperty( "tileSize", "256" ) );
+		try
+		{
+			format = Format.valueOf( manifest.getProperty( "format", Format.JPEG.name() ) );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			throw new IOException( "unknown tile format in " + PyramidExporter.MANIFEST + ": " + manifest.getProperty( "format" ) );
+		}
+		if ( format != Format.JPEG && format != Format.PNG )
+			throw new IOException( "unsupported tile format in " + PyramidExporter.MANIFEST + ": " + format );
+		extension = format == Format.PNG ? "png" : "jpg";
+		quality = Float.parseFloat( manifest.getProperty( "quality", "0.9" ) );
+		displayMin = Double.parseDouble( manifest.getProperty( "min", "0" ) );
+		displayMax = Double.parseDouble( manifest.getProperty( "max", "6000" ) );
+		numServed = new AtomicLong();
+		numMissing = new AtomicLong();
+		numUnmatched = new AtomicLong();
+	}
+
+	/**
+	 * Get the pre-rendered file for a request.
+	 *
+	 * @return the file, or {@code null} if the request does not match a tile
+	 *         of the pyramid or the tile does not exist.
+	 */
+	public File getFile( final TileRequest request )
+	{
+		final Tile tile = getTile( request );
+		if ( tile == null )
+		{
+			numUnmatched.incrementAndGet();
+			return null;
+		}
+		final File file = PyramidExporter.getFile( dir, tile, extension );
+		if ( !file.isFile() )
+		{
+			numMissing.incrementAndGet();
+			return null;
+		}
+		numServed.incrementAndGet();
+		return file;
+	}
+
+	/**
+	 * Count a file returned by {@link #getFile(TileRequest)} that could not be
+	 * served after all (e.g., because it was deleted in the meantime).
+	 */
+	public void countMissing()
+	{
+		numServed.decrementAndGet();
+		numMissing.incrementAndGet();
+	}
+
+	/**
+	 * Find the tile of the pyramid that a request matches.
+	 *
+	 * @return the tile, or {@code null} if there is none.
+	 */
+	Tile getTile( final TileRequest request )
+	{
+		if ( request.getTileWidth() != tileSize || request.getTileHeight() != tileSize )
+			return null;
+
+		final AffineTransform3D t = request.getStackToTile();
+		final double k = t.get( 0, axes[ 0 ] );
+		if ( k <= 0 )
+			return null;
+		final int zoom = ( int ) Math.round( -Math.log( k ) / Math.log( 2 ) );
+		if ( zoom < 0 || Math.abs( k - Math.pow( 2, -zoom ) ) > EPSILON )
+			return null;
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				if ( Math.abs( t.get( r, c ) - ( c == axes[ r ] ? k : 0 ) ) > EPSILON )
+					return null;
+
+		final double col = ( -t.get( 0, 3 ) - k * origin[ axes[ 0 ] ] ) / tileSize;
+		final double row = ( -t.get( 1, 3 ) - k * origin[ axes[ 1 ] ] ) / tileSize;
+		final double section = -t.get( 2, 3 ) / k - origin[ axes[ 2 ] ];
+		if ( !isNonNegativeInteger( col ) || !isNonNegativeInteger( row ) || !isNonNegativeInteger( section ) )
+			return null;
+
+		final Tile tile = new Tile( request.getTimepoint(), zoom, ( int ) Math.round( section ), ( int ) Math.round( row ), ( int ) Math.round( col ) );
+		final TileRequest rendered = PyramidExporter.getTileRequest( tile, axes, origin, tileSize, format, quality, displayMin, displayMax );
+		if ( !rendered.getSettingsKey().equals( request.getSettingsKey() ) )
+			return null;
+		return tile;
+	}
+
+	private static boolean isNonNegativeInteger( final double value )
+	{
+		return value > -EPSILON && Math.abs( value - Math.round( value ) ) < EPSILON;
+	}
+
+	public Format getFormat()
+	{
+		return format;
+	}
+
+	public long getNumServed()
+	{
+		return numServed.get();
+	}
+
+	public long getNumMissing()
+	{
+		return numMissing.get();
+	}
+
+	public long getNumUnmatched()
+	{
+		return numUnmatched.get();
+	}
+
+	/**
+	 * Get the fraction of requests that could not be answered with a
+	 * pre-rendered tile.
+	 */
+	public double getFallbackRate()
+	{
+		final long served = getNumServed();
+		final long fallbacks = getNumMissing() + getNumUnmatched();
+		return served + fallbacks == 0 ? 0 : ( double ) fallbacks / ( served + fallbacks );
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "prerendered tiles: served:%d  missing:%d  unmatched:%d  fallback rate:%.1f%%",
+				getNumServed(), getNumMissing(), getNumUnmatched(), 100 * getFallbackRate() );
+	}
+}
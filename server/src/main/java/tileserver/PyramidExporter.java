@@ -0,0 +1,583 @@
+package tileserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import tileserver.TileRequest.Format;
+import viewer.SequenceViewsLoader;
+import viewer.render.Interpolation;
+import viewer.render.Source;
+import viewer.render.SourceState;
+import viewer.render.ViewerState;
+
+/**
+ * Export a static CATMAID tile pyramid (tile source type 1,
+ * <code>&lt;section&gt;/&lt;row&gt;_&lt;col&gt;_&lt;zoom&gt;.&lt;ext&gt;</code>)
+ * of a dataset, with one {@link TileGenerator} per core. Each timepoint is
+ * written to its own subdirectory of the output directory.
+ *
+ * Tiles are written to a temporary file first and renamed when complete, so
+ * an interrupted export can be resumed: existing tiles are skipped (unless
+ * {@link Options#overwrite}, in which case a tile is only rewritten if its
+ * content changed). Resuming with settings that differ from the
+ * {@link #MANIFEST} of the existing tiles fails, unless
+ * {@link Options#overwrite} is set to re-render them. The manifest is only
+ * replaced once all tiles were re-rendered.
+ *
+ * Settings are read from system properties (see {@link Options}), e.g.
+ *
+ * <pre>
+ * java -Dexport.outputDir=/data/tiles -Dexport.zoomLevels=0,1,2,3 tileserver.PyramidExporter
+ * </pre>
+ */
+public class PyramidExporter
+{
+	/**
+	 * Name of the file in the output directory that describes how the tiles
+	 * were rendered.
+	 */
+	static final String MANIFEST = "tiles.properties";
+
+	/**
+	 * Settings, can be overridden with system properties, e.g.
+	 * <code>-Dexport.orientation=xz</code>.
+	 */
+	public static class Options
+	{
+		/**
+		 * Path of the SPIM sequence xml file.
+		 */
+		public String datasetXml = new TileServerOptions().datasetXml;
+
+		/**
+		 * Directory to write the pyramid to.
+		 */
+		public String outputDir = "tiles";
+
+		/**
+		 * CATMAID orientation: "xy", "xz", or "zy".
+		 */
+		public String orientation = "xy";
+
+		/**
+		 * Zoom levels to export. Zoom level {@code z} is scaled by
+		 * {@code 2^-z}.
+		 */
+		public int[] zoomLevels = new int[] { 0, 1, 2, 3 };
+
+		/**
+		 * Timepoints to export.
+		 */
+		public int[] timepoints = new int[] { 0 };
+
+		/**
+		 * Width and height of the tiles.
+		 */
+		public int tileSize = 256;
+
+		/**
+		 * Tile format, "jpeg" or "png".
+		 */
+		public String format = "jpeg";
+
+		/**
+		 * JPEG quality (0..1).
+		 */
+		public float quality = 0.9f;
+
+		/**
+		 * Display range minimum.
+		 */
+		public double min = 0;
+
+		/**
+		 * Display range maximum.
+		 */
+		public double max = 6000;
+
+		/**
+		 * Render and write tiles that already exist (but only replace them if
+		 * their content changed).
+		 */
+		public boolean overwrite = false;
+
+		/**
+		 * Number of tiles rendered in parallel.
+		 */
+		public int numThreads = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * How often (s) to report progress.
+		 */
+		public int progressSeconds = 10;
+
+		private static int[] getInts( final String name, final int[] defaultValue )
+		{
+			final String param = System.getProperty( name );
+			if ( param == null || param.isEmpty() )
+				return defaultValue;
+			final String[] parts = param.split( "," );
+			final int[] values = new int[ parts.length ];
+			for ( int i = 0; i < parts.length; ++i )
+				values[ i ] = Integer.parseInt( parts[ i ].trim() );
+			return values;
+		}
+
+		public static Options fromSystemProperties()
+		{
+			final Options o = new Options();
+			o.datasetXml = System.getProperty( "export.datasetXml", System.getProperty( "tileserver.datasetXml", o.datasetXml ) );
+			o.outputDir = System.getProperty( "export.outputDir", o.outputDir );
+			o.orientation = System.getProperty( "export.orientation", o.orientation );
+			o.zoomLevels = getInts( "export.zoomLevels", o.zoomLevels );
+			o.timepoints = getInts( "export.timepoints", o.timepoints );
+			o.tileSize = Integer.getInteger( "export.tileSize", o.tileSize );
+			o.format = System.getProperty( "export.format", o.format );
+			o.quality = Float.parseFloat( System.getProperty( "export.quality", Float.toString( o.quality ) ) );
+			o.min = Double.parseDouble( System.getProperty( "export.min", Double.toString( o.min ) ) );
+			o.max = Double.parseDouble( System.getProperty( "export.max", Double.toString( o.max ) ) );
+			o.overwrite = Boolean.parseBoolean( System.getProperty( "export.overwrite", Boolean.toString( o.overwrite ) ) );
+			o.numThreads = Integer.getInteger( "export.numThreads", o.numThreads );
+			o.progressSeconds = Integer.getInteger( "export.progressSeconds", o.progressSeconds );
+			return o;
+		}
+	}
+
+	/**
+	 * A tile of the pyramid.
+	 */
+	static class Tile
+	{
+		final int timepoint;
+
+		final int zoom;
+
+		final int section;
+
+		final int row;
+
+		final int col;
+
+		Tile( final int timepoint, final int zoom, final int section, final int row, final int col )
+		{
+			this.timepoint = timepoint;
+			this.zoom = zoom;
+			this.section = section;
+			this.row = row;
+			this.col = col;
+		}
+	}
+
+	private final Options options;
+
+	private final SequenceViewsLoader loader;
+
+	private final Format format;
+
+	private final String extension;
+
+	/**
+	 * For each tile axis (u, v, section), the stack axis it shows.
+	 */
+	private final int[] axes;
+
+	/**
+	 * Bounding box of all sources at the first exported timepoint, in global
+	 * coordinates. Tile (0, 0) of section 0 starts at {@link #min}.
+	 */
+	private final double[] min;
+
+	private final long[] size;
+
+	private final long numTiles;
+
+	/**
+	 * Enumeration state of {@link #nextTile()}: indices into the timepoints
+	 * and zoom levels, and the current section, row, and column.
+	 */
+	private int ti, zi, section, row, col;
+
+	private final AtomicLong numWritten;
+
+	private final AtomicLong numUnchanged;
+
+	private final AtomicLong numSkipped;
+
+	private final AtomicLong numFailed;
+
+	private final AtomicLong bytesWritten;
+
+	public PyramidExporter( final Options options ) throws Exception
+	{
+		this.options = options;
+		format = Format.fromString( options.format );
+		if ( !format.name().equalsIgnoreCase( options.format ) || ( format != Format.JPEG && format != Format.PNG ) )
+			throw new IllegalArgumentException( "export format must be jpeg or png: " + options.format );
+		extension = format == Format.PNG ? "png" : "jpg";
+		loader = new SequenceViewsLoader( options.datasetXml );
+
+		axes = getAxes( options.orientation );
+
+		final double[] max = new double[ 3 ];
+		min = new double[ 3 ];
+		getBoundingBox( TileGenerator.createState( loader ), options.timepoints[ 0 ], min, max );
+		size = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = ( long ) Math.ceil( max[ d ] - min[ d ] ) + 1;
+
+		long n = 0;
+		for ( final int zoom : options.zoomLevels )
+			n += numSections() * numRows( zoom ) * numCols( zoom );
+		numTiles = n * options.timepoints.length;
+
+		ti = zi = section = row = col = 0;
+		numWritten = new AtomicLong();
+		numUnchanged = new AtomicLong();
+		numSkipped = new AtomicLong();
+		numFailed = new AtomicLong();
+		bytesWritten = new AtomicLong();
+	}
+
+	/**
+	 * Get the stack axes shown by the tile axes (u, v, section) of an
+	 * orientation ("xy", "xz", or "zy").
+	 */
+	static int[] getAxes( final String orientation )
+	{
+		if ( orientation.equals( "xz" ) )
+			return new int[] { 0, 2, 1 };
+		else if ( orientation.equals( "zy" ) )
+			return new int[] { 2, 1, 0 };
+		else
+			return new int[] { 0, 1, 2 };
+	}
+
+	/**
+	 * Compute the bounding box of the full-resolution images of all sources,
+	 * in global coordinates.
+	 */
+	static void getBoundingBox( final ViewerState state, final int timepoint, final double[] min, final double[] max )
+	{
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+		final double[] corner = new double[ 3 ];
+		final double[] global = new double[ 3 ];
+		final List< SourceState< ? > > sources = state.getSources();
+		for ( final SourceState< ? > sourceState : sources )
+		{
+			final Source< ? > source = sourceState.getSpimSource();
+			final RandomAccessibleInterval< ? > img = source.getSource( timepoint, 0 );
+			final AffineTransform3D transform = source.getSourceTransform( timepoint, 0 );
+			for ( int c = 0; c < 8; ++c )
+			{
+				for ( int d = 0; d < 3; ++d )
+					corner[ d ] = ( c & ( 1 << d ) ) == 0 ? img.min( d ) : img.max( d );
+				transform.apply( corner, global );
+				for ( int d = 0; d < 3; ++d )
+				{
+					min[ d ] = Math.min( min[ d ], global[ d ] );
+					max[ d ] = Math.max( max[ d ], global[ d ] );
+				}
+			}
+		}
+	}
+
+	private long numSections()
+	{
+		return size[ axes[ 2 ] ];
+	}
+
+	private long numRows( final int zoom )
+	{
+		return ( long ) Math.ceil( size[ axes[ 1 ] ] * Math.pow( 2, -zoom ) / options.tileSize );
+	}
+
+	private long numCols( final int zoom )
+	{
+		return ( long ) Math.ceil( size[ axes[ 0 ] ] * Math.pow( 2, -zoom ) / options.tileSize );
+	}
+
+	/**
+	 * Get the next tile to export, or {@code null} if all tiles were handed
+	 * out. Tiles are enumerated by timepoint, zoom level, section, row, and
+	 * column.
+	 */
+	synchronized Tile nextTile()
+	{
+		while ( ti < options.timepoints.length )
+		{
+			final int zoom = options.zoomLevels[ zi ];
+			if ( col >= numCols( zoom ) )
+			{
+				col = 0;
+				++row;
+			}
+			if ( row >= numRows( zoom ) )
+			{
+				row = 0;
+				++section;
+			}
+			if ( section >= numSections() )
+			{
+				section = 0;
+				if ( ++zi >= options.zoomLevels.length )
+				{
+					zi = 0;
+					++ti;
+				}
+				continue;
+			}
+			return new Tile( options.timepoints[ ti ], zoom, section, row, col++ );
+		}
+		return null;
+	}
+
+	/**
+	 * Get the file of a tile.
+	 */
+	File getFile( final Tile tile )
+	{
+		return getFile( new File( options.outputDir ), tile, extension );
+	}
+
+	static File getFile( final File outputDir, final Tile tile, final String extension )
+	{
+		final File dir = new File( new File( outputDir, Integer.toString( tile.timepoint ) ), Integer.toString( tile.section ) );
+		return new File( dir, tile.row + "_" + tile.col + "_" + tile.zoom + "." + extension );
+	}
+
+	/**
+	 * Create the request that renders a tile.
+	 */
+	TileRequest getTileRequest( final Tile tile )
+	{
+		return getTileRequest( tile, axes, min, options.tileSize, format, options.quality, options.min, options.max );
+	}
+
+	/**
+	 * Create the request that renders a tile of a pyramid with the given
+	 * orientation {@code axes}, origin, and settings.
+	 */
+	static TileRequest getTileRequest( final Tile tile, final int[] axes, final double[] origin, final int tileSize, final Format format, final float quality, final double displayMin, final double displayMax )
+	{
+		final double k = Math.pow( 2, -tile.zoom );
+		final double[] offset = new double[] { tile.col * tileSize, tile.row * tileSize, k * tile.section };
+		final double[] affine = new double[ 12 ];
+		for ( int r = 0; r < 3; ++r )
+		{
+			final int axis = axes[ r ];
+			affine[ 4 * r + axis ] = k;
+			affine[ 4 * r + 3 ] = -k * origin[ axis ] - offset[ r ];
+		}
+		return new TileRequest.Builder()
+				.affine( affine )
+				.timepoint( tile.timepoint )
+				.tileSize( tileSize, tileSize )
+				.interpolation( Interpolation.NLINEAR )
+				.format( format )
+				.quality( quality )
+				.display( new double[] { displayMin }, new double[] { displayMax }, new String[] { "gray" } )
+				.build();
+	}
+
+	/**
+	 * Get the {@link #MANIFEST} that describes how tiles are rendered, such
+	 * that the tile server can serve them (see {@link PrerenderedTiles}).
+	 */
+	Properties getManifest()
+	{
+		final Properties manifest = new Properties();
+		manifest.setProperty( "orientation", options.orientation );
+		manifest.setProperty( "origin", min[ 0 ] + "," + min[ 1 ] + "," + min[ 2 ] );
+		manifest.setProperty( "tileSize", Integer.toString( options.tileSize ) );
+		manifest.setProperty( "format", format.name() );
+		manifest.setProperty( "quality", Float.toString( options.quality ) );
+		manifest.setProperty( "min", Double.toString( options.min ) );
+		manifest.setProperty( "max", Double.toString( options.max ) );
+		return manifest;
+	}
+
+	/**
+	 * Read the {@link #MANIFEST} of existing tiles.
+	 *
+	 * @return the manifest, or {@code null} if there is none.
+	 */
+	Properties readManifest() throws IOException
+	{
+		final File file = new File( options.outputDir, MANIFEST );
+		if ( !file.exists() )
+			return null;
+		final Properties manifest = new Properties();
+		final InputStream is = new FileInputStream( file );
+		try
+		{
+			manifest.load( is );
+		}
+		finally
+		{
+			is.close();
+		}
+		return manifest;
+	}
+
+	void writeManifest( final Properties manifest ) throws IOException
+	{
+		final File dir = new File( options.outputDir );
+		dir.mkdirs();
+		final OutputStream os = new FileOutputStream( new File( dir, MANIFEST ) );
+		try
+		{
+			manifest.store( os, "CATMAID tile pyramid" );
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Render tiles until all are done. Tiles that fail are counted and
+	 * skipped. A generator whose render threw is replaced.
+	 */
+	void work( final TileGenerator initialGenerator, final TileMetrics metrics )
+	{
+		TileGenerator generator = initialGenerator;
+		for ( Tile tile = nextTile(); tile != null; tile = nextTile() )
+		{
+			try
+			{
+				export( generator, tile );
+			}
+			catch ( final IOException e )
+			{
+				System.err.println( "exporting " + getFile( tile ) + " failed: " + e );
+				numFailed.incrementAndGet();
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+				numFailed.incrementAndGet();
+				generator = new TileGenerator( loader, metrics );
+			}
+		}
+	}
+
+	/**
+	 * Render a tile and write it, unless it exists already (and
+	 * {@link Options#overwrite} is not set) or did not change.
+	 */
+	private void export( final TileGenerator generator, final Tile tile ) throws IOException
+	{
+		final File file = getFile( tile );
+		if ( file.exists() && !options.overwrite )
+		{
+			numSkipped.incrementAndGet();
+			return;
+		}
+
+		final byte[] data = generator.getTile( getTileRequest( tile ) );
+		if ( data == null )
+		{
+			numFailed.incrementAndGet();
+			return;
+		}
+
+		if ( file.exists() && Arrays.equals( data, Files.readAllBytes( file.toPath() ) ) )
+		{
+			numUnchanged.incrementAndGet();
+			return;
+		}
+
+		file.getParentFile().mkdirs();
+		final File tmp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		Files.write( tmp.toPath(), data );
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		numWritten.incrementAndGet();
+		bytesWritten.addAndGet( data.length );
+	}
+
+	private long numDone()
+	{
+		return numWritten.get() + numUnchanged.get() + numSkipped.get() + numFailed.get();
+	}
+
+	private String getProgress( final long startNanos )
+	{
+		final double seconds = ( System.nanoTime() - startNanos ) * 1e-9;
+		final long done = numDone();
+		final long rendered = numWritten.get() + numUnchanged.get();
+		final double tilesPerSecond = rendered / seconds;
+		final double eta = tilesPerSecond > 0 ? ( numTiles - done ) / tilesPerSecond : 0;
+		return String.format( "%d/%d tiles (%.1f%%)  written:%d  unchanged:%d  skipped:%d  failed:%d  %.1f tiles/s  %.1f MB/s  eta:%.0f s",
+				done, numTiles, 100.0 * done / Math.max( 1, numTiles ),
+				numWritten.get(), numUnchanged.get(), numSkipped.get(), numFailed.get(),
+				tilesPerSecond, bytesWritten.get() / seconds / ( 1024 * 1024 ), eta );
+	}
+
+	/**
+	 * Export all tiles and return when done.
+	 */
+	public void run() throws InterruptedException, IOException
+	{
+		final Properties manifest = getManifest();
+		final Properties existing = readManifest();
+		final boolean changed = existing != null && !existing.equals( manifest );
+		if ( changed && !options.overwrite )
+			throw new IOException( "tiles in " + options.outputDir + " were rendered with different settings, see " + MANIFEST + ". Set export.overwrite=true to re-render them." );
+		if ( existing == null )
+			writeManifest( manifest );
+
+		final long start = System.nanoTime();
+		final TileMetrics metrics = new TileMetrics();
+		final Thread[] workers = new Thread[ options.numThreads ];
+		for ( int i = 0; i < workers.length; ++i )
+		{
+			final TileGenerator generator = new TileGenerator( loader, metrics );
+			workers[ i ] = new Thread( "export-" + i )
+			{
+				@Override
+				public void run()
+				{
+					work( generator, metrics );
+				}
+			};
+			workers[ i ].start();
+		}
+
+		for ( final Thread worker : workers )
+		{
+			while ( worker.isAlive() )
+			{
+				worker.join( options.progressSeconds * 1000l );
+				if ( worker.isAlive() )
+					System.out.println( getProgress( start ) );
+			}
+		}
+		System.out.println( getProgress( start ) );
+
+		if ( changed )
+		{
+			if ( numWritten.get() + numUnchanged.get() == numTiles )
+				writeManifest( manifest );
+			else
+				System.out.println( "not all tiles were re-rendered, keeping the old " + MANIFEST );
+		}
+	}
+
+	public static void main( final String[] args ) throws Exception
+	{
+		new PyramidExporter( Options.fromSystemProperties() ).run();
+	}
+}
@@ -0,0 +1,126 @@
+package tileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes unsigned 16-bit tiles for client-side display. The encoded tile is
+ * a 24-byte header followed by the (optionally compressed) pixel data. All
+ * values are little-endian:
+ *
+ * <pre>
+ * offset  size  content
+ *      0     4  magic "TU16"
+ *      4     4  width
+ *      8     4  height
+ *     12     4  mipmap level (of the first visible source, -1 if none)
+ *     16     4  compression (0 = none, 1 = zlib/deflate, 2 = LZ4 block)
+ *     20     4  uncompressed size of the pixel data in bytes
+ *     24        pixel data, row-major uint16
+ * </pre>
+ * <p>
+ * Instances are not thread-safe but can be reused.
+ */
+public class RawTileEncoder
+{
+	public static enum Compression
+	{
+		NONE,
+		DEFLATE,
+		LZ4;
+
+		/**
+		 * Parse a compression name (case-insensitive). Defaults to
+		 * {@link #NONE}.
+		 */
+		public static Compression fromString( final String name )
+		{
+			for ( final Compression c : values() )
+				if ( c.name().equalsIgnoreCase( name ) )
+					return c;
+			return NONE;
+		}
+	}
+
+	public static final int HEADER_SIZE = 24;
+
+	private final Deflater deflater;
+
+	private final Lz4 lz4;
+
+	private byte[] raw;
+
+	private byte[] compressed;
+
+	public RawTileEncoder()
+	{
+		deflater = new Deflater( Deflater.BEST_SPEED );
+		lz4 = new Lz4();
+		raw = new byte[ 0 ];
+		compressed = new byte[ 0 ];
+	}
+
+	public void write( final short[] data, final int width, final int height, final int mipmapLevel, final Compression compression, final OutputStream os ) throws IOException
+	{
+		final int n = width * height;
+		final int rawSize = 2 * n;
+		if ( raw.length < rawSize )
+			raw = new byte[ rawSize ];
+		for ( int i = 0, j = 0; i < n; ++i )
+		{
+			final short v = data[ i ];
+			raw[ j++ ] = ( byte ) v;
+			raw[ j++ ] = ( byte ) ( v >> 8 );
+		}
+
+		final byte[] header = new byte[ HEADER_SIZE ];
+		header[ 0 ] = 'T';
+		header[ 1 ] = 'U';
+		header[ 2 ] = '1';
+		header[ 3 ] = '6';
+		putIntLE( header, 4, width );
+		putIntLE( header, 8, height );
+		putIntLE( header, 12, mipmapLevel );
+		putIntLE( header, 16, compression.ordinal() );
+		putIntLE( header, 20, rawSize );
+		os.write( header );
+
+		switch ( compression )
+		{
+		case DEFLATE:
+			deflater.reset();
+			deflater.setInput( raw, 0, rawSize );
+			deflater.finish();
+			ensureCompressedSize( 4096 );
+			while ( !deflater.finished() )
+			{
+				final int len = deflater.deflate( compressed );
+				os.write( compressed, 0, len );
+			}
+			break;
+		case LZ4:
+			ensureCompressedSize( Lz4.maxCompressedLength( rawSize ) );
+			final int len = lz4.compress( raw, rawSize, compressed );
+			os.write( compressed, 0, len );
+			break;
+		case NONE:
+		default:
+			os.write( raw, 0, rawSize );
+		}
+	}
+
+	private void ensureCompressedSize( final int size )
+	{
+		if ( compressed.length < size )
+			compressed = new byte[ size ];
+	}
+
+	private static void putIntLE( final byte[] b, final int off, final int v )
+	{
+		b[ off ] = ( byte ) v;
+		b[ off + 1 ] = ( byte ) ( v >>> 8 );
+		b[ off + 2 ] = ( byte ) ( v >>> 16 );
+		b[ off + 3 ] = ( byte ) ( v >>> 24 );
+	}
+}
@@ -0,0 +1,138 @@
+package tileserver;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tiles being rendered, by {@link TileRequest#getKey() key}, such that
+ * identical requests, prefetches, and refinements share a single render
+ * instead of rendering the same tile concurrently.
+ */
+public class RenderFlights
+{
+	/**
+	 * Renders a tile, see {@link RenderFlights#render}.
+	 */
+	public static interface Renderer
+	{
+		/**
+		 * @return the tile, or {@code null} if the render was cancelled.
+		 */
+		public TileCache.Tile render() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * A render in progress.
+	 */
+	static class Flight
+	{
+		private final CountDownLatch done = new CountDownLatch( 1 );
+
+		private volatile TileCache.Tile tile;
+
+		/**
+		 * Wait until the render is done, or {@code render} (the waiting
+		 * request) is cancelled.
+		 *
+		 * @return the rendered tile, or {@code null} if either render was
+		 *         cancelled.
+		 */
+		TileCache.Tile await( final RenderTracker.Render render ) throws InterruptedException
+		{
+			while ( !done.await( POLL_MILLIS, TimeUnit.MILLISECONDS ) )
+				if ( render.isCancelled() )
+					return null;
+			return tile;
+		}
+	}
+
+	/**
+	 * How often a request waiting for an identical render checks whether it
+	 * was cancelled itself.
+	 */
+	static final long POLL_MILLIS = 50;
+
+	private final ConcurrentHashMap< String, Flight > flights;
+
+	private final AtomicLong numCoalesced;
+
+	public RenderFlights()
+	{
+		flights = new ConcurrentHashMap< String, Flight >();
+		numCoalesced = new AtomicLong();
+	}
+
+	/**
+	 * Render a tile with {@code renderer}. If the same tile is being rendered
+	 * already, wait for that render and share its result instead. If that
+	 * render is cancelled, or was degraded to meet a time budget while
+	 * {@code tileRequest} has none, try again.
+	 *
+	 * @param render
+	 *            the request waiting for the tile.
+	 * @return the tile, or {@code null} if the render was cancelled.
+	 */
+	public TileCache.Tile render( final TileRequest tileRequest, final RenderTracker.Render render, final Renderer renderer ) throws IOException, InterruptedException
+	{
+		final String key = tileRequest.getKey();
+		while ( true )
+		{
+			final Flight flight = new Flight();
+			final Flight leader = flights.putIfAbsent( key, flight );
+			if ( leader == null )
+				return lead( key, flight, renderer );
+
+			final TileCache.Tile tile = leader.await( render );
+			if ( tile != null && ( tile.getETag() != null || tileRequest.getBudgetMillis() > 0 ) )
+			{
+				numCoalesced.incrementAndGet();
+				return tile;
+			}
+			if ( render.isCancelled() )
+				return null;
+		}
+	}
+
+	/**
+	 * Render a tile with {@code renderer}, unless the same tile is being
+	 * rendered already.
+	 *
+	 * @return {@code false} if the tile is being rendered already (and
+	 *         {@code renderer} was not called).
+	 */
+	public boolean tryRender( final TileRequest tileRequest, final Renderer renderer ) throws IOException, InterruptedException
+	{
+		final String key = tileRequest.getKey();
+		final Flight flight = new Flight();
+		if ( flights.putIfAbsent( key, flight ) != null )
+			return false;
+		lead( key, flight, renderer );
+		return true;
+	}
+
+	private TileCache.Tile lead( final String key, final Flight flight, final Renderer renderer ) throws IOException, InterruptedException
+	{
+		try
+		{
+			flight.tile = renderer.render();
+		}
+		finally
+		{
+			flights.remove( key, flight );
+			flight.done.countDown();
+		}
+		return flight.tile;
+	}
+
+	/**
+	 * Get the number of requests that were answered by an identical render
+	 * in progress.
+	 */
+	public long getNumCoalesced()
+	{
+		return numCoalesced.get();
+	}
+}
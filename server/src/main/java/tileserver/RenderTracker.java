@@ -0,0 +1,240 @@
+package tileserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.io.EndPoint;
+
+/**
+ * Keeps track of tile requests that are queued or being rendered, and cancels
+ * them when the client disconnects or when a newer request from the same
+ * viewer session supersedes them.
+ * <p>
+ * A viewer session is identified by the {@code session} request parameter.
+ * Requests of a session carry an increasing {@code seq} number (e.g.,
+ * incremented on every view change). A request supersedes all requests of the
+ * same session with smaller {@code seq}.
+ */
+public class RenderTracker
+{
+	/**
+	 * A tracked render. A {@link TileGenerator} is {@link #attach(TileGenerator)
+	 * attached} while the tile is rendered, so that {@link #cancel()} can
+	 * interrupt it.
+	 */
+	public static class Render
+	{
+		private final TileRequest tileRequest;
+
+		private final EndPoint endPoint;
+
+		private TileGenerator generator;
+
+		private boolean cancelled;
+
+		/**
+		 * @param endPoint
+		 *            connection to the client, used to detect disconnects. May
+		 *            be {@code null}.
+		 */
+		public Render( final TileRequest tileRequest, final EndPoint endPoint )
+		{
+			this.tileRequest = tileRequest;
+			this.endPoint = endPoint;
+			generator = null;
+			cancelled = false;
+		}
+
+		/**
+		 * Attach the generator that will render this request.
+		 *
+		 * @return {@code false} if the render was already cancelled. In this
+		 *         case the generator is not attached.
+		 */
+		public synchronized boolean attach( final TileGenerator generator )
+		{
+			if ( cancelled )
+				return false;
+			generator.resetCancel();
+			this.generator = generator;
+			return true;
+		}
+
+		/**
+		 * Detach the generator. Must be called before the generator is
+		 * returned to the pool.
+		 */
+		public synchronized void detach()
+		{
+			generator = null;
+		}
+
+		public synchronized void cancel()
+		{
+			cancelled = true;
+			if ( generator != null )
+				generator.cancel();
+		}
+
+		public synchronized boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		public TileRequest getTileRequest()
+		{
+			return tileRequest;
+		}
+
+		boolean isClientConnected()
+		{
+			return endPoint == null || endPoint.isOpen();
+		}
+	}
+
+	/**
+	 * When more sessions are seen, forget all of them.
+	 */
+	private static final int MAX_SESSIONS = 10000;
+
+	/**
+	 * Renders that are currently queued or running.
+	 */
+	private final Map< Render, Boolean > active;
+
+	/**
+	 * Largest {@code seq} seen for each session.
+	 */
+	private final Map< String, Long > sessionSeq;
+
+	private final ScheduledExecutorService watchdog;
+
+	private final AtomicLong numDisconnected;
+
+	private final AtomicLong numSuperseded;
+
+	/**
+	 * @param checkIntervalMillis
+	 *            how often to check whether clients are still connected.
+	 */
+	public RenderTracker( final long checkIntervalMillis )
+	{
+		active = new ConcurrentHashMap< Render, Boolean >();
+		sessionSeq = new ConcurrentHashMap< String, Long >();
+		numDisconnected = new AtomicLong();
+		numSuperseded = new AtomicLong();
+		watchdog = Executors.newSingleThreadScheduledExecutor();
+		watchdog.scheduleWithFixedDelay( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				cancelDisconnected();
+			}
+		}, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Start tracking a render. If it belongs to a session, cancel all tracked
+	 * renders of the session that it supersedes.
+	 *
+	 * @return {@code false} if the render is already superseded by a newer
+	 *         request. In this case it is cancelled and not tracked.
+	 */
+	public boolean register( final Render render )
+	{
+		final String session = render.getTileRequest().getSession();
+		if ( session.isEmpty() )
+		{
+			active.put( render, Boolean.TRUE );
+			return true;
+		}
+
+		final long seq = render.getTileRequest().getSeq();
+		synchronized ( sessionSeq )
+		{
+			final Long latest = sessionSeq.get( session );
+			if ( latest != null && latest > seq )
+			{
+				numSuperseded.incrementAndGet();
+				render.cancel();
+				return false;
+			}
+			if ( sessionSeq.size() >= MAX_SESSIONS )
+				sessionSeq.clear();
+			sessionSeq.put( session, seq );
+			active.put( render, Boolean.TRUE );
+		}
+
+		if ( latest( session ) == seq )
+			for ( final Render r : active.keySet() )
+			{
+				final TileRequest other = r.getTileRequest();
+				if ( other.getSeq() < seq && other.getSession().equals( session ) && active.remove( r ) != null )
+				{
+					numSuperseded.incrementAndGet();
+					r.cancel();
+				}
+			}
+		return true;
+	}
+
+	/**
+	 * Whether a newer request of the session of {@code tileRequest} was
+	 * {@link #register registered}.
+	 */
+	public boolean isSuperseded( final TileRequest tileRequest )
+	{
+		final String session = tileRequest.getSession();
+		return !session.isEmpty() && latest( session ) > tileRequest.getSeq();
+	}
+
+	/**
+	 * Stop tracking a render (when it is finished or was cancelled).
+	 */
+	public void unregister( final Render render )
+	{
+		active.remove( render );
+	}
+
+	public void shutdown()
+	{
+		watchdog.shutdownNow();
+	}
+
+	public long getNumDisconnected()
+	{
+		return numDisconnected.get();
+	}
+
+	public long getNumSuperseded()
+	{
+		return numSuperseded.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "active:%d  cancelled (disconnected):%d  cancelled (superseded):%d", active.size(), getNumDisconnected(), getNumSuperseded() );
+	}
+
+	private long latest( final String session )
+	{
+		final Long latest = sessionSeq.get( session );
+		return latest == null ? Long.MIN_VALUE : latest;
+	}
+
+	private void cancelDisconnected()
+	{
+		for ( final Render r : active.keySet() )
+			if ( !r.isClientConnected() && active.remove( r ) != null )
+			{
+				numDisconnected.incrementAndGet();
+				r.cancel();
+			}
+	}
+}
@@ -0,0 +1,207 @@
+package tileserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least-recently-used cache of encoded tiles, bounded by the total number of
+ * bytes of encoded tile data.
+ */
+public class TileCache
+{
+	/**
+	 * An encoded tile.
+	 */
+	public static class Tile
+	{
+		private final byte[] data;
+
+		private final String contentType;
+
+		private final String etag;
+
+		/**
+		 * Whether the tile was rendered speculatively by the
+		 * {@link Prefetcher}.
+		 */
+		private final boolean prefetched;
+
+		private final AtomicBoolean used;
+
+		public Tile( final byte[] data, final String contentType, final String etag )
+		{
+			this( data, contentType, etag, false );
+		}
+
+		public Tile( final byte[] data, final String contentType, final String etag, final boolean prefetched )
+		{
+			this.data = data;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.prefetched = prefetched;
+			used = new AtomicBoolean();
+		}
+
+		public byte[] getData()
+		{
+			return data;
+		}
+
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		public String getETag()
+		{
+			return etag;
+		}
+
+		public boolean isPrefetched()
+		{
+			return prefetched;
+		}
+
+		/**
+		 * Mark the tile as used (sent to a client).
+		 *
+		 * @return {@code true} if this is the first use.
+		 */
+		public boolean markUsed()
+		{
+			return used.compareAndSet( false, true );
+		}
+	}
+
+	/**
+	 * Maps canonical request keys to tiles, in access order.
+	 */
+	private final LinkedHashMap< String, Tile > tiles;
+
+	/**
+	 * Maximum total size of cached tile data.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Current total size of cached tile data.
+	 */
+	private long bytes;
+
+	private final AtomicLong hits;
+
+	private final AtomicLong misses;
+
+	private final AtomicLong evictions;
+
+	/**
+	 * @param maxBytes
+	 *            maximum total size of cached tile data.
+	 */
+	public TileCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		tiles = new LinkedHashMap< String, Tile >( 1024, 0.75f, true );
+		bytes = 0;
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Get the tile for the given key, or {@code null} if it is not cached.
+	 */
+	public Tile get( final String key )
+	{
+		final Tile tile;
+		synchronized ( this )
+		{
+			tile = tiles.get( key );
+		}
+		if ( tile == null )
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return tile;
+	}
+
+	/**
+	 * Check whether a tile for the given key is cached. Does not count as a
+	 * hit or miss and does not change the LRU order.
+	 */
+	public synchronized boolean contains( final String key )
+	{
+		return tiles.containsKey( key );
+	}
+
+	/**
+	 * Add a tile to the cache, evicting least-recently-used tiles until the
+	 * total size fits into the byte budget. Tiles that are larger than the
+	 * whole budget are not cached.
+	 */
+	public synchronized void put( final String key, final Tile tile )
+	{
+		final int size = tile.getData().length;
+		if ( size > maxBytes )
+			return;
+
+		final Tile previous = tiles.put( key, tile );
+		if ( previous != null )
+			bytes -= previous.getData().length;
+		bytes += size;
+
+		final Iterator< Entry< String, Tile > > it = tiles.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Tile evicted = it.next().getValue();
+			it.remove();
+			bytes -= evicted.getData().length;
+			evictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		tiles.clear();
+		bytes = 0;
+	}
+
+	public synchronized int getNumTiles()
+	{
+		return tiles.size();
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "tiles:%d  bytes:%d/%d  hits:%d  misses:%d  evictions:%d", getNumTiles(), getBytes(), getMaxBytes(), getHits(), getMisses(), getEvictions() );
+	}
+}
@@ -0,0 +1,474 @@
+package tileserver;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+import modifiedviewer.DisplayLut;
+import modifiedviewer.RenderCostModel;
+import modifiedviewer.RenderPool;
+import modifiedviewer.RenderSettings;
+import modifiedviewer.TileRenderer;
+import modifiedviewer.TileRenderer.TargetType;
+import mpicbg.spim.data.SequenceDescription;
+import net.imglib2.display.ARGBScreenImage;
+import net.imglib2.display.RealARGBConverter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import tileserver.TileRequest.Format;
+import viewer.SequenceViewsLoader;
+import viewer.SpimSource;
+import viewer.render.Interpolation;
+import viewer.render.Source;
+import viewer.render.SourceAndConverter;
+import viewer.render.ViewerState;
+
+
+public class TileGenerator
+{
+	final ViewerState state;
+
+	final TileRenderer renderer;
+
+	final ImageWriter jpegWriter;
+
+	final ImageWriteParam param;
+
+	final PngEncoder pngEncoder;
+
+	final RawTileEncoder rawEncoder;
+
+	/**
+	 * Reused buffer that tiles are encoded into.
+	 */
+	final EncodeBuffer encodeBuffer;
+
+	/**
+	 * In-memory output of {@link #jpegWriter}, writing to
+	 * {@link #encodeBuffer}.
+	 */
+	final BufferImageOutputStream jpegStream;
+
+	/**
+	 * Reused by {@link #writeJpeg}, created with the first image.
+	 */
+	private IIOImage jpegImage;
+
+	/**
+	 * Render and encode times and tile counts are recorded here.
+	 */
+	final TileMetrics metrics;
+
+	/**
+	 * Size of the image rendered by the last {@link #render}.
+	 */
+	private int renderedWidth;
+
+	private int renderedHeight;
+
+	/**
+	 * Buffers for copying single tiles out of a rendered grid of tiles, see
+	 * {@link #getTiles}.
+	 */
+	private int[] argbTile;
+
+	private byte[] grayTile;
+
+	private short[] uint16Tile;
+
+	public TileGenerator( final SequenceViewsLoader loader )
+	{
+		this( loader, new TileMetrics() );
+	}
+
+	/**
+	 * @param metrics
+	 *            record render and encode times and tile counts here.
+	 */
+	public TileGenerator( final SequenceViewsLoader loader, final TileMetrics metrics )
+	{
+		this( createState( loader ), metrics );
+	}
+
+	/**
+	 * Render tiles of the sources in {@code state}. The generator takes
+	 * ownership of the state (it sets transform, timepoint, and interpolation
+	 * for every tile).
+	 *
+	 * @param metrics
+	 *            record render and encode times and tile counts here.
+	 */
+	public TileGenerator( final ViewerState state, final TileMetrics metrics )
+	{
+		this.state = state;
+
+		renderer = new TileRenderer();
+
+		jpegWriter = ImageIO.getImageWritersByFormatName( "jpeg" ).next();
+		param = jpegWriter.getDefaultWriteParam();
+		param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+		param.setCompressionQuality( 1f );
+		param.setSourceSubsampling( 1, 1, 0, 0 );
+		encodeBuffer = new EncodeBuffer( 64 * 1024 );
+		jpegStream = new BufferImageOutputStream( encodeBuffer );
+		jpegWriter.setOutput( jpegStream );
+		jpegImage = null;
+
+		pngEncoder = new PngEncoder( 6, RenderPool.getSharedPool(), 64 );
+		rawEncoder = new RawTileEncoder();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * A {@link SpimSource} that shares its {@link RenderCostModel} estimates
+	 * with the sources of the same loader and setup in other generators.
+	 */
+	static class SetupSpimSource extends SpimSource implements RenderCostModel.SetupSource
+	{
+		private final SequenceViewsLoader loader;
+
+		private final int setup;
+
+		SetupSpimSource( final SequenceViewsLoader loader, final int setup, final String name )
+		{
+			super( loader, setup, name );
+			this.loader = loader;
+			this.setup = setup;
+		}
+
+		@Override
+		public Object getDataset()
+		{
+			return loader;
+		}
+
+		@Override
+		public int getSetup()
+		{
+			return setup;
+		}
+	}
+
+	/**
+	 * Create a {@link ViewerState} showing all setups of a SPIM sequence.
+	 * Source data is read through the {@link BlockCache#getShared() shared
+	 * block cache}, if there is one.
+	 */
+	public static ViewerState createState( final SequenceViewsLoader loader )
+	{
+		final SequenceDescription seq = loader.getSequenceDescription();
+		final RealARGBConverter< UnsignedShortType > converter = new RealARGBConverter< UnsignedShortType >( 0, 6000 /*65535*/ );
+
+		final BlockCache blockCache = BlockCache.getShared();
+		final ArrayList< SourceAndConverter< ? > > sources = new ArrayList< SourceAndConverter< ? > >();
+		for ( int setup = 0; setup < seq.numViewSetups(); ++setup )
+		{
+			final Source< UnsignedShortType > source = new SetupSpimSource( loader, setup, "angle " + seq.setups[ setup ].getAngle() );
+			sources.add( new SourceAndConverter< UnsignedShortType >( blockCache == null ? source : new CachedSource( source, loader, setup, blockCache ), converter ) );
+		}
+
+		final ViewerState state = new ViewerState( sources, seq.numTimepoints() );
+		state.setCurrentSource( 0 );
+		state.setInterpolation( Interpolation.NLINEAR );
+		return state;
+	}
+
+	/**
+	 * Render a tile and write it to {@code os}, encoded in the requested
+	 * {@link TileRequest#getFormat() format}. If the request has a
+	 * {@link TileRequest#getBudgetMillis() time budget}, the tile may be
+	 * rendered at coarser mipmap levels than requested (see
+	 * {@link #isLastTileDegraded()}). If the request has a
+	 * {@link TileRequest#getProjection() projection}, the tile is the
+	 * projection of a slab along the z axis of the stackToTile transform,
+	 * computed in a single pass.
+	 *
+	 * @return {@code false} if rendering was {@link #cancel() cancelled}. In
+	 *         this case nothing is written to {@code os}.
+	 */
+	public boolean getTile( final TileRequest tileRequest, final OutputStream os ) throws IOException
+	{
+		if ( !render( tileRequest, 1, 1 ) )
+			return false;
+		metrics.countTile( tileRequest, renderer.getLastMipmapLevel(), renderer.getLastSourceIndices() );
+		encode( tileRequest, 0, 0 );
+		encodeBuffer.writeTo( os );
+		return true;
+	}
+
+	/**
+	 * Render and encode a tile, see
+	 * {@link #getTile(TileRequest, OutputStream)}. The tile is encoded into a
+	 * reused buffer, so the returned array is the only allocation per tile.
+	 *
+	 * @return the encoded tile, or {@code null} if rendering was
+	 *         {@link #cancel() cancelled}.
+	 */
+	public byte[] getTile( final TileRequest tileRequest ) throws IOException
+	{
+		if ( !render( tileRequest, 1, 1 ) )
+			return null;
+		metrics.countTile( tileRequest, renderer.getLastMipmapLevel(), renderer.getLastSourceIndices() );
+		encode( tileRequest, 0, 0 );
+		return encodeBuffer.toByteArray();
+	}
+
+	/**
+	 * Receives the tiles of {@link TileGenerator#getTiles}.
+	 */
+	public static interface TileSink
+	{
+		/**
+		 * @param col
+		 *            column of the tile in the grid.
+		 * @param row
+		 *            row of the tile in the grid.
+		 * @param data
+		 *            the encoded tile.
+		 */
+		public void tile( int col, int row, byte[] data ) throws IOException;
+	}
+
+	/**
+	 * Render a grid of {@code cols * rows} tiles in one go (with a single
+	 * projector) and pass each tile to {@code sink} as soon as it is encoded.
+	 * {@code tileRequest} is the top-left tile; the tile at {@code (col, row)}
+	 * is {@link TileRequest#getNeighbor(int, int, int)
+	 * tileRequest.getNeighbor(col, row, 0)}. If the request has a
+	 * {@link TileRequest#getBudgetMillis() time budget}, it applies to the
+	 * whole grid (see {@link #isLastTileDegraded()}).
+	 *
+	 * @return {@code false} if rendering was {@link #cancel() cancelled}. In
+	 *         this case no tile is passed to {@code sink}.
+	 */
+	public boolean getTiles( final TileRequest tileRequest, final int cols, final int rows, final TileSink sink ) throws IOException
+	{
+		if ( !render( tileRequest, cols, rows ) )
+			return false;
+		final int w = ( int ) ( tileRequest.getScreenScale() * tileRequest.getTileWidth() );
+		final int h = ( int ) ( tileRequest.getScreenScale() * tileRequest.getTileHeight() );
+		for ( int row = 0; row < rows; ++row )
+			for ( int col = 0; col < cols; ++col )
+			{
+				metrics.countTile( tileRequest, renderer.getLastMipmapLevel(), renderer.getLastSourceIndices() );
+				encode( tileRequest, col * w, row * h );
+				sink.tile( col, row, encodeBuffer.toByteArray() );
+			}
+		return true;
+	}
+
+	/**
+	 * Render a grid of {@code cols * rows} tiles, the top-left of which is
+	 * {@code tileRequest}, into the target of the {@link #renderer}.
+	 */
+	private boolean render( final TileRequest tileRequest, final int cols, final int rows )
+	{
+		final TargetType type = tileRequest.isUint16() ? TargetType.UINT16 : tileRequest.isGray() ? TargetType.GRAY : TargetType.ARGB;
+		final int numSources = state.numSources();
+		final DisplayLut[] luts = new DisplayLut[ numSources ];
+		for ( int i = 0; i < numSources; ++i )
+			luts[ i ] = DisplayLut.get( tileRequest.getMin( i ), tileRequest.getMax( i ), tileRequest.getLut( i ) );
+		final int tileW = cols * tileRequest.getTileWidth();
+		final int tileH = rows * tileRequest.getTileHeight();
+		final RenderSettings settings = new RenderSettings()
+				.type( type )
+				.luts( luts )
+				.mipmapLevel( tileRequest.getMipmapLevel() )
+				.budgetNanos( tileRequest.getBudgetMillis() * 1000000 )
+				.fusion( tileRequest.getFusion() )
+				.projection( tileRequest.getProjection() );
+		if ( !paint( tileRequest.getStackToTile(), tileRequest.getTimepoint(), tileW, tileH, tileRequest.getScreenScale(), tileRequest.getInterpolation(), settings ) )
+			return false;
+		renderedWidth = ( int ) ( tileRequest.getScreenScale() * tileW );
+		renderedHeight = ( int ) ( tileRequest.getScreenScale() * tileH );
+		metrics.projectorCreation.record( renderer.getLastProjectorNanoTime() );
+		metrics.render.record( renderer.getLastRenderNanoTime() );
+		return true;
+	}
+
+	/**
+	 * Encode the tile at {@code (x0, y0)} of the rendered image in the
+	 * requested format, into {@link #encodeBuffer}.
+	 */
+	private void encode( final TileRequest tileRequest, final int x0, final int y0 ) throws IOException
+	{
+		final EncodeBuffer os = encodeBuffer;
+		os.reset();
+		final int w = ( int ) ( tileRequest.getScreenScale() * tileRequest.getTileWidth() );
+		final int h = ( int ) ( tileRequest.getScreenScale() * tileRequest.getTileHeight() );
+		final boolean whole = x0 == 0 && y0 == 0 && w == renderedWidth && h == renderedHeight;
+		final boolean gray = tileRequest.isGray();
+
+		final long t0 = System.nanoTime();
+		switch ( tileRequest.getFormat() )
+		{
+		case RAW:
+			final int[] levels = renderer.getLastMipmapLevel();
+			final ArrayList< Integer > visible = renderer.getLastSourceIndices();
+			final int level = visible.isEmpty() ? -1 : levels[ visible.get( 0 ) ];
+			final short[] uint16 = renderer.getUint16Data();
+			if ( whole )
+				rawEncoder.write( uint16, w, h, level, tileRequest.getCompression(), os );
+			else
+			{
+				if ( uint16Tile == null || uint16Tile.length != w * h )
+					uint16Tile = new short[ w * h ];
+				for ( int y = 0; y < h; ++y )
+					System.arraycopy( uint16, ( y0 + y ) * renderedWidth + x0, uint16Tile, y * w, w );
+				rawEncoder.write( uint16Tile, w, h, level, tileRequest.getCompression(), os );
+			}
+			break;
+		case PNG:
+			if ( tileRequest.getBitDepth() == 16 )
+			{
+				final short[] values = renderer.getUint16Data();
+				if ( whole )
+					pngEncoder.writeGray16( values, w, h, os );
+				else
+				{
+					if ( uint16Tile == null || uint16Tile.length != w * h )
+						uint16Tile = new short[ w * h ];
+					for ( int y = 0; y < h; ++y )
+						System.arraycopy( values, ( y0 + y ) * renderedWidth + x0, uint16Tile, y * w, w );
+					pngEncoder.writeGray16( uint16Tile, w, h, os );
+				}
+			}
+			else if ( gray )
+			{
+				final byte[] data = renderer.getGrayData();
+				if ( whole )
+					pngEncoder.writeGray8( data, w, h, os );
+				else
+				{
+					if ( grayTile == null || grayTile.length != w * h )
+						grayTile = new byte[ w * h ];
+					for ( int y = 0; y < h; ++y )
+						System.arraycopy( data, ( y0 + y ) * renderedWidth + x0, grayTile, y * w, w );
+					pngEncoder.writeGray8( grayTile, w, h, os );
+				}
+			}
+			else
+			{
+				final int[] data = renderer.getScreenImage().getData();
+				if ( whole )
+					pngEncoder.writeRGB( data, w, h, os );
+				else
+				{
+					if ( argbTile == null || argbTile.length != w * h )
+						argbTile = new int[ w * h ];
+					for ( int y = 0; y < h; ++y )
+						System.arraycopy( data, ( y0 + y ) * renderedWidth + x0, argbTile, y * w, w );
+					pngEncoder.writeRGB( argbTile, w, h, os );
+				}
+			}
+			break;
+		case JPEG:
+		default:
+			final BufferedImage img = gray ? renderer.getGrayImage() : renderer.getBufferedImage();
+			writeJpeg( whole ? img : img.getSubimage( x0, y0, w, h ), tileRequest.getQuality() );
+		}
+		metrics.encode.record( System.nanoTime() - t0 );
+	}
+
+	/**
+	 * Render a tile and write it to {@code os} as JPEG.
+	 *
+	 * @return {@code false} if rendering was {@link #cancel() cancelled}. In
+	 *         this case nothing is written to {@code os}.
+	 */
+	public boolean getTile( final AffineTransform3D viewTransform, final int t, final int tileW, final int tileH, final double screenScale, final Interpolation interpolation, final OutputStream os ) throws IOException
+	{
+		if ( !paint( viewTransform, t, tileW, tileH, screenScale, interpolation, new RenderSettings() ) )
+			return false;
+
+		writeJpeg( renderer.getBufferedImage(), 1f );
+		encodeBuffer.writeTo( os );
+		return true;
+	}
+
+	private boolean paint( final AffineTransform3D viewTransform, final int t, final int tileW, final int tileH, final double screenScale, final Interpolation interpolation, final RenderSettings settings )
+	{
+		final AffineTransform3D screenScaleTransform = new AffineTransform3D();
+		screenScaleTransform.set( screenScale, 0, 0 );
+		screenScaleTransform.set( screenScale, 1, 1 );
+		screenScaleTransform.set( 0.5 * screenScale - 0.5, 0, 3 );
+		screenScaleTransform.set( 0.5 * screenScale - 0.5, 1, 3 );
+		viewTransform.preConcatenate( screenScaleTransform );
+
+		state.setViewerTransform( viewTransform );
+		state.setCurrentTimepoint( t );
+		state.setInterpolation( interpolation );
+		return renderer.paint( state, ( int ) ( screenScale * tileW ), ( int ) ( screenScale * tileH ), settings );
+	}
+
+	/**
+	 * Whether the last tile was rendered at coarser mipmap levels than
+	 * requested, to meet its time budget.
+	 */
+	public boolean isLastTileDegraded()
+	{
+		return renderer.isLastPaintDegraded();
+	}
+
+	/**
+	 * Encode {@code img} as JPEG into {@link #encodeBuffer}.
+	 */
+	private void writeJpeg( final BufferedImage img, final float quality ) throws IOException
+	{
+		param.setCompressionQuality( quality );
+		if ( jpegImage == null )
+			jpegImage = new IIOImage( img, null, null );
+		else
+			jpegImage.setRenderedImage( img );
+		jpegStream.rewind();
+		jpegWriter.write( null, jpegImage, param );
+	}
+
+	/**
+	 * Cancel the {@link #getTile} call that is currently running (or the next
+	 * one, if none is running).
+	 */
+	public void cancel()
+	{
+		renderer.cancel();
+	}
+
+	/**
+	 * Clear a pending {@link #cancel()}.
+	 */
+	public void resetCancel()
+	{
+		renderer.resetCancel();
+	}
+
+	public void getTile( final double x, final double y, final double z, final double scale, final int t, final int tileW, final int tileH, final OutputStream os ) throws IOException
+	{
+		final double screenScale = 0.5;
+		final AffineTransform3D transform = new AffineTransform3D();
+		final double s = 1;
+		transform.set(
+				s * scale, 0, 0, -x,
+				0, s * scale, 0, -y,
+				0, 0, s * scale, -z * scale );
+
+		final AffineTransform3D screenScaleTransform = new AffineTransform3D();
+		screenScaleTransform.set( screenScale, 0, 0 );
+		screenScaleTransform.set( screenScale, 1, 1 );
+		screenScaleTransform.set( 0.5 * screenScale - 0.5, 0, 3 );
+		screenScaleTransform.set( 0.5 * screenScale - 0.5, 1, 3 );
+		transform.preConcatenate( screenScaleTransform );
+
+		state.setViewerTransform( transform );
+		state.setCurrentTimepoint( t );
+		renderer.paint( state, ( int ) ( screenScale * tileW ), ( int ) ( screenScale * tileH ) );
+
+		writeJpeg( renderer.getBufferedImage(), 1f );
+		encodeBuffer.writeTo( os );
+	}
+}
@@ -0,0 +1,128 @@
+package tileserver;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import tileserver.TileRequest.Format;
+import viewer.render.Interpolation;
+
+/**
+ * Latency histograms and tile counters of a tile server, shared by all
+ * {@link TileGenerator}s. Served in Prometheus text format by the /metrics
+ * endpoint of {@link TileServerJetty}. Histograms are exported in seconds,
+ * with a {@code _seconds} suffix. Source I/O is measured by the
+ * {@link BlockCache}, see {@link BlockCache#writeLoadTime(PrintWriter)}.
+ */
+public class TileMetrics
+{
+	/**
+	 * Counters for mipmap levels beyond this are added to the last one.
+	 */
+	static final int MAX_COUNTED_LEVELS = 16;
+
+	/**
+	 * Time waiting for an idle {@link TileGenerator}.
+	 */
+	final LatencyHistogram queueWait;
+
+	/**
+	 * Time creating the projector (setting up transformed sources).
+	 */
+	final LatencyHistogram projectorCreation;
+
+	/**
+	 * Time rendering, including loading source data.
+	 */
+	final LatencyHistogram render;
+
+	/**
+	 * Time encoding the rendered tile.
+	 */
+	final LatencyHistogram encode;
+
+	/**
+	 * Time writing the encoded tile to the client.
+	 */
+	final LatencyHistogram socketWrite;
+
+	/**
+	 * Rendered tiles per {@link Format}.
+	 */
+	final AtomicLongArray tilesPerFormat;
+
+	/**
+	 * Rendered tiles per {@link Interpolation}.
+	 */
+	final AtomicLongArray tilesPerInterpolation;
+
+	/**
+	 * Rendered source layers per mipmap level.
+	 */
+	final AtomicLongArray layersPerLevel;
+
+	public TileMetrics()
+	{
+		queueWait = new LatencyHistogram( "tileserver_queue_wait", "Time waiting for an idle tile generator." );
+		projectorCreation = new LatencyHistogram( "tileserver_projector_creation", "Time setting up the projector of a tile." );
+		render = new LatencyHistogram( "tileserver_render", "Time rendering a tile, including loading source data." );
+		encode = new LatencyHistogram( "tileserver_encode", "Time encoding a rendered tile." );
+		socketWrite = new LatencyHistogram( "tileserver_socket_write", "Time writing an encoded tile to the client." );
+		tilesPerFormat = new AtomicLongArray( Format.values().length );
+		tilesPerInterpolation = new AtomicLongArray( Interpolation.values().length );
+		layersPerLevel = new AtomicLongArray( MAX_COUNTED_LEVELS );
+	}
+
+	/**
+	 * Count a rendered tile.
+	 *
+	 * @param levels
+	 *            the mipmap level of each source.
+	 * @param visibleSourceIndices
+	 *            the sources that were rendered.
+	 */
+	public void countTile( final TileRequest tileRequest, final int[] levels, final List< Integer > visibleSourceIndices )
+	{
+		tilesPerFormat.incrementAndGet( tileRequest.getFormat().ordinal() );
+		tilesPerInterpolation.incrementAndGet( tileRequest.getInterpolation().ordinal() );
+		for ( final int i : visibleSourceIndices )
+			layersPerLevel.incrementAndGet( Math.min( levels[ i ], MAX_COUNTED_LEVELS - 1 ) );
+	}
+
+	/**
+	 * Write all histograms and counters in Prometheus text format.
+	 */
+	public void write( final PrintWriter out )
+	{
+		queueWait.write( out );
+		projectorCreation.write( out );
+		render.write( out );
+		encode.write( out );
+		socketWrite.write( out );
+
+		out.println( "# HELP tileserver_tiles_rendered_total Rendered tiles by format." );
+		out.println( "# TYPE tileserver_tiles_rendered_total counter" );
+		for ( final Format format : Format.values() )
+			out.println( "tileserver_tiles_rendered_total{format=\"" + format.name().toLowerCase() + "\"} " + tilesPerFormat.get( format.ordinal() ) );
+
+		out.println( "# HELP tileserver_tiles_interpolation_total Rendered tiles by interpolation." );
+		out.println( "# TYPE tileserver_tiles_interpolation_total counter" );
+		for ( final Interpolation interpolation : Interpolation.values() )
+			out.println( "tileserver_tiles_interpolation_total{interpolation=\"" + interpolation.name().toLowerCase() + "\"} " + tilesPerInterpolation.get( interpolation.ordinal() ) );
+
+		out.println( "# HELP tileserver_layers_level_total Rendered source layers by mipmap level." );
+		out.println( "# TYPE tileserver_layers_level_total counter" );
+		for ( int level = 0; level < MAX_COUNTED_LEVELS; ++level )
+			out.println( "tileserver_layers_level_total{level=\"" + level + "\"} " + layersPerLevel.get( level ) );
+	}
+
+	/**
+	 * Write a single counter or gauge in Prometheus text format.
+	 */
+	static void writeValue( final PrintWriter out, final String name, final String type, final String help, final long value )
+	{
+		out.println( "# HELP " + name + " " + help );
+		out.println( "# TYPE " + name + " " + type );
+		out.println( name + " " + value );
+	}
+}
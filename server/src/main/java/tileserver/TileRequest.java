@@ -0,0 +1,998 @@
+package tileserver;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import modifiedviewer.DisplayLut;
+import modifiedviewer.Fusion;
+import modifiedviewer.Fusion.Blend;
+import modifiedviewer.Projection;
+import net.imglib2.realtransform.AffineTransform3D;
+import tileserver.RawTileEncoder.Compression;
+import viewer.render.Interpolation;
+
+/**
+ * The parameters of a single tile request, parsed from the query string.
+ * Provides a canonical key that identifies the rendered tile, which is used
+ * for caching and to derive the ETag.
+ */
+public class TileRequest
+{
+	/**
+	 * Encoding of the tile image.
+	 */
+	public static enum Format
+	{
+		JPEG( "image/jpeg" ),
+		PNG( "image/png" ),
+
+		/**
+		 * Unsigned 16-bit source values, see {@link RawTileEncoder}.
+		 */
+		RAW( "application/octet-stream" );
+
+		private final String contentType;
+
+		private Format( final String contentType )
+		{
+			this.contentType = contentType;
+		}
+
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		/**
+		 * Parse a format name (case-insensitive). Defaults to {@link #JPEG}.
+		 */
+		public static Format fromString( final String name )
+		{
+			for ( final Format f : values() )
+				if ( f.name().equalsIgnoreCase( name ) )
+					return f;
+			return JPEG;
+		}
+	}
+
+	/**
+	 * The row-packed 3x4 stackToTile affine.
+	 */
+	final double[] affine;
+
+	final int timepoint;
+
+	final int tileW;
+
+	final int tileH;
+
+	final double screenScale;
+
+	final Interpolation interpolation;
+
+	final Format format;
+
+	/**
+	 * Whether to render and encode a single-channel 8-bit gray tile.
+	 */
+	final boolean gray;
+
+	/**
+	 * Bits per sample. 16 only for {@link Format#PNG} tiles of unsigned
+	 * 16-bit source values (like {@link Format#RAW}, which are always 16-bit),
+	 * 8 otherwise.
+	 */
+	final int bitDepth;
+
+	/**
+	 * JPEG compression quality in [0, 1]. Always 1 for lossless formats.
+	 */
+	final float quality;
+
+	/**
+	 * Compression of {@link Format#RAW} tiles. Always
+	 * {@link Compression#NONE} for other formats.
+	 */
+	final Compression compression;
+
+	/**
+	 * Display range minimum for each source. If there are fewer values than
+	 * sources, the last value is used for the remaining sources.
+	 */
+	final double[] min;
+
+	/**
+	 * Display range maximum for each source (see {@link #min}).
+	 */
+	final double[] max;
+
+	/**
+	 * LUT name for each source (see {@link #min}), see
+	 * {@link DisplayLut#ramp(String)}.
+	 */
+	final String[] lut;
+
+	/**
+	 * Mipmap level to render, or {@link #BEST_LEVEL}.
+	 */
+	final int mipmapLevel;
+
+	/**
+	 * Whether the client accepts a coarse tile first (with a refinement
+	 * rendered in the background). Not part of the {@link #getKey() key}.
+	 */
+	final boolean progressive;
+
+	/**
+	 * Viewer session the request belongs to, or the empty string. Not part of
+	 * the {@link #getKey() key}.
+	 */
+	final String session;
+
+	/**
+	 * Sequence number within the {@link #session}. Not part of the
+	 * {@link #getKey() key}.
+	 */
+	final long seq;
+
+	/**
+	 * Time budget (ms) for rendering the tile, or 0 if there is no budget. If
+	 * the best mipmap level is requested, coarser levels may be rendered to
+	 * meet the budget. Not part of the {@link #getKey() key}.
+	 */
+	final long budgetMillis;
+
+	/**
+	 * Name of the dataset to render, or the empty string for the default
+	 * dataset (see {@link Datasets}).
+	 */
+	final String dataset;
+
+	/**
+	 * Version of the {@link #dataset}, or the empty string. Part of the
+	 * {@link #getKey() key}, such that tiles of a changed dataset are neither
+	 * served from the caches nor validated by their old ETags.
+	 */
+	final String version;
+
+	/**
+	 * Which sources to render, and whether to fuse their values. Applies to
+	 * tiles and viewports alike, which are both rendered with display LUTs
+	 * (or as raw values).
+	 */
+	final Fusion fusion;
+
+	/**
+	 * Whether to project a slab along the z axis of the stackToTile
+	 * transform instead of rendering a single section.
+	 */
+	final Projection projection;
+
+	static final double[] DEFAULT_MIN = new double[] { 0 };
+
+	static final double[] DEFAULT_MAX = new double[] { 6000 };
+
+	static final String[] DEFAULT_LUT = new String[] { "gray" };
+
+	/**
+	 * {@link #getMipmapLevel() Mipmap level} to choose the best level for the
+	 * requested transform.
+	 */
+	public static final int BEST_LEVEL = -1;
+
+	/**
+	 * {@link #getMipmapLevel() Mipmap level} to choose the coarsest level of
+	 * each source.
+	 */
+	public static final int COARSEST_LEVEL = Integer.MAX_VALUE;
+
+	private String key;
+
+	private String settingsKey;
+
+	private String etag;
+
+	/**
+	 * Builds {@link TileRequest}s. Parameters that are not set keep their
+	 * defaults: identity stackToTile, timepoint 0, screen scale 1, nearest
+	 * neighbor interpolation, JPEG at quality 1, default display settings,
+	 * the best mipmap level, no session or time budget, the default dataset,
+	 * and the visible sources without projection.
+	 */
+	public static class Builder
+	{
+		private double[] affine = new double[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 };
+
+		private int timepoint = 0;
+
+		private int tileW = 0;
+
+		private int tileH = 0;
+
+		private double screenScale = 1;
+
+		private Interpolation interpolation = Interpolation.NEARESTNEIGHBOR;
+
+		private Format format = Format.JPEG;
+
+		private boolean gray = false;
+
+		private int bitDepth = 8;
+
+		private float quality = 1;
+
+		private Compression compression = Compression.NONE;
+
+		private double[] min = DEFAULT_MIN;
+
+		private double[] max = DEFAULT_MAX;
+
+		private String[] lut = DEFAULT_LUT;
+
+		private int mipmapLevel = BEST_LEVEL;
+
+		private boolean progressive = false;
+
+		private String session = "";
+
+		private long seq = 0;
+
+		private long budgetMillis = 0;
+
+		private String dataset = "";
+
+		private String version = "";
+
+		private Fusion fusion = Fusion.DEFAULT;
+
+		private Projection projection = Projection.NONE;
+
+		public Builder()
+		{}
+
+		private Builder( final TileRequest r )
+		{
+			affine = r.affine;
+			timepoint = r.timepoint;
+			tileW = r.tileW;
+			tileH = r.tileH;
+			screenScale = r.screenScale;
+			interpolation = r.interpolation;
+			format = r.format;
+			gray = r.gray;
+			bitDepth = r.bitDepth;
+			quality = r.quality;
+			compression = r.compression;
+			min = r.min;
+			max = r.max;
+			lut = r.lut;
+			mipmapLevel = r.mipmapLevel;
+			progressive = r.progressive;
+			session = r.session;
+			seq = r.seq;
+			budgetMillis = r.budgetMillis;
+			dataset = r.dataset;
+			version = r.version;
+			fusion = r.fusion;
+			projection = r.projection;
+		}
+
+		/**
+		 * Set the stackToTile transform (row-packed 3x4 matrix).
+		 */
+		public Builder affine( final double[] affine )
+		{
+			this.affine = affine;
+			return this;
+		}
+
+		public Builder timepoint( final int timepoint )
+		{
+			this.timepoint = timepoint;
+			return this;
+		}
+
+		public Builder tileSize( final int tileW, final int tileH )
+		{
+			this.tileW = tileW;
+			this.tileH = tileH;
+			return this;
+		}
+
+		public Builder screenScale( final double screenScale )
+		{
+			this.screenScale = screenScale;
+			return this;
+		}
+
+		public Builder interpolation( final Interpolation interpolation )
+		{
+			this.interpolation = interpolation;
+			return this;
+		}
+
+		public Builder format( final Format format )
+		{
+			this.format = format;
+			return this;
+		}
+
+		public Builder gray( final boolean gray )
+		{
+			this.gray = gray;
+			return this;
+		}
+
+		/**
+		 * Set the bits per sample. 16 renders a gray {@link Format#PNG} tile
+		 * of unsigned 16-bit source values, ignoring display settings.
+		 */
+		public Builder bitDepth( final int bitDepth )
+		{
+			this.bitDepth = bitDepth;
+			return this;
+		}
+
+		public Builder quality( final float quality )
+		{
+			this.quality = quality;
+			return this;
+		}
+
+		public Builder compression( final Compression compression )
+		{
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Set display range and LUT name for each source, see
+		 * {@link TileRequest#getMin(int)}.
+		 */
+		public Builder display( final double[] min, final double[] max, final String[] lut )
+		{
+			this.min = min;
+			this.max = max;
+			this.lut = lut;
+			return this;
+		}
+
+		public Builder mipmapLevel( final int mipmapLevel )
+		{
+			this.mipmapLevel = mipmapLevel;
+			return this;
+		}
+
+		public Builder progressive( final boolean progressive )
+		{
+			this.progressive = progressive;
+			return this;
+		}
+
+		/**
+		 * Set the viewer session and the sequence number within it.
+		 */
+		public Builder session( final String session, final long seq )
+		{
+			this.session = session;
+			this.seq = seq;
+			return this;
+		}
+
+		public Builder budgetMillis( final long budgetMillis )
+		{
+			this.budgetMillis = budgetMillis;
+			return this;
+		}
+
+		public Builder dataset( final String dataset )
+		{
+			this.dataset = dataset;
+			return this;
+		}
+
+		public Builder version( final String version )
+		{
+			this.version = version;
+			return this;
+		}
+
+		public Builder fusion( final Fusion fusion )
+		{
+			this.fusion = fusion;
+			return this;
+		}
+
+		public Builder projection( final Projection projection )
+		{
+			this.projection = projection;
+			return this;
+		}
+
+		public TileRequest build()
+		{
+			return new TileRequest( this );
+		}
+	}
+
+	private TileRequest( final Builder b )
+	{
+		affine = b.affine;
+		timepoint = b.timepoint;
+		tileW = b.tileW;
+		tileH = b.tileH;
+		screenScale = b.screenScale;
+		interpolation = b.interpolation;
+		format = b.format;
+		bitDepth = format == Format.PNG && b.bitDepth == 16 ? 16 : 8;
+		gray = format != Format.RAW && ( b.gray || bitDepth == 16 );
+		quality = format == Format.JPEG ? Math.max( 0, Math.min( 1, b.quality ) ) : 1;
+		compression = format == Format.RAW ? b.compression : Compression.NONE;
+		// display settings do not affect raw or 16-bit tiles
+		final boolean values = isUint16();
+		min = values ? DEFAULT_MIN : b.min;
+		max = values ? DEFAULT_MAX : b.max;
+		lut = values ? DEFAULT_LUT : b.lut;
+		mipmapLevel = b.mipmapLevel < 0 ? BEST_LEVEL : b.mipmapLevel;
+		progressive = b.progressive;
+		session = b.session;
+		seq = b.seq;
+		budgetMillis = Math.max( 0, b.budgetMillis );
+		dataset = b.dataset;
+		version = b.version;
+		fusion = b.fusion;
+		projection = b.projection;
+	}
+
+	/**
+	 * Get a {@link Builder} initialized with the parameters of this request.
+	 */
+	public Builder toBuilder()
+	{
+		return new Builder( this );
+	}
+
+	public static TileRequest fromRequest( final HttpServletRequest request )
+	{
+		return fromRequest( request, 0 );
+	}
+
+	/**
+	 * @param defaultBudgetMillis
+	 *            {@link #getBudgetMillis() time budget} if the request does not
+	 *            specify one.
+	 */
+	public static TileRequest fromRequest( final HttpServletRequest request, final long defaultBudgetMillis )
+	{
+		final int timepoint = tryGetInt( request, "timepoint" );
+		final double screenScale = tryGetDouble( request, "screenscale" );
+		final Interpolation interpolation = tryGetString( request, "interpolation" ).equals( "NLINEAR" ) ? Interpolation.NLINEAR : Interpolation.NEARESTNEIGHBOR;
+		final int tileW = tryGetInt( request, "width" );
+		final int tileH = tryGetInt( request, "height" );
+		final Format format = Format.fromString( tryGetString( request, "format" ) );
+		final boolean gray = tryGetBoolean( request, "gray" );
+		final int bitDepth = tryGetString( request, "depth" ).isEmpty() ? 8 : tryGetInt( request, "depth" );
+		final float quality = ( float ) tryGetDouble( request, "quality", 1 );
+		final Compression compression = Compression.fromString( tryGetString( request, "compression" ) );
+		final double[] min = tryGetDoubles( request, "min", DEFAULT_MIN );
+		final double[] max = tryGetDoubles( request, "max", DEFAULT_MAX );
+		final String[] lut = tryGetStrings( request, "lut", DEFAULT_LUT );
+		final int mipmapLevel = tryGetString( request, "level" ).isEmpty() ? BEST_LEVEL : tryGetInt( request, "level" );
+		final boolean progressive = tryGetBoolean( request, "progressive" );
+		final String session = tryGetString( request, "session" );
+		final long seq = tryGetLong( request, "seq" );
+		final long budgetMillis = tryGetString( request, "budget" ).isEmpty() ? defaultBudgetMillis : tryGetLong( request, "budget" );
+		final int[] sources = tryGetInts( request, "sources", null );
+		final Blend blend = Blend.fromString( tryGetString( request, "blend" ) );
+		final double[] weights = tryGetDoubles( request, "weights", null );
+		final Fusion fusion = sources == null && blend == Blend.NONE ? Fusion.DEFAULT : new Fusion( sources, blend, weights );
+		final Projection.Mode projectionMode = Projection.Mode.fromString( tryGetString( request, "projection" ) );
+		final Projection projection;
+		if ( projectionMode == Projection.Mode.NONE )
+			projection = Projection.NONE;
+		else if ( tryGetString( request, "slab" ).isEmpty() )
+			projection = new Projection( projectionMode, tryGetDouble( request, "zmin" ), tryGetDouble( request, "zmax" ) );
+		else
+			projection = Projection.centered( projectionMode, tryGetDouble( request, "slab" ) );
+
+		final double[] affine = new double[ 12 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				affine[ 4 * r + c ] = tryGetDouble( request, "a" + r + "" + c );
+
+		return new Builder()
+				.affine( affine )
+				.timepoint( timepoint )
+				.tileSize( tileW, tileH )
+				.screenScale( screenScale )
+				.interpolation( interpolation )
+				.format( format )
+				.gray( gray )
+				.bitDepth( bitDepth )
+				.quality( quality )
+				.compression( compression )
+				.display( min, max, lut )
+				.mipmapLevel( mipmapLevel )
+				.progressive( progressive )
+				.session( session, seq )
+				.budgetMillis( budgetMillis )
+				.fusion( fusion )
+				.projection( projection )
+				.build();
+	}
+
+	/**
+	 * Create a new {@link AffineTransform3D} from the requested stackToTile
+	 * values. (A new instance is returned because
+	 * {@link TileGenerator#getTile} modifies the transform.)
+	 */
+	public AffineTransform3D getStackToTile()
+	{
+		final AffineTransform3D stackToTile = new AffineTransform3D();
+		stackToTile.set( affine );
+		return stackToTile;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getTileWidth()
+	{
+		return tileW;
+	}
+
+	public int getTileHeight()
+	{
+		return tileH;
+	}
+
+	public double getScreenScale()
+	{
+		return screenScale;
+	}
+
+	public Interpolation getInterpolation()
+	{
+		return interpolation;
+	}
+
+	public Format getFormat()
+	{
+		return format;
+	}
+
+	public boolean isGray()
+	{
+		return gray;
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	/**
+	 * Whether the tile consists of unsigned 16-bit source values rather than
+	 * display values, i.e., whether it is {@link Format#RAW} or a 16-bit
+	 * {@link Format#PNG}.
+	 */
+	public boolean isUint16()
+	{
+		return format == Format.RAW || bitDepth == 16;
+	}
+
+	public float getQuality()
+	{
+		return quality;
+	}
+
+	public Compression getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Get the display range minimum of the given source.
+	 */
+	public double getMin( final int source )
+	{
+		return min[ Math.min( source, min.length - 1 ) ];
+	}
+
+	/**
+	 * Get the display range maximum of the given source.
+	 */
+	public double getMax( final int source )
+	{
+		return max[ Math.min( source, max.length - 1 ) ];
+	}
+
+	/**
+	 * Get the LUT name of the given source.
+	 */
+	public String getLut( final int source )
+	{
+		return lut[ Math.min( source, lut.length - 1 ) ];
+	}
+
+	/**
+	 * Get the mipmap level to render. {@link #BEST_LEVEL} means the best level
+	 * for the transform, {@link #COARSEST_LEVEL} the coarsest level of each
+	 * source.
+	 */
+	public int getMipmapLevel()
+	{
+		return mipmapLevel;
+	}
+
+	public boolean isProgressive()
+	{
+		return progressive;
+	}
+
+	public String getSession()
+	{
+		return session;
+	}
+
+	public long getSeq()
+	{
+		return seq;
+	}
+
+	/**
+	 * Get the time budget (ms) for rendering the tile, or 0 if there is no
+	 * budget.
+	 */
+	public long getBudgetMillis()
+	{
+		return budgetMillis;
+	}
+
+	/**
+	 * Get the name of the dataset to render, or the empty string for the
+	 * default dataset.
+	 */
+	public String getDataset()
+	{
+		return dataset;
+	}
+
+	/**
+	 * Get the version of the dataset, or the empty string if unknown.
+	 */
+	public String getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get which sources to render, and whether to fuse their values.
+	 */
+	public Fusion getFusion()
+	{
+		return fusion;
+	}
+
+	/**
+	 * Get whether to project a slab along the z axis of the stackToTile
+	 * transform, and its extent.
+	 */
+	public Projection getProjection()
+	{
+		return projection;
+	}
+
+	/**
+	 * Get the request for a neighboring tile, with the same parameters but
+	 * shifted by {@code dx} tiles horizontally, {@code dy} tiles vertically,
+	 * and {@code dz} sections along the stack z axis. The new request does
+	 * not belong to a session. Neighbors of progressive requests are at the
+	 * best mipmap level, because that is what a progressive request for the
+	 * neighbor would look for in the cache.
+	 */
+	public TileRequest getNeighbor( final int dx, final int dy, final int dz )
+	{
+		final double[] a = affine.clone();
+		a[ 3 ] -= dx * tileW + dz * affine[ 2 ];
+		a[ 7 ] -= dy * tileH + dz * affine[ 6 ];
+		a[ 11 ] -= dz * affine[ 10 ];
+		return toBuilder()
+				.affine( a )
+				.mipmapLevel( progressive ? BEST_LEVEL : mipmapLevel )
+				.progressive( false )
+				.session( "", 0 )
+				.budgetMillis( 0 )
+				.build();
+	}
+
+	/**
+	 * Get this request at a different mipmap level.
+	 */
+	public TileRequest withMipmapLevel( final int level )
+	{
+		return toBuilder().mipmapLevel( level ).build();
+	}
+
+	/**
+	 * Get this request with a different time budget.
+	 */
+	public TileRequest withBudgetMillis( final long budgetMillis )
+	{
+		return toBuilder().budgetMillis( budgetMillis ).build();
+	}
+
+	/**
+	 * Get this request for a different dataset (version).
+	 */
+	public TileRequest withDataset( final String dataset, final String version )
+	{
+		return toBuilder().dataset( dataset ).version( version ).build();
+	}
+
+	/**
+	 * Get a canonical string representation of all parameters that affect the
+	 * rendered tile. Requests that differ only in parameter order or number
+	 * formatting (e.g. "1" vs "1.0", "-0" vs "0") map to the same key.
+	 */
+	public synchronized String getKey()
+	{
+		if ( key == null )
+		{
+			final StringBuilder sb = new StringBuilder();
+			for ( int i = 0; i < 12; ++i )
+				appendCanonical( sb, affine[ i ] ).append( ',' );
+			sb.append( getSettingsKey() );
+			if ( !version.isEmpty() )
+				sb.append( ",v" ).append( version );
+			key = sb.toString();
+		}
+		return key;
+	}
+
+	/**
+	 * Get the part of the {@link #getKey() canonical key} that does not
+	 * depend on the stackToTile transform or the dataset version.
+	 */
+	public synchronized String getSettingsKey()
+	{
+		if ( settingsKey == null )
+		{
+			final StringBuilder sb = new StringBuilder();
+			sb.append( "t" ).append( timepoint );
+			sb.append( ",w" ).append( tileW );
+			sb.append( ",h" ).append( tileH );
+			appendCanonical( sb.append( ",s" ), screenScale );
+			sb.append( ",i" ).append( interpolation.name() );
+			sb.append( ",f" ).append( format.name() );
+			sb.append( ",g" ).append( gray ? 1 : 0 );
+			if ( bitDepth != 8 )
+				sb.append( ",bd" ).append( bitDepth );
+			appendCanonical( sb.append( ",q" ), quality );
+			sb.append( ",c" ).append( compression.name() );
+			sb.append( ",min" );
+			for ( final double v : min )
+				appendCanonical( sb.append( ':' ), v );
+			sb.append( ",max" );
+			for ( final double v : max )
+				appendCanonical( sb.append( ':' ), v );
+			sb.append( ",lut" );
+			for ( final String v : lut )
+				sb.append( ':' ).append( v.toLowerCase() );
+			sb.append( ",l" ).append( mipmapLevel );
+			if ( !dataset.isEmpty() )
+				sb.append( ",d" ).append( dataset );
+			if ( fusion.getSources() != null )
+			{
+				sb.append( ",src" );
+				for ( final int v : fusion.getSources() )
+					sb.append( ':' ).append( v );
+			}
+			if ( fusion.isFused() )
+			{
+				sb.append( ",b" ).append( fusion.getBlend().name() );
+				sb.append( ",wt" );
+				for ( final double v : fusion.getWeights() )
+					appendCanonical( sb.append( ':' ), v );
+			}
+			if ( projection.isProjected() )
+			{
+				sb.append( ",p" ).append( projection.getMode().name() );
+				appendCanonical( sb.append( ",z" ), projection.getZMin() );
+				appendCanonical( sb.append( ':' ), projection.getZMax() );
+			}
+			settingsKey = sb.toString();
+		}
+		return settingsKey;
+	}
+
+	/**
+	 * Get a strong ETag for the tile. Rendering is deterministic, so the ETag
+	 * is derived from the {@link #getKey() canonical key} alone and can be
+	 * checked without rendering the tile.
+	 */
+	public synchronized String getETag()
+	{
+		if ( etag == null )
+			etag = "\"" + hash( getKey() ) + "\"";
+		return etag;
+	}
+
+	/**
+	 * Check whether an <em>If-None-Match</em> header value matches the
+	 * {@link #getETag() ETag} of this request.
+	 */
+	public boolean matchesETag( final String ifNoneMatch )
+	{
+		if ( ifNoneMatch == null )
+			return false;
+		final String etag = getETag();
+		for ( String tag : ifNoneMatch.split( "," ) )
+		{
+			tag = tag.trim();
+			if ( tag.startsWith( "W/" ) )
+				tag = tag.substring( 2 );
+			if ( tag.equals( "*" ) || tag.equals( etag ) )
+				return true;
+		}
+		return false;
+	}
+
+	private static StringBuilder appendCanonical( final StringBuilder sb, final double value )
+	{
+		// normalize -0.0 to 0.0, and print integers without fraction
+		final double v = value == 0 ? 0 : value;
+		if ( v == Math.rint( v ) && Math.abs( v ) < 1e15 )
+			sb.append( ( long ) v );
+		else
+			sb.append( v );
+		return sb;
+	}
+
+	private static String hash( final String s )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( "UTF-8" ) );
+			final StringBuilder sb = new StringBuilder();
+			for ( final byte b : digest )
+				sb.append( String.format( "%02x", b & 0xff ) );
+			return sb.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	static double tryGetDouble( final HttpServletRequest request, final String name )
+	{
+		return tryGetDouble( request, name, 0 );
+	}
+
+	static double tryGetDouble( final HttpServletRequest request, final String name, final double defaultValue )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null )
+			return defaultValue;
+		try
+		{
+			return Double.parseDouble( param );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+
+	static boolean tryGetBoolean( final HttpServletRequest request, final String name )
+	{
+		final String param = request.getParameter( name );
+		return param != null && ( param.equals( "1" ) || param.equalsIgnoreCase( "true" ) );
+	}
+
+	static int tryGetInt( final HttpServletRequest request, final String name )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null )
+			return 0;
+		try
+		{
+			return Integer.parseInt( param );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return 0;
+		}
+	}
+
+	static long tryGetLong( final HttpServletRequest request, final String name )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null )
+			return 0;
+		try
+		{
+			return Long.parseLong( param );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Parse a comma-separated list of doubles. Returns {@code defaultValue} if
+	 * the parameter is missing or malformed.
+	 */
+	static double[] tryGetDoubles( final HttpServletRequest request, final String name, final double[] defaultValue )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null || param.isEmpty() )
+			return defaultValue;
+		final String[] parts = param.split( "," );
+		final double[] values = new double[ parts.length ];
+		try
+		{
+			for ( int i = 0; i < parts.length; ++i )
+				values[ i ] = Double.parseDouble( parts[ i ] );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+		return values;
+	}
+
+	/**
+	 * Parse a comma-separated list of ints. Returns {@code defaultValue} if
+	 * the parameter is missing or malformed.
+	 */
+	static int[] tryGetInts( final HttpServletRequest request, final String name, final int[] defaultValue )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null || param.isEmpty() )
+			return defaultValue;
+		final String[] parts = param.split( "," );
+		final int[] values = new int[ parts.length ];
+		try
+		{
+			for ( int i = 0; i < parts.length; ++i )
+				values[ i ] = Integer.parseInt( parts[ i ].trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+		return values;
+	}
+
+	/**
+	 * Parse a comma-separated list of strings. Returns {@code defaultValue} if
+	 * the parameter is missing.
+	 */
+	static String[] tryGetStrings( final HttpServletRequest request, final String name, final String[] defaultValue )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null || param.isEmpty() )
+			return defaultValue;
+		return param.split( "," );
+	}
+
+	static String tryGetString( final HttpServletRequest request, final String name )
+	{
+		final String param = request.getParameter( name );
+		if ( param == null )
+			return "";
+		return param;
+	}
+}
@@ -0,0 +1,1218 @@
+package tileserver;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+public class TileServerJetty
+{
+    public static void main(final String[] args) throws Exception
+    {
+        final TileServerOptions options = TileServerOptions.fromSystemProperties();
+        final Server server = new Server( options.port );
+        server.setHandler( new ImgHandler( options ) );
+
+        server.start();
+        server.join();
+    }
+
+	static class ImgHandler extends AbstractHandler
+	{
+		/**
+		 * Content type of {@link #handleViewport viewport} responses.
+		 */
+		static final String VIEWPORT_CONTENT_TYPE = "application/x-tile-grid";
+
+		/**
+		 * How long (ms) a refinement waits for an idle generator before it is
+		 * dropped.
+		 */
+		static final long REFINEMENT_WAIT_MILLIS = 2000;
+
+		private final TileServerOptions options;
+
+		/**
+		 * The served datasets, with their generator pools and prefetchers.
+		 */
+		private final Datasets datasets;
+
+		/**
+		 * Encoded tiles, keyed on {@link TileRequest#getKey()}.
+		 */
+		private final TileCache cache;
+
+		/**
+		 * Persistent second-level cache of encoded tiles. {@code null} if
+		 * disabled.
+		 */
+		private final DiskTileCache diskCache;
+
+		/**
+		 * Pre-rendered tile pyramid to answer matching requests from.
+		 * {@code null} if disabled.
+		 */
+		private final PrerenderedTiles prerendered;
+
+		/**
+		 * Cancels renders of disconnected clients and superseded requests.
+		 */
+		private final RenderTracker tracker;
+
+		/**
+		 * Runs {@link RenderJob}s in async mode. Its work queue is the bounded
+		 * admission queue. {@code null} in synchronous mode.
+		 */
+		private final ThreadPoolExecutor renderExecutor;
+
+		/**
+		 * Expires {@link RenderJob}s that waited longer than
+		 * {@link TileServerOptions#maxWaitMillis}. {@code null} in synchronous
+		 * mode.
+		 */
+		private final ScheduledExecutorService timeoutExecutor;
+
+		/**
+		 * Full-quality tiles of progressive requests to render in the
+		 * background, most recent first. When more than
+		 * {@link TileServerOptions#maxQueuedRefinements} are queued, the
+		 * oldest are dropped. {@code null} if progressive mode is disabled.
+		 */
+		private final LinkedBlockingDeque< TileRequest > refinementQueue;
+
+		/**
+		 * Render the {@link #refinementQueue}.
+		 */
+		private final Thread[] refinementThreads;
+
+		/**
+		 * Keys of queued and running refinements.
+		 */
+		private final Set< String > refinements;
+
+		/**
+		 * Number of refinements dropped because the queue was full or no
+		 * generator became idle in time.
+		 */
+		private final AtomicLong numRefinementsDropped;
+
+		/**
+		 * Number of refinements skipped because a newer request of their
+		 * session arrived.
+		 */
+		private final AtomicLong numRefinementsSuperseded;
+
+		/**
+		 * Latency histograms and tile counters, served by /metrics.
+		 */
+		private final TileMetrics metrics;
+
+		/**
+		 * Number of requests rejected because the admission queue was full.
+		 */
+		private final AtomicLong numRejected;
+
+		/**
+		 * Number of requests expired because they waited for too long.
+		 */
+		private final AtomicLong numExpired;
+
+		/**
+		 * Renders in progress, shared with the prefetchers. Identical
+		 * requests that arrive meanwhile wait for these instead of rendering
+		 * the same tile again.
+		 */
+		private final RenderFlights flights;
+
+		public ImgHandler( final TileServerOptions options ) throws IOException
+		{
+			this.options = options;
+			metrics = new TileMetrics();
+			BlockCache.setShared( options.blockCacheBytes > 0 ? new BlockCache( options.blockCacheBytes, options.blockSize ) : null );
+			cache = new TileCache( options.cacheBytes );
+			datasets = new Datasets( options, metrics, cache );
+			// a single dataset is loaded right away, to fail early
+			if ( !datasets.isMulti() )
+				datasets.release( datasets.acquire( "" ) );
+			diskCache = options.diskCacheDir.isEmpty() ?
+					null :
+					new DiskTileCache( new File( options.diskCacheDir ), options.diskCacheBytes, options.diskCacheSegmentBytes );
+			prerendered = options.tileDir.isEmpty() || datasets.isMulti() ? null : new PrerenderedTiles( new File( options.tileDir ) );
+			tracker = new RenderTracker( options.disconnectCheckMillis );
+
+			if ( options.async )
+			{
+				renderExecutor = new ThreadPoolExecutor( options.numGenerators, options.numGenerators, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue< Runnable >( options.maxQueuedRequests ) );
+				timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+			}
+			else
+			{
+				renderExecutor = null;
+				timeoutExecutor = null;
+			}
+			refinements = Collections.newSetFromMap( new ConcurrentHashMap< String, Boolean >() );
+			numRefinementsDropped = new AtomicLong();
+			numRefinementsSuperseded = new AtomicLong();
+			refinementQueue = options.refinementThreads > 0 ? new LinkedBlockingDeque< TileRequest >() : null;
+			refinementThreads = new Thread[ Math.max( 0, options.refinementThreads ) ];
+			for ( int i = 0; i < refinementThreads.length; ++i )
+			{
+				refinementThreads[ i ] = new Thread( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						refinementLoop();
+					}
+				}, "refinement-" + i );
+				refinementThreads[ i ].setDaemon( true );
+				refinementThreads[ i ].setPriority( Thread.MIN_PRIORITY );
+				refinementThreads[ i ].start();
+			}
+			numRejected = new AtomicLong();
+			numExpired = new AtomicLong();
+			flights = datasets.getFlights();
+		}
+
+		@Override
+		protected void doStop() throws Exception
+		{
+			if ( renderExecutor != null )
+			{
+				renderExecutor.shutdownNow();
+				timeoutExecutor.shutdownNow();
+			}
+			for ( final Thread thread : refinementThreads )
+				thread.interrupt();
+			tracker.shutdown();
+			datasets.shutdown();
+			if ( diskCache != null )
+				diskCache.close();
+			super.doStop();
+		}
+
+	    @Override
+		public void handle(final String target,
+	                       final Request baseRequest,
+	                       final HttpServletRequest request,
+	                       final HttpServletResponse response)
+	        throws IOException, ServletException
+	    {
+			if ( target.equals( "/cachestats" ) )
+			{
+				response.setContentType( "text/plain" );
+				response.setStatus( HttpServletResponse.SC_OK );
+				baseRequest.setHandled( true );
+				response.getWriter().println( cache );
+				response.getWriter().println( String.format( "rejected:%d  expired:%d  coalesced:%d", numRejected.get(), numExpired.get(), flights.getNumCoalesced() ) );
+				response.getWriter().println( tracker );
+				response.getWriter().println( datasets );
+				if ( diskCache != null )
+					response.getWriter().println( diskCache );
+				if ( prerendered != null )
+					response.getWriter().println( prerendered );
+				if ( BlockCache.getShared() != null )
+					response.getWriter().println( BlockCache.getShared() );
+				return;
+			}
+
+			if ( target.equals( "/ready" ) )
+			{
+				final boolean ready = datasets.isReady();
+				response.setContentType( "text/plain" );
+				response.setStatus( ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+				response.addHeader( "Cache-Control", "no-store" );
+				baseRequest.setHandled( true );
+				response.getWriter().println( ready ? "ready" : "starting" );
+				return;
+			}
+
+			if ( target.equals( "/metrics" ) )
+			{
+				response.setContentType( "text/plain; version=0.0.4" );
+				response.setStatus( HttpServletResponse.SC_OK );
+				baseRequest.setHandled( true );
+				writeMetrics( response.getWriter() );
+				return;
+			}
+
+			final String[] split = datasets.splitPath( target );
+			final Datasets.Dataset dataset;
+			try
+			{
+				dataset = datasets.acquire( split[ 0 ] );
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+				baseRequest.setHandled( true );
+				response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage() );
+				return;
+			}
+			if ( dataset == null )
+			{
+				baseRequest.setHandled( true );
+				response.sendError( HttpServletResponse.SC_NOT_FOUND, "no such dataset: " + split[ 0 ] );
+				return;
+			}
+
+			// in async mode, the RenderJob releases the dataset
+			boolean queued = false;
+			try
+			{
+				if ( split[ 1 ].equals( "/viewport" ) )
+					queued = handleViewport( dataset, baseRequest, request, response );
+				else
+					queued = handleTile( dataset, baseRequest, request, response );
+			}
+			finally
+			{
+				if ( !queued )
+					datasets.release( dataset );
+			}
+		}
+
+		/**
+		 * Serve a single tile.
+		 *
+		 * @return {@code true} if the request was queued for a
+		 *         {@link RenderJob}, which then completes it and releases the
+		 *         dataset.
+		 */
+		private boolean handleTile( final Datasets.Dataset dataset, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+		{
+			final Prefetcher prefetcher = dataset.getPrefetcher();
+			final TileRequest requested = TileRequest.fromRequest( request, options.defaultBudgetMillis ).withDataset( dataset.getName(), dataset.getVersion() );
+			if ( requested.matchesETag( request.getHeader( "If-None-Match" ) ) )
+			{
+				response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+				response.addHeader( "ETag", requested.getETag() );
+				response.addHeader( "Cache-Control", "max-age=20" );
+				baseRequest.setHandled( true );
+				return false;
+			}
+
+			if ( prerendered != null )
+			{
+				final File file = prerendered.getFile( requested );
+				if ( file != null )
+				{
+					if ( writeTile( response, file, requested, false ) )
+					{
+						baseRequest.setHandled( true );
+						return false;
+					}
+					prerendered.countMissing();
+				}
+			}
+
+			// In progressive mode, if the full-quality tile is not cached yet,
+			// answer with the coarsest mipmap level right away and render the
+			// full-quality tile in the background for the follow-up request.
+			final boolean refinementPending = requested.isProgressive() && requested.getMipmapLevel() == TileRequest.BEST_LEVEL &&
+					!cache.contains( requested.getKey() ) && ( diskCache == null || !diskCache.contains( requested.getKey() ) ) &&
+					scheduleRefinement( requested.withBudgetMillis( 0 ) );
+			final TileRequest tileRequest = refinementPending ? requested.withMipmapLevel( TileRequest.COARSEST_LEVEL ) : requested;
+
+			final TileCache.Tile cached = cache.get( tileRequest.getKey() );
+			if ( cached != null )
+			{
+				baseRequest.setHandled( true );
+				writeTile( response, cached, tileRequest, refinementPending );
+				if ( prefetcher != null )
+				{
+					prefetcher.countHit( cached );
+					prefetcher.prefetchNeighbors( tileRequest );
+				}
+				return false;
+			}
+
+			final DiskTileCache.Hit hit = diskCache == null ? null : diskCache.get( tileRequest.getKey() );
+			if ( hit != null )
+			{
+				baseRequest.setHandled( true );
+				writeTile( response, hit, tileRequest, refinementPending );
+				if ( prefetcher != null )
+					prefetcher.prefetchNeighbors( tileRequest );
+				return false;
+			}
+
+			final RenderTracker.Render render = new RenderTracker.Render( tileRequest, getEndPoint( baseRequest ) );
+			if ( !tracker.register( render ) )
+			{
+				baseRequest.setHandled( true );
+				writeServiceUnavailable( response );
+				return false;
+			}
+
+			if ( renderExecutor != null )
+			{
+				baseRequest.setHandled( true );
+				return submit( new TileJob( dataset, render, startAsync( request ), refinementPending ) );
+			}
+
+			try
+			{
+				final TileCache.Tile tile = renderTile( dataset, render );
+				baseRequest.setHandled( true );
+				if ( tile == null )
+					writeServiceUnavailable( response );
+				else
+				{
+					writeTile( response, tile, tileRequest, refinementPending );
+					if ( prefetcher != null )
+						prefetcher.prefetchNeighbors( tileRequest );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				tracker.unregister( render );
+			}
+			return false;
+		}
+
+		private void writeMetrics( final PrintWriter out )
+		{
+			metrics.write( out );
+			TileMetrics.writeValue( out, "tileserver_cache_hits_total", "counter", "Tile cache hits.", cache.getHits() );
+			TileMetrics.writeValue( out, "tileserver_cache_misses_total", "counter", "Tile cache misses.", cache.getMisses() );
+			TileMetrics.writeValue( out, "tileserver_cache_evictions_total", "counter", "Tiles evicted from the cache.", cache.getEvictions() );
+			TileMetrics.writeValue( out, "tileserver_cache_bytes", "gauge", "Bytes of cached tiles.", cache.getBytes() );
+			TileMetrics.writeValue( out, "tileserver_cache_tiles", "gauge", "Number of cached tiles.", cache.getNumTiles() );
+			if ( diskCache != null )
+			{
+				TileMetrics.writeValue( out, "tileserver_disk_cache_hits_total", "counter", "Disk tile cache hits.", diskCache.getHits() );
+				TileMetrics.writeValue( out, "tileserver_disk_cache_misses_total", "counter", "Disk tile cache misses.", diskCache.getMisses() );
+				TileMetrics.writeValue( out, "tileserver_disk_cache_evicted_segments_total", "counter", "Segments evicted from the disk cache.", diskCache.getEvictedSegments() );
+				TileMetrics.writeValue( out, "tileserver_disk_cache_dropped_writes_total", "counter", "Tiles not written to the disk cache because too many were queued.", diskCache.getDroppedWrites() );
+				TileMetrics.writeValue( out, "tileserver_disk_cache_bytes", "gauge", "Bytes of disk cache segments.", diskCache.getBytes() );
+				TileMetrics.writeValue( out, "tileserver_disk_cache_tiles", "gauge", "Number of tiles in the disk cache.", diskCache.getNumTiles() );
+			}
+			if ( prerendered != null )
+			{
+				TileMetrics.writeValue( out, "tileserver_prerendered_served_total", "counter", "Requests answered with a pre-rendered tile.", prerendered.getNumServed() );
+				TileMetrics.writeValue( out, "tileserver_prerendered_missing_total", "counter", "Requests matching the pre-rendered pyramid whose tile file is missing.", prerendered.getNumMissing() );
+				TileMetrics.writeValue( out, "tileserver_prerendered_unmatched_total", "counter", "Requests not matching the pre-rendered pyramid.", prerendered.getNumUnmatched() );
+			}
+			final BlockCache blockCache = BlockCache.getShared();
+			if ( blockCache != null )
+			{
+				TileMetrics.writeValue( out, "tileserver_block_cache_hits_total", "counter", "Source block cache hits.", blockCache.getHits() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_misses_total", "counter", "Source block cache misses.", blockCache.getMisses() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_coalesced_total", "counter", "Source block cache hits that waited for a block being loaded.", blockCache.getCoalesced() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_evictions_total", "counter", "Blocks evicted from the source block cache.", blockCache.getEvictions() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_bytes", "gauge", "Bytes of cached source blocks.", blockCache.getBytes() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_allocated_bytes", "gauge", "Direct memory allocated for source blocks.", blockCache.getAllocatedBytes() );
+				TileMetrics.writeValue( out, "tileserver_block_cache_over_budget_total", "counter", "Source blocks allocated beyond the budget because no memory was recycled in time.", blockCache.getOverBudget() );
+				blockCache.writeLoadTime( out );
+			}
+			TileMetrics.writeValue( out, "tileserver_requests_rejected_total", "counter", "Requests rejected because the admission queue was full.", numRejected.get() );
+			TileMetrics.writeValue( out, "tileserver_requests_expired_total", "counter", "Requests expired in the admission queue.", numExpired.get() );
+			TileMetrics.writeValue( out, "tileserver_requests_coalesced_total", "counter", "Requests answered by an identical render in progress.", flights.getNumCoalesced() );
+			TileMetrics.writeValue( out, "tileserver_renders_disconnected_total", "counter", "Renders cancelled because the client disconnected.", tracker.getNumDisconnected() );
+			TileMetrics.writeValue( out, "tileserver_refinements_dropped_total", "counter", "Refinements dropped because the queue was full or no generator became idle in time.", numRefinementsDropped.get() );
+			TileMetrics.writeValue( out, "tileserver_refinements_superseded_total", "counter", "Refinements skipped because a newer request of their session arrived.", numRefinementsSuperseded.get() );
+			TileMetrics.writeValue( out, "tileserver_renders_superseded_total", "counter", "Renders cancelled because a newer request of the session arrived.", tracker.getNumSuperseded() );
+			int numGenerators = 0, numIdle = 0;
+			long numFailed = 0, numTimedOut = 0, numLeaked = 0;
+			for ( final GeneratorPool generators : datasets.getGeneratorPools() )
+			{
+				numGenerators += generators.getSize();
+				numIdle += generators.getNumIdle();
+				numFailed += generators.getNumFailed();
+				numTimedOut += generators.getNumTimedOut();
+				numLeaked += generators.getNumLeaked();
+			}
+			TileMetrics.writeValue( out, "tileserver_generators", "gauge", "Number of tile generators, including those being built.", numGenerators );
+			TileMetrics.writeValue( out, "tileserver_idle_generators", "gauge", "Number of idle tile generators.", numIdle );
+			TileMetrics.writeValue( out, "tileserver_generators_failed_total", "counter", "Tile generators replaced because rendering failed.", numFailed );
+			TileMetrics.writeValue( out, "tileserver_generators_timed_out_total", "counter", "Renders cancelled because they took too long.", numTimedOut );
+			TileMetrics.writeValue( out, "tileserver_generators_leaked_total", "counter", "Tile generators replaced because they were not returned.", numLeaked );
+			TileMetrics.writeValue( out, "tileserver_datasets_loaded", "gauge", "Number of loaded datasets.", datasets.getNumLoaded() );
+			TileMetrics.writeValue( out, "tileserver_dataset_loads_total", "counter", "Datasets loaded.", datasets.getNumLoads() );
+			TileMetrics.writeValue( out, "tileserver_dataset_unloads_total", "counter", "Datasets unloaded because more than the maximum number were loaded.", datasets.getNumUnloads() );
+		}
+
+		private static EndPoint getEndPoint( final Request baseRequest )
+		{
+			final AbstractHttpConnection connection = baseRequest.getConnection();
+			return connection == null ? null : connection.getEndPoint();
+		}
+
+		/**
+		 * Wait for an idle {@link TileGenerator} of {@code dataset}
+		 * (preempting prefetches if none is idle) and
+		 * {@link RenderTracker.Render#attach attach} it to {@code render}.
+		 *
+		 * @return the generator, or {@code null} if the render was cancelled.
+		 */
+		private TileGenerator takeGenerator( final Datasets.Dataset dataset, final RenderTracker.Render render ) throws InterruptedException
+		{
+			final long t0 = System.nanoTime();
+			final GeneratorPool generators = dataset.getGenerators();
+			if ( dataset.getPrefetcher() != null && generators.getNumIdle() == 0 )
+				dataset.getPrefetcher().preempt();
+			final TileGenerator generator = generators.take();
+			metrics.queueWait.record( System.nanoTime() - t0 );
+			if ( !render.attach( generator ) )
+			{
+				generators.put( generator );
+				return null;
+			}
+			return generator;
+		}
+
+		/**
+		 * Wait until more than
+		 * {@link TileServerOptions#refinementMinIdleGenerators} generators of
+		 * {@code dataset} are idle, take one (without preempting prefetches or
+		 * growing the pool), and {@link RenderTracker.Render#attach attach} it
+		 * to {@code render}.
+		 *
+		 * @return the generator, or {@code null} if the render was cancelled
+		 *         or no generator became idle within
+		 *         {@link #REFINEMENT_WAIT_MILLIS}.
+		 */
+		private TileGenerator pollGenerator( final Datasets.Dataset dataset, final RenderTracker.Render render ) throws InterruptedException
+		{
+			final GeneratorPool generators = dataset.getGenerators();
+			final TileGenerator generator = generators.poll( options.refinementMinIdleGenerators, REFINEMENT_WAIT_MILLIS );
+			if ( generator == null )
+				return null;
+			if ( !render.attach( generator ) )
+			{
+				generators.put( generator );
+				return null;
+			}
+			return generator;
+		}
+
+		/**
+		 * Detach a generator taken with {@link #takeGenerator} and return it
+		 * to the pool. Generators whose render failed are replaced.
+		 */
+		private static void releaseGenerator( final Datasets.Dataset dataset, final RenderTracker.Render render, final TileGenerator generator, final boolean failed )
+		{
+			render.detach();
+			if ( failed )
+				dataset.getGenerators().discard( generator );
+			else
+				dataset.getGenerators().put( generator );
+		}
+
+		/**
+		 * Serve a grid of {@code cols * rows} tiles (parameters "cols" and
+		 * "rows") in one response. The other parameters describe the top-left
+		 * tile, as for single tiles. Missing tiles are rendered in one go,
+		 * with a single projector. Like single tiles, viewports with missing
+		 * tiles go through the admission queue in async mode: nothing is
+		 * written before the job leaves the queue, and expired jobs are
+		 * answered with 503.
+		 *
+		 * The response ({@link #VIEWPORT_CONTENT_TYPE}) is a sequence of
+		 * tiles, in the order they become available: cached tiles first, then
+		 * rendered tiles as soon as they are encoded. Each tile is written as
+		 * column, row, and length of the encoded tile (big-endian int32 each),
+		 * followed by the encoded tile. Tiles whose render was cancelled are
+		 * missing from the response.
+		 *
+		 * @return {@code true} if the request was queued for a
+		 *         {@link RenderJob}, which then completes it and releases the
+		 *         dataset.
+		 */
+		private boolean handleViewport( final Datasets.Dataset dataset, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response ) throws IOException
+		{
+			baseRequest.setHandled( true );
+			final TileRequest tileRequest = TileRequest.fromRequest( request, options.defaultBudgetMillis ).withDataset( dataset.getName(), dataset.getVersion() );
+			final int cols = Math.max( 1, TileRequest.tryGetInt( request, "cols" ) );
+			final int rows = Math.max( 1, TileRequest.tryGetInt( request, "rows" ) );
+			if ( ( long ) cols * rows > options.maxViewportTiles )
+			{
+				response.sendError( HttpServletResponse.SC_BAD_REQUEST, "at most " + options.maxViewportTiles + " tiles per viewport" );
+				return false;
+			}
+
+			final Viewport viewport = new Viewport( tileRequest, cols, rows );
+			for ( int i = 0; i < viewport.tiles.length; ++i )
+			{
+				final String key = viewport.tiles[ i ].getKey();
+				final TileCache.Tile cached = cache.get( key );
+				final DiskTileCache.Hit hit = cached != null || diskCache == null ? null : diskCache.get( key );
+				if ( cached != null )
+					viewport.cached[ i ] = cached.getData();
+				else if ( hit != null )
+				{
+					final byte[] data = new byte[ hit.getData().remaining() ];
+					hit.getData().get( data );
+					viewport.cached[ i ] = data;
+				}
+			}
+			if ( viewport.isComplete() )
+			{
+				writeViewport( dataset, null, response, viewport );
+				return false;
+			}
+
+			final RenderTracker.Render render = new RenderTracker.Render( tileRequest, getEndPoint( baseRequest ) );
+			if ( !tracker.register( render ) )
+			{
+				writeServiceUnavailable( response );
+				return false;
+			}
+
+			if ( renderExecutor != null )
+				return submit( new ViewportJob( dataset, render, startAsync( request ), viewport ) );
+
+			try
+			{
+				writeViewport( dataset, render, response, viewport );
+			}
+			finally
+			{
+				tracker.unregister( render );
+			}
+			return false;
+		}
+
+		/**
+		 * The tiles of a viewport request, and the encoded data of those that
+		 * are cached.
+		 */
+		static class Viewport
+		{
+			final TileRequest tileRequest;
+
+			final int cols;
+
+			final int rows;
+
+			final TileRequest[] tiles;
+
+			/**
+			 * Encoded tiles, {@code null} for missing tiles.
+			 */
+			final byte[][] cached;
+
+			Viewport( final TileRequest tileRequest, final int cols, final int rows )
+			{
+				this.tileRequest = tileRequest;
+				this.cols = cols;
+				this.rows = rows;
+				tiles = new TileRequest[ cols * rows ];
+				cached = new byte[ cols * rows ][];
+				for ( int row = 0; row < rows; ++row )
+					for ( int col = 0; col < cols; ++col )
+						tiles[ row * cols + col ] = tileRequest.getNeighbor( col, row, 0 );
+			}
+
+			boolean isComplete()
+			{
+				for ( final byte[] data : cached )
+					if ( data == null )
+						return false;
+				return true;
+			}
+		}
+
+		/**
+		 * Write the response to a viewport request: the cached tiles first,
+		 * then the missing tiles as they are rendered.
+		 *
+		 * @param render
+		 *            the tracked render of the missing tiles. May be
+		 *            {@code null} if the viewport is complete.
+		 */
+		private void writeViewport( final Datasets.Dataset dataset, final RenderTracker.Render render, final HttpServletResponse response, final Viewport viewport ) throws IOException
+		{
+			response.setContentType( VIEWPORT_CONTENT_TYPE );
+			response.setStatus( HttpServletResponse.SC_OK );
+			response.addHeader( "Cache-Control", "no-store" );
+			final DataOutputStream out = new DataOutputStream( response.getOutputStream() );
+			try
+			{
+				final int cols = viewport.cols;
+				for ( int i = 0; i < viewport.cached.length; ++i )
+					if ( viewport.cached[ i ] != null )
+						writeViewportTile( out, i % cols, i / cols, viewport.cached[ i ] );
+				out.flush();
+				if ( viewport.isComplete() )
+					return;
+
+				final TileGenerator generator = takeGenerator( dataset, render );
+				if ( generator == null )
+					return;
+				final TileRequest tileRequest = viewport.tileRequest;
+				boolean failed = true;
+				try
+				{
+					generator.getTiles( tileRequest, cols, viewport.rows, new TileGenerator.TileSink()
+					{
+						@Override
+						public void tile( final int col, final int row, final byte[] data ) throws IOException
+						{
+							final int i = row * cols + col;
+							if ( viewport.cached[ i ] != null )
+								return;
+							// tiles rendered at coarser levels to meet the
+							// time budget are not cached
+							if ( !generator.isLastTileDegraded() )
+								putTile( viewport.tiles[ i ].getKey(), new TileCache.Tile( data, tileRequest.getFormat().getContentType(), viewport.tiles[ i ].getETag() ) );
+							writeViewportTile( out, col, row, data );
+							out.flush();
+						}
+					} );
+					failed = false;
+				}
+				catch ( final IOException e )
+				{
+					// writing to the client failed, not the generator
+					failed = false;
+					throw e;
+				}
+				finally
+				{
+					releaseGenerator( dataset, render, generator, failed );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+
+		private static void writeViewportTile( final DataOutputStream out, final int col, final int row, final byte[] data ) throws IOException
+		{
+			out.writeInt( col );
+			out.writeInt( row );
+			out.writeInt( data.length );
+			out.write( data );
+		}
+
+		/**
+		 * Queue rendering the full-quality tile of a progressive request into
+		 * the caches, unless it is queued already or its session has moved on.
+		 * If the queue is full, the oldest refinement is dropped.
+		 *
+		 * @return whether the refinement is queued (or running).
+		 */
+		private boolean scheduleRefinement( final TileRequest tileRequest )
+		{
+			if ( refinementQueue == null )
+				return false;
+			if ( tracker.isSuperseded( tileRequest ) )
+			{
+				numRefinementsSuperseded.incrementAndGet();
+				return false;
+			}
+			final String key = tileRequest.getKey();
+			if ( !refinements.add( key ) )
+				return true;
+			refinementQueue.addFirst( tileRequest );
+			while ( refinementQueue.size() > Math.max( 1, options.maxQueuedRefinements ) )
+			{
+				final TileRequest dropped = refinementQueue.pollLast();
+				if ( dropped != null )
+				{
+					refinements.remove( dropped.getKey() );
+					numRefinementsDropped.incrementAndGet();
+				}
+			}
+			return refinements.contains( key );
+		}
+
+		private void refinementLoop()
+		{
+			try
+			{
+				while ( true )
+				{
+					final TileRequest tileRequest = refinementQueue.takeFirst();
+					try
+					{
+						refine( tileRequest );
+					}
+					catch ( final IOException e )
+					{
+						e.printStackTrace();
+					}
+					catch ( final RuntimeException e )
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						refinements.remove( tileRequest.getKey() );
+					}
+				}
+			}
+			catch ( final InterruptedException e )
+			{}
+		}
+
+		/**
+		 * Render the full-quality tile of a progressive request into the
+		 * caches. Like prefetches, refinements only use generators that are
+		 * idle (see {@link TileServerOptions#refinementMinIdleGenerators}),
+		 * and are skipped if the tile is being rendered already. They are
+		 * tracked, so they are cancelled when a newer request of their
+		 * session arrives, but not when the client disconnects.
+		 */
+		private void refine( final TileRequest tileRequest ) throws IOException, InterruptedException
+		{
+			final Datasets.Dataset dataset = datasets.acquire( tileRequest.getDataset() );
+			if ( dataset == null )
+				return;
+			try
+			{
+				if ( cache.contains( tileRequest.getKey() ) )
+					return;
+				final RenderTracker.Render render = new RenderTracker.Render( tileRequest, null );
+				if ( !tracker.register( render ) )
+				{
+					numRefinementsSuperseded.incrementAndGet();
+					return;
+				}
+				try
+				{
+					final TileGenerator generator = pollGenerator( dataset, render );
+					if ( generator == null )
+					{
+						if ( !render.isCancelled() )
+							numRefinementsDropped.incrementAndGet();
+						return;
+					}
+					final RenderFlights.Renderer renderer = new RenderFlights.Renderer()
+					{
+						@Override
+						public TileCache.Tile render() throws IOException, InterruptedException
+						{
+							return generateTile( dataset, render, generator );
+						}
+					};
+					if ( cache.contains( tileRequest.getKey() ) || !flights.tryRender( tileRequest, renderer ) )
+						releaseGenerator( dataset, render, generator, false );
+				}
+				finally
+				{
+					tracker.unregister( render );
+				}
+			}
+			finally
+			{
+				datasets.release( dataset );
+			}
+		}
+
+		/**
+		 * Render and encode a tile, and put it into the cache. If the same
+		 * tile is being rendered already, share that render instead (see
+		 * {@link RenderFlights}).
+		 *
+		 * @return the tile, or {@code null} if the render was cancelled.
+		 */
+		private TileCache.Tile renderTile( final Datasets.Dataset dataset, final RenderTracker.Render render ) throws IOException, InterruptedException
+		{
+			return flights.render( render.getTileRequest(), render, new RenderFlights.Renderer()
+			{
+				@Override
+				public TileCache.Tile render() throws IOException, InterruptedException
+				{
+					return generateTile( dataset, render );
+				}
+			} );
+		}
+
+		/**
+		 * Render and encode a tile using the next idle {@link TileGenerator}
+		 * of {@code dataset}, and put it into the cache.
+		 *
+		 * @return the tile, or {@code null} if the render was cancelled.
+		 */
+		private TileCache.Tile generateTile( final Datasets.Dataset dataset, final RenderTracker.Render render ) throws IOException, InterruptedException
+		{
+			final TileGenerator generator = takeGenerator( dataset, render );
+			if ( generator == null )
+				return null;
+			return generateTile( dataset, render, generator );
+		}
+
+		/**
+		 * Render and encode a tile using {@code generator}, attached to
+		 * {@code render}, and put it into the cache. The generator is
+		 * released.
+		 *
+		 * @return the tile, or {@code null} if the render was cancelled.
+		 */
+		private TileCache.Tile generateTile( final Datasets.Dataset dataset, final RenderTracker.Render render, final TileGenerator generator ) throws IOException
+		{
+			final TileRequest tileRequest = render.getTileRequest();
+			final byte[] data;
+			final boolean degraded;
+			boolean failed = true;
+			try
+			{
+				data = generator.getTile( tileRequest );
+				degraded = generator.isLastTileDegraded();
+				failed = false;
+			}
+			finally
+			{
+				releaseGenerator( dataset, render, generator, failed );
+			}
+			if ( data == null )
+				return null;
+
+			// tiles rendered at coarser levels to meet the time budget are
+			// not cached and have no ETag
+			if ( degraded )
+				return new TileCache.Tile( data, tileRequest.getFormat().getContentType(), null );
+
+			final TileCache.Tile tile = new TileCache.Tile( data, tileRequest.getFormat().getContentType(), tileRequest.getETag() );
+			putTile( tileRequest.getKey(), tile );
+			return tile;
+		}
+
+		/**
+		 * Put a rendered tile into the {@link #cache} and the
+		 * {@link #diskCache}.
+		 */
+		private void putTile( final String key, final TileCache.Tile tile )
+		{
+			cache.put( key, tile );
+			if ( diskCache != null )
+				diskCache.put( key, tile );
+		}
+
+		/**
+		 * Write a tile. For progressive requests, the X-Tile-Refinement header
+		 * tells whether a better tile is being rendered ("pending",
+		 * {@code refinementPending}) or not ("none"). Tiles with pending refinement must not be cached by the
+		 * client. Neither must tiles without ETag, which were rendered at
+		 * coarser mipmap levels to meet their time budget (these are marked
+		 * with X-Tile-Degraded).
+		 */
+		private void writeTile( final HttpServletResponse response, final TileCache.Tile tile, final TileRequest tileRequest, final boolean refinementPending ) throws IOException
+		{
+			writeTileHeaders( response, tile.getContentType(), tile.getETag(), tile.getData().length, tileRequest, refinementPending );
+
+			// With Jetty's own output stream, the content is handed over as a
+			// whole, so that headers and content go out in one gathered write.
+			final long t0 = System.nanoTime();
+			final OutputStream os = response.getOutputStream();
+			if ( os instanceof AbstractHttpConnection.Output )
+				( ( AbstractHttpConnection.Output ) os ).sendContent( new ByteArrayBuffer( tile.getData() ) );
+			else
+			{
+				os.write( tile.getData() );
+				os.close();
+			}
+			metrics.socketWrite.record( System.nanoTime() - t0 );
+		}
+
+		/**
+		 * Write a tile from the {@link #diskCache}. The mapped data is handed
+		 * to Jetty as a direct buffer, such that it is written to the socket
+		 * without copying through the heap.
+		 */
+		private void writeTile( final HttpServletResponse response, final DiskTileCache.Hit hit, final TileRequest tileRequest, final boolean refinementPending ) throws IOException
+		{
+			final ByteBuffer data = hit.getData();
+			writeTileHeaders( response, hit.getContentType(), hit.getETag(), data.remaining(), tileRequest, refinementPending );
+
+			final long t0 = System.nanoTime();
+			final OutputStream os = response.getOutputStream();
+			if ( os instanceof AbstractHttpConnection.Output )
+				( ( AbstractHttpConnection.Output ) os ).sendContent( new DirectNIOBuffer( data, true ) );
+			else
+			{
+				Channels.newChannel( os ).write( data );
+				os.close();
+			}
+			metrics.socketWrite.record( System.nanoTime() - t0 );
+		}
+
+		/**
+		 * Write a pre-rendered tile file. With Jetty's own output stream, the
+		 * mapped file is handed over as a direct buffer. Otherwise, it is
+		 * streamed with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+		 *
+		 * @return {@code false} if the file could not be opened (nothing was
+		 *         written then).
+		 */
+		private boolean writeTile( final HttpServletResponse response, final File file, final TileRequest tileRequest, final boolean refinementPending ) throws IOException
+		{
+			final FileChannel channel;
+			try
+			{
+				channel = new RandomAccessFile( file, "r" ).getChannel();
+			}
+			catch ( final FileNotFoundException e )
+			{
+				return false;
+			}
+			try
+			{
+				final long size = channel.size();
+				writeTileHeaders( response, prerendered.getFormat().getContentType(), tileRequest.getETag(), ( int ) size, tileRequest, refinementPending );
+
+				final long t0 = System.nanoTime();
+				final OutputStream os = response.getOutputStream();
+				if ( os instanceof AbstractHttpConnection.Output )
+					( ( AbstractHttpConnection.Output ) os ).sendContent( new DirectNIOBuffer( channel.map( FileChannel.MapMode.READ_ONLY, 0, size ), true ) );
+				else
+				{
+					final WritableByteChannel target = Channels.newChannel( os );
+					for ( long pos = 0; pos < size; )
+						pos += channel.transferTo( pos, size - pos, target );
+					os.close();
+				}
+				metrics.socketWrite.record( System.nanoTime() - t0 );
+			}
+			finally
+			{
+				channel.close();
+			}
+			return true;
+		}
+
+		/**
+		 * Set status and headers for writing a tile, see
+		 * {@link #writeTile(HttpServletResponse, TileCache.Tile, TileRequest, boolean)}.
+		 */
+		private static void writeTileHeaders( final HttpServletResponse response, final String contentType, final String etag, final int length, final TileRequest tileRequest, final boolean refinementPending )
+		{
+			response.setContentType( contentType );
+			response.setContentLength( length );
+			response.setStatus( HttpServletResponse.SC_OK );
+			if ( etag == null )
+			{
+				response.addHeader( "Cache-Control", "no-store" );
+				response.addHeader( "X-Tile-Degraded", "true" );
+			}
+			else if ( refinementPending )
+				response.addHeader( "Cache-Control", "no-store" );
+			else
+			{
+				response.addHeader( "Cache-Control", "max-age=20" );
+				response.addHeader( "ETag", etag );
+			}
+			if ( tileRequest.isProgressive() )
+				response.addHeader( "X-Tile-Refinement", refinementPending ? "pending" : "none" );
+		}
+
+		private void writeServiceUnavailable( final HttpServletResponse response ) throws IOException
+		{
+			response.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+			response.addHeader( "Retry-After", Integer.toString( options.retryAfterSeconds ) );
+			response.addHeader( "Cache-Control", "no-store" );
+			response.setContentLength( 0 );
+		}
+
+		private static AsyncContext startAsync( final HttpServletRequest request )
+		{
+			final AsyncContext async = request.startAsync();
+			async.setTimeout( 0 );
+			return async;
+		}
+
+		/**
+		 * Put a job into the admission queue, and schedule its expiry. If the
+		 * queue is full, answer with 503 right away.
+		 *
+		 * @return {@code true} if the job was queued, and then completes the
+		 *         request and releases the dataset.
+		 */
+		private boolean submit( final RenderJob job ) throws IOException
+		{
+			try
+			{
+				renderExecutor.execute( job );
+			}
+			catch ( final RejectedExecutionException e )
+			{
+				numRejected.incrementAndGet();
+				job.state.set( RenderJob.DONE );
+				tracker.unregister( job.render );
+				writeServiceUnavailable( ( HttpServletResponse ) job.async.getResponse() );
+				job.async.complete();
+				return false;
+			}
+			timeoutExecutor.schedule( job.expire, options.maxWaitMillis, TimeUnit.MILLISECONDS );
+			return true;
+		}
+
+		/**
+		 * A request waiting in the admission queue for async mode. Whoever
+		 * moves the job out of state {@link #QUEUED} first, either the render
+		 * thread or the {@link #expire} timer, completes the request and
+		 * releases the dataset.
+		 */
+		abstract class RenderJob implements Runnable
+		{
+			static final int QUEUED = 0;
+
+			static final int RUNNING = 1;
+
+			static final int DONE = 2;
+
+			final Datasets.Dataset dataset;
+
+			final RenderTracker.Render render;
+
+			final AsyncContext async;
+
+			final AtomicInteger state;
+
+			final Runnable expire = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if ( state.compareAndSet( QUEUED, DONE ) )
+					{
+						renderExecutor.remove( RenderJob.this );
+						tracker.unregister( render );
+						numExpired.incrementAndGet();
+						try
+						{
+							writeServiceUnavailable( ( HttpServletResponse ) async.getResponse() );
+						}
+						catch ( final IOException e )
+						{
+							e.printStackTrace();
+						}
+						async.complete();
+						datasets.release( dataset );
+					}
+				}
+			};
+
+			RenderJob( final Datasets.Dataset dataset, final RenderTracker.Render render, final AsyncContext async )
+			{
+				this.dataset = dataset;
+				this.render = render;
+				this.async = async;
+				state = new AtomicInteger( QUEUED );
+			}
+
+			/**
+			 * Render and write the response. Only called if the render was
+			 * not cancelled while queued.
+			 */
+			abstract void render( HttpServletResponse response ) throws IOException, InterruptedException;
+
+			@Override
+			public void run()
+			{
+				if ( !state.compareAndSet( QUEUED, RUNNING ) )
+					return;
+				try
+				{
+					final HttpServletResponse response = ( HttpServletResponse ) async.getResponse();
+					if ( render.isCancelled() )
+						writeServiceUnavailable( response );
+					else
+						render( response );
+				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+				}
+				catch ( final InterruptedException e )
+				{
+					e.printStackTrace();
+				}
+				finally
+				{
+					tracker.unregister( render );
+					state.set( DONE );
+					async.complete();
+					datasets.release( dataset );
+				}
+			}
+		}
+
+		class TileJob extends RenderJob
+		{
+			final boolean refinementPending;
+
+			TileJob( final Datasets.Dataset dataset, final RenderTracker.Render render, final AsyncContext async, final boolean refinementPending )
+			{
+				super( dataset, render, async );
+				this.refinementPending = refinementPending;
+			}
+
+			@Override
+			void render( final HttpServletResponse response ) throws IOException, InterruptedException
+			{
+				final TileCache.Tile tile = renderTile( dataset, render );
+				if ( tile == null )
+					writeServiceUnavailable( response );
+				else
+				{
+					writeTile( response, tile, render.getTileRequest(), refinementPending );
+					if ( dataset.getPrefetcher() != null )
+						dataset.getPrefetcher().prefetchNeighbors( render.getTileRequest() );
+				}
+			}
+		}
+
+		class ViewportJob extends RenderJob
+		{
+			final Viewport viewport;
+
+			ViewportJob( final Datasets.Dataset dataset, final RenderTracker.Render render, final AsyncContext async, final Viewport viewport )
+			{
+				super( dataset, render, async );
+				this.viewport = viewport;
+			}
+
+			@Override
+			void render( final HttpServletResponse response ) throws IOException
+			{
+				writeViewport( dataset, render, response, viewport );
+			}
+		}
+	}
+
+}
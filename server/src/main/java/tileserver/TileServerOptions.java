@@ -0,0 +1,237 @@
+package tileserver;
+
+/**
+ * Settings for {@link TileServerJetty} (and, where applicable,
+ * {@link TileServerSun}). Defaults can be overridden with system
+ * properties, e.g. <code>-Dtileserver.numGenerators=8</code>.
+ */
+public class TileServerOptions
+{
+	/**
+	 * Path of the SPIM sequence xml file.
+	 */
+	public String datasetXml = "/Users/tobias/Desktop/e012/test5.xml";
+
+	/**
+	 * Directory of SPIM sequence xml files to serve. Each file
+	 * {@code <name>.xml} is served under the path prefix {@code /<name>}, see
+	 * {@link Datasets}. Empty to serve only {@link #datasetXml}, without path
+	 * prefix.
+	 */
+	public String datasetDir = "";
+
+	/**
+	 * Maximum number of loaded datasets (each with its loader and
+	 * {@link TileGenerator}s). When exceeded, the least recently used idle
+	 * datasets are unloaded. This bounds the number of datasets, not their
+	 * memory: source blocks are bounded by {@link #blockCacheBytes}, and
+	 * generators by {@link #numGenerators} per dataset.
+	 */
+	public int maxLoadedDatasets = 8;
+
+	/**
+	 * HTTP port to listen on.
+	 */
+	public int port = 8010;
+
+	/**
+	 * Maximum number of {@link TileGenerator}s (per dataset), see
+	 * {@link GeneratorPool}.
+	 */
+	public int numGenerators = 16;
+
+	/**
+	 * Number of {@link TileGenerator}s (per dataset) built at startup and kept
+	 * when idle.
+	 */
+	public int minGenerators = 4;
+
+	/**
+	 * Build another {@link TileGenerator} when a request waits longer than
+	 * this (ms) for one.
+	 */
+	public long generatorGrowWaitMillis = 20;
+
+	/**
+	 * Drop idle {@link TileGenerator}s (down to {@link #minGenerators}) when
+	 * no request had to wait for one for this long (ms).
+	 */
+	public long generatorIdleMillis = 60000;
+
+	/**
+	 * Cancel renders that take longer than this (ms). Generators not
+	 * returned after twice this are counted as leaked and replaced. 0
+	 * disables the timeout.
+	 */
+	public long generatorTimeoutMillis = 30000;
+
+	/**
+	 * Byte budget of the encoded tile cache.
+	 */
+	public long cacheBytes = 256l * 1024 * 1024;
+
+	/**
+	 * Whether to handle tile requests asynchronously. If {@code true}, Jetty
+	 * threads do not wait for a free {@link TileGenerator}. Instead, requests
+	 * are queued and answered with 503 if the queue is full or they waited for
+	 * too long.
+	 */
+	public boolean async = true;
+
+	/**
+	 * Maximum number of requests waiting for a {@link TileGenerator} in async
+	 * mode.
+	 */
+	public int maxQueuedRequests = 256;
+
+	/**
+	 * Maximum time (ms) a request waits for a {@link TileGenerator} in async
+	 * mode before it is answered with 503.
+	 */
+	public long maxWaitMillis = 2000;
+
+	/**
+	 * Value of the Retry-After header (seconds) of 503 responses.
+	 */
+	public int retryAfterSeconds = 1;
+
+	/**
+	 * How often (ms) to check whether clients of queued and running renders
+	 * are still connected.
+	 */
+	public long disconnectCheckMillis = 50;
+
+	/**
+	 * How many neighbor tiles to prefetch concurrently. 0 disables
+	 * prefetching.
+	 */
+	public int prefetchThreads = 2;
+
+	/**
+	 * Maximum number of queued prefetches.
+	 */
+	public int maxQueuedPrefetches = 64;
+
+	/**
+	 * Prefetch only while more than this many {@link TileGenerator}s are idle.
+	 */
+	public int prefetchMinIdleGenerators = 2;
+
+	/**
+	 * How many full-quality tiles of progressive requests to render
+	 * concurrently in the background. 0 disables progressive mode.
+	 */
+	public int refinementThreads = 2;
+
+	/**
+	 * Maximum number of queued refinements. When exceeded, the oldest are
+	 * dropped.
+	 */
+	public int maxQueuedRefinements = 64;
+
+	/**
+	 * Render refinements only while more than this many
+	 * {@link TileGenerator}s are idle.
+	 */
+	public int refinementMinIdleGenerators = 0;
+
+	/**
+	 * Time budget (ms) for rendering a tile, if the request does not specify
+	 * one. Coarser mipmap levels are rendered if the best ones are expected to
+	 * take longer. 0 means no budget.
+	 */
+	public long defaultBudgetMillis = 0;
+
+	/**
+	 * Maximum number of tiles in a /viewport request.
+	 */
+	public int maxViewportTiles = 64;
+
+	/**
+	 * Directory of the persistent tile cache. Empty to disable it.
+	 */
+	public String diskCacheDir = "";
+
+	/**
+	 * Byte budget of the persistent tile cache.
+	 */
+	public long diskCacheBytes = 4l * 1024 * 1024 * 1024;
+
+	/**
+	 * Size of the segment files of the persistent tile cache.
+	 */
+	public int diskCacheSegmentBytes = 64 * 1024 * 1024;
+
+	/**
+	 * Version of the dataset, part of the tile keys (and thus of ETags and
+	 * the keys of the tile caches). If empty, the version of each dataset is
+	 * derived from its xml file.
+	 */
+	public String datasetVersion = "";
+
+	/**
+	 * Output directory of a {@link PyramidExporter} run. Requests that match
+	 * its tiles are answered with the files. Empty to disable. Only used
+	 * when serving a single dataset.
+	 */
+	public String tileDir = "";
+
+	/**
+	 * Byte budget of the off-heap {@link BlockCache} of source blocks shared
+	 * by all generators. 0 to disable it.
+	 */
+	public long blockCacheBytes = BlockCache.DEFAULT_MAX_BYTES;
+
+	/**
+	 * Block size (x, y, z) of the {@link BlockCache}, powers of two.
+	 */
+	public int[] blockSize = BlockCache.DEFAULT_BLOCK_SIZE.clone();
+
+	private static int[] getInts( final String name, final int[] defaultValue )
+	{
+		final String param = System.getProperty( name );
+		if ( param == null || param.isEmpty() )
+			return defaultValue;
+		final String[] parts = param.split( "," );
+		final int[] values = new int[ parts.length ];
+		for ( int i = 0; i < parts.length; ++i )
+			values[ i ] = Integer.parseInt( parts[ i ].trim() );
+		return values;
+	}
+
+	public static TileServerOptions fromSystemProperties()
+	{
+		final TileServerOptions o = new TileServerOptions();
+		o.datasetXml = System.getProperty( "tileserver.datasetXml", o.datasetXml );
+		o.datasetDir = System.getProperty( "tileserver.datasetDir", o.datasetDir );
+		o.maxLoadedDatasets = Integer.getInteger( "tileserver.maxLoadedDatasets", o.maxLoadedDatasets );
+		o.port = Integer.getInteger( "tileserver.port", o.port );
+		o.numGenerators = Integer.getInteger( "tileserver.numGenerators", o.numGenerators );
+		o.minGenerators = Integer.getInteger( "tileserver.minGenerators", o.minGenerators );
+		o.generatorGrowWaitMillis = Long.getLong( "tileserver.generatorGrowWaitMillis", o.generatorGrowWaitMillis );
+		o.generatorIdleMillis = Long.getLong( "tileserver.generatorIdleMillis", o.generatorIdleMillis );
+		o.generatorTimeoutMillis = Long.getLong( "tileserver.generatorTimeoutMillis", o.generatorTimeoutMillis );
+		o.cacheBytes = Long.getLong( "tileserver.cacheBytes", o.cacheBytes );
+		o.async = Boolean.parseBoolean( System.getProperty( "tileserver.async", Boolean.toString( o.async ) ) );
+		o.maxQueuedRequests = Integer.getInteger( "tileserver.maxQueuedRequests", o.maxQueuedRequests );
+		o.maxWaitMillis = Long.getLong( "tileserver.maxWaitMillis", o.maxWaitMillis );
+		o.retryAfterSeconds = Integer.getInteger( "tileserver.retryAfterSeconds", o.retryAfterSeconds );
+		o.disconnectCheckMillis = Long.getLong( "tileserver.disconnectCheckMillis", o.disconnectCheckMillis );
+		o.prefetchThreads = Integer.getInteger( "tileserver.prefetchThreads", o.prefetchThreads );
+		o.maxQueuedPrefetches = Integer.getInteger( "tileserver.maxQueuedPrefetches", o.maxQueuedPrefetches );
+		o.prefetchMinIdleGenerators = Integer.getInteger( "tileserver.prefetchMinIdleGenerators", o.prefetchMinIdleGenerators );
+		o.refinementThreads = Integer.getInteger( "tileserver.refinementThreads", o.refinementThreads );
+		o.maxQueuedRefinements = Integer.getInteger( "tileserver.maxQueuedRefinements", o.maxQueuedRefinements );
+		o.refinementMinIdleGenerators = Integer.getInteger( "tileserver.refinementMinIdleGenerators", o.refinementMinIdleGenerators );
+		o.defaultBudgetMillis = Long.getLong( "tileserver.defaultBudgetMillis", o.defaultBudgetMillis );
+		o.maxViewportTiles = Integer.getInteger( "tileserver.maxViewportTiles", o.maxViewportTiles );
+		o.diskCacheDir = System.getProperty( "tileserver.diskCacheDir", o.diskCacheDir );
+		o.diskCacheBytes = Long.getLong( "tileserver.diskCacheBytes", o.diskCacheBytes );
+		o.diskCacheSegmentBytes = Integer.getInteger( "tileserver.diskCacheSegmentBytes", o.diskCacheSegmentBytes );
+		o.datasetVersion = System.getProperty( "tileserver.datasetVersion", o.datasetVersion );
+		o.tileDir = System.getProperty( "tileserver.tileDir", o.tileDir );
+		o.blockCacheBytes = Long.getLong( "tileserver.blockCacheBytes", o.blockCacheBytes );
+		o.blockSize = getInts( "tileserver.blockSize", o.blockSize );
+		return o;
+	}
+}
@@ -0,0 +1,217 @@
+package tileserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings( "restriction" )
+public class TileServerSun
+{
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final TileServerOptions options = TileServerOptions.fromSystemProperties();
+		final HttpServer server = HttpServer.create( new InetSocketAddress( options.port ), 0 );
+		server.createContext( "/", new ImgHandler( options ) );
+//		final ThreadPoolExecutor executor = new ThreadPoolExecutor(50, 200, 60,
+//				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000));
+//		server.setExecutor(executor);
+		server.setExecutor( null ); // creates a default executor
+		server.start();
+	}
+
+	public static Map< String, String > getParameterMap( final String query )
+	{
+		final Map< String, String > params = new HashMap< String, String >();
+		if ( query == null )
+			return params;
+		for ( final String param : query.split( "&" ) )
+		{
+			final int splitPos = param.indexOf( "=" );
+			if ( splitPos < 0 )
+				params.put( param, "" );
+			else
+				params.put( param.substring( 0, splitPos ), param.substring( splitPos + 1 ) );
+		}
+		return params;
+	}
+
+	/**
+	 * Renders requests from the stack with a {@link TileGenerator} of the
+	 * requested dataset. Every request is answered and closed, also if it is
+	 * malformed (400) or rendering fails (500, unless the tile was partially
+	 * sent already).
+	 */
+	static class TileGeneratorThread extends Thread
+	{
+		private final Datasets datasets;
+
+		private final BlockingDeque< HttpExchange > requestStack;
+
+		public TileGeneratorThread( final Datasets datasets, final BlockingDeque< HttpExchange > requestStack )
+		{
+			this.datasets = datasets;
+			this.requestStack = requestStack;
+		}
+
+		@Override
+		public void run()
+		{
+			while ( true )
+			{
+				final HttpExchange t;
+				try
+				{
+					t = requestStack.takeFirst();
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+				try
+				{
+					serve( t );
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+					sendError( t, 500 );
+				}
+				catch ( final RuntimeException e )
+				{
+					e.printStackTrace();
+					sendError( t, 500 );
+				}
+				finally
+				{
+					t.close();
+				}
+			}
+		}
+
+		private void serve( final HttpExchange t ) throws IOException, InterruptedException
+		{
+			final URI uri = t.getRequestURI();
+			final double x, y, z, scale;
+			final int tileW, tileH;
+			try
+			{
+				final Map< String, String > params = getParameterMap( uri.getQuery() );
+				x = Double.parseDouble( params.get( "x" ) );
+				y = Double.parseDouble( params.get( "y" ) );
+				z = Double.parseDouble( params.get( "z" ) );
+				scale = params.containsKey( "scale" ) ? Double.parseDouble( params.get( "scale" ) ) : 1;
+				tileW = Integer.parseInt( params.get( "width" ) );
+				tileH = Integer.parseInt( params.get( "height" ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				// missing or malformed parameters
+				sendError( t, 400 );
+				return;
+			}
+			final int timepoint = 0;
+
+			final Datasets.Dataset dataset = datasets.acquire( datasets.splitPath( uri.getPath() )[ 0 ] );
+			if ( dataset == null )
+			{
+				sendError( t, 404 );
+				return;
+			}
+			try
+			{
+				final TileGenerator tileGenerator = dataset.getGenerators().take();
+				boolean failed = false;
+				try
+				{
+					final Headers responseHeaders = t.getResponseHeaders();
+					responseHeaders.add( "Content-Type", "image/jpeg" );
+					responseHeaders.add( "Cache-Control", "max-age=300" );
+					t.sendResponseHeaders( 200, 0 );
+					final OutputStream os = t.getResponseBody();
+					try
+					{
+						// an IOException most likely means that writing to the
+						// client failed, not the generator
+						tileGenerator.getTile( x, y, z, scale, timepoint, tileW, tileH, os );
+					}
+					catch ( final RuntimeException e )
+					{
+						failed = true;
+						throw e;
+					}
+					os.close();
+				}
+				finally
+				{
+					if ( failed )
+						dataset.getGenerators().discard( tileGenerator );
+					else
+						dataset.getGenerators().put( tileGenerator );
+				}
+			}
+			finally
+			{
+				datasets.release( dataset );
+			}
+		}
+
+		/**
+		 * Answer with an error status, unless the response was started
+		 * already.
+		 */
+		private static void sendError( final HttpExchange t, final int status )
+		{
+			try
+			{
+				t.sendResponseHeaders( status, -1 );
+			}
+			catch ( final IOException e )
+			{}
+		}
+	}
+
+	static class ImgHandler implements HttpHandler
+	{
+		private final BlockingDeque< HttpExchange > requestStack;
+
+		public ImgHandler( final TileServerOptions options ) throws IOException
+		{
+			final Datasets datasets = new Datasets( options, new TileMetrics(), null );
+			// a single dataset is loaded right away, to fail early
+			if ( !datasets.isMulti() )
+				datasets.release( datasets.acquire( "" ) );
+			requestStack = new LinkedBlockingDeque< HttpExchange >();
+
+			for ( int i = 0; i < options.numGenerators; ++i )
+				new TileGeneratorThread( datasets, requestStack ).start();
+		}
+
+		@Override
+		public void handle( final HttpExchange t ) throws IOException
+		{
+			try
+			{
+				requestStack.putFirst( t );
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}